@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 提供缩放后的专辑封面。
+ *
+ * URI 的格式为 content://AUTHORITY/&lt;尺寸档位&gt;/&lt;专辑 ID&gt;。第一次请求时从 MediaStore 读取原图，
+ * 按档位缩小后写入磁盘缓存，之后直接返回缓存文件，客户端不需要再解码全尺寸的 JPEG。
+ * {@link #query} 只提供 {@link OpenableColumns}，内容通过 {@link #openFile} 读取。
+ */
+public class AlbumArtProvider extends ContentProvider {
+    private static final String TAG = "LMBAlbumArt";
+
+    static final String AUTHORITY = "com.android.car.media.localmediaplayer.albumart";
+
+    // 缩略图的最长边。客户端的尺寸提示会向上取整到其中一档。
+    private static final int[] BUCKETS = { 128, 256, 512 };
+    static final int DEFAULT_BUCKET = 256;
+    static final int LARGEST_BUCKET = BUCKETS[BUCKETS.length - 1];
+
+    private static final String CACHE_DIR = "album_art";
+    private static final long MAX_CACHE_BYTES = 32L * 1024 * 1024;
+    private static final int JPEG_QUALITY = 90;
+
+    private static final Uri ART_BASE_URI = Uri.parse("content://media/external/audio/albumart");
+
+    /**
+     * 返回不小于尺寸提示的最小档位；没有提示时返回默认档位，提示超过最大档位时返回最大档位。
+     */
+    static int getBucket(int hintPixels) {
+        if (hintPixels <= 0) {
+            return DEFAULT_BUCKET;
+        }
+        for (int bucket : BUCKETS) {
+            if (bucket >= hintPixels) {
+                return bucket;
+            }
+        }
+        return LARGEST_BUCKET;
+    }
+
+    /**
+     * 返回专辑封面缩略图的 URI。MediaStore 只为外部存储提供专辑封面，内部存储的专辑返回 null。
+     */
+    static Uri getUri(long albumId, int bucket) {
+        if (MusicCatalog.isInternal(albumId)) {
+            return null;
+        }
+        return new Uri.Builder()
+                .scheme("content")
+                .authority(AUTHORITY)
+                .appendPath(String.valueOf(bucket))
+                .appendPath(String.valueOf(albumId))
+                .build();
+    }
+
+    /**
+     * 删除专辑的所有缓存缩略图，例如专辑中的歌曲变化之后封面可能也变了。
+     */
+    static void evict(Context context, long albumId) {
+        for (int bucket : BUCKETS) {
+            getCacheFile(context, albumId, bucket).delete();
+        }
+    }
+
+    private static File getCacheFile(Context context, long albumId, int bucket) {
+        File dir = new File(context.getCacheDir(), CACHE_DIR);
+        return new File(dir, albumId + "_" + bucket + ".jpg");
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new SecurityException("Album art is read-only: " + uri);
+        }
+        long[] target = parseUri(uri);
+        int bucket = (int) target[0];
+        long albumId = target[1];
+        File file = getCacheFile(getContext(), albumId, bucket);
+        if (file.exists()) {
+            // 缓存按最后使用时间淘汰。
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            createThumbnail(albumId, bucket, file);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * 解析 URI，返回 {档位, 专辑 ID}。
+     */
+    private static long[] parseUri(Uri uri) throws FileNotFoundException {
+        List<String> segments = uri.getPathSegments();
+        int bucket;
+        long albumId;
+        try {
+            bucket = Integer.parseInt(segments.get(0));
+            albumId = Long.parseLong(segments.get(1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new FileNotFoundException("Invalid album art uri " + uri);
+        }
+        if (Arrays.binarySearch(BUCKETS, bucket) < 0) {
+            throw new FileNotFoundException("Unsupported size " + bucket);
+        }
+        return new long[] { bucket, albumId };
+    }
+
+    private void createThumbnail(long albumId, int bucket, File file)
+            throws FileNotFoundException {
+        Uri source = ContentUris.withAppendedId(ART_BASE_URI, albumId);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new FileNotFoundException("No album art for " + albumId);
+        }
+        // 先用 inSampleSize 在解码时缩小，避免为大图分配全尺寸的位图。
+        int longest = Math.max(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (longest / (options.inSampleSize * 2) >= bucket) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = decode(source, options);
+        if (bitmap == null) {
+            throw new FileNotFoundException("Failed to decode album art for " + albumId);
+        }
+        float scale = (float) bucket / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (scale < 1f) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        File dir = file.getParentFile();
+        dir.mkdirs();
+        File tmp = null;
+        try {
+            // 多个 binder 线程可能同时生成同一张缩略图，各自写临时文件再重命名。
+            tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to cache album art " + e);
+            if (tmp != null) {
+                tmp.delete();
+            }
+            throw new FileNotFoundException("Failed to cache album art for " + albumId);
+        } finally {
+            bitmap.recycle();
+        }
+        trimCache(dir);
+    }
+
+    private Bitmap decode(Uri source, BitmapFactory.Options options)
+            throws FileNotFoundException {
+        try (InputStream in = getContext().getContentResolver().openInputStream(source)) {
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException | SecurityException e) {
+            throw new FileNotFoundException("Failed to open album art " + source + ": " + e);
+        }
+    }
+
+    /**
+     * 缓存超过上限时，删除最久没有使用的文件。
+     */
+    private static void trimCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= MAX_CACHE_BYTES) {
+                break;
+            }
+            // 正在写入的临时文件由写入者自己清理。
+            if (file.getName().endsWith(".tmp")) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "image/jpeg";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        File file;
+        try {
+            long[] target = parseUri(uri);
+            file = getCacheFile(getContext(), target[1], (int) target[0]);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, e.getMessage());
+            return null;
+        }
+        if (projection == null) {
+            projection = new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+        }
+        // 和 FileProvider 一样，不认识的列直接省略。缩略图还没有生成时大小未知，按约定为 null。
+        String[] columns = new String[projection.length];
+        Object[] values = new Object[projection.length];
+        int count = 0;
+        for (String column : projection) {
+            if (OpenableColumns.DISPLAY_NAME.equals(column)) {
+                columns[count] = column;
+                values[count++] = file.getName();
+            } else if (OpenableColumns.SIZE.equals(column)) {
+                columns[count] = column;
+                values[count++] = file.exists() ? file.length() : null;
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(Arrays.copyOf(columns, count), 1);
+        cursor.addRow(Arrays.copyOf(values, count));
+        return cursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
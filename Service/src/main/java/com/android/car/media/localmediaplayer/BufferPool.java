@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 固定数量、固定大小的直接缓冲区池，线程安全。
+ *
+ * 缓冲区第一次使用时才分配，之后在池中循环使用，所以读取文件时不会反复分配和回收直接内存。
+ * 池用完时 {@link #acquire} 返回 null，由调用方直接读取存储，不会无限制地占用内存。
+ */
+final class BufferPool {
+    private final int mCapacity;
+    private final int mBufferBytes;
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<>();
+    // 以下字段由 this 保护。
+    private int mAllocated;
+    private int mInUse;
+    private int mPeakInUse;
+    private long mExhausted;
+
+    BufferPool(int capacity, int bufferBytes) {
+        mCapacity = capacity;
+        mBufferBytes = bufferBytes;
+    }
+
+    int getBufferBytes() {
+        return mBufferBytes;
+    }
+
+    /**
+     * 取出一个已经 clear 的缓冲区，池已经用完时返回 null。
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mFree.poll();
+        if (buffer == null) {
+            if (mAllocated == mCapacity) {
+                mExhausted++;
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(mBufferBytes);
+            mAllocated++;
+        }
+        mInUse++;
+        mPeakInUse = Math.max(mPeakInUse, mInUse);
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        mInUse--;
+        mFree.push(buffer);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool{inUse=" + mInUse + " peak=" + mPeakInUse + " allocated=" + mAllocated
+                + "/" + mCapacity + " x " + (mBufferBytes / 1024) + "KiB exhausted=" + mExhausted
+                + "}";
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * 目录的二进制快照文件，冷启动时只需要查询 MediaStore 的代数，不需要重建目录就能浏览。
+ *
+ * 格式：int MAGIC，int FORMAT_VERSION，MediaStore 版本字符串，long 库代数（generation），
+ * 然后是 {@link MusicCatalog#writeTo} 写入的字符串表和定长数组，最后是前面所有字节的 CRC32。
+ * 读取时用 {@link FileChannel#map} 映射整个文件，校验失败的文件会被删除，永远不会被使用。
+ */
+final class CatalogSnapshot {
+    private static final String TAG = "LMBSnapshot";
+
+    static final String FILE_NAME = "catalog.snapshot";
+
+    private static final int MAGIC = 0x4C4D4243;  // "LMBC"
+    private static final int FORMAT_VERSION = 4;
+    private static final int CHECKSUM_BYTES = 8;
+
+    private static final String[] GENERATION_COLUMNS = {
+            AudioColumns._ID, AudioColumns.DATE_MODIFIED
+    };
+
+    private final MusicCatalog mCatalog;
+    private final String mMediaStoreVersion;
+    private final long mGeneration;
+
+    private CatalogSnapshot(MusicCatalog catalog, String mediaStoreVersion, long generation) {
+        mCatalog = catalog;
+        mMediaStoreVersion = mediaStoreVersion;
+        mGeneration = generation;
+    }
+
+    MusicCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    String getMediaStoreVersion() {
+        return mMediaStoreVersion;
+    }
+
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * 映射并校验快照文件。文件不存在、格式版本不对或校验和不一致时返回 null。
+     */
+    static CatalogSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        long start = System.currentTimeMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < CHECKSUM_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Bad snapshot size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int payload = (int) size - CHECKSUM_BYTES;
+            if (checksum(buffer, payload) != buffer.getLong(payload)) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            buffer.limit(payload);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            String version = readString(buffer);
+            long generation = buffer.getLong();
+            MusicCatalog catalog = MusicCatalog.readFrom(buffer);
+            Log.i(TAG, "Mapped snapshot with " + catalog.getTrackCount() + " tracks in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return new CatalogSnapshot(catalog, version, generation);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            Log.w(TAG, "Discarding snapshot " + file + ": " + e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * 写入快照。先写临时文件再重命名，所以崩溃不会留下半个文件；已经映射旧文件的目录也不受影响。
+     */
+    static void write(File file, MusicCatalog catalog, String mediaStoreVersion,
+            long generation) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(fos), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, mediaStoreVersion);
+            out.writeLong(generation);
+            catalog.writeTo(out);
+            out.flush();
+            // 校验和本身不参与校验。
+            DataOutputStream trailer = new DataOutputStream(fos);
+            trailer.writeLong(crc.getValue());
+            trailer.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot " + e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Failed to rename snapshot " + tmp);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 计算 MediaStore 中音频库的代数：行数、_ID 之和与最大 DATE_MODIFIED 的组合。
+     * 只读取两个整数列，比重建目录便宜得多。compileSdk 29 还没有 MediaStore.getGeneration。
+     */
+    static long queryGeneration(ContentResolver resolver) {
+        long count = 0;
+        long idSum = 0;
+        long maxModified = 0;
+        Uri[] uris = {
+                MediaStore.Audio.Media.INTERNAL_CONTENT_URI,
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
+        };
+        for (Uri uri : uris) {
+            Cursor cursor = null;
+            try {
+                cursor = resolver.query(uri, GENERATION_COLUMNS, null, null, null);
+                if (cursor == null) {
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    count++;
+                    idSum += cursor.getLong(0);
+                    maxModified = Math.max(maxModified, cursor.getLong(1));
+                    if (count % IoScheduler.ROWS_PER_TOKEN == 0) {
+                        IoScheduler.get().throttle();
+                    }
+                }
+            } catch (SQLiteException e) {
+                Log.i(TAG, "Failed to execute query " + e);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return generation(count, idSum, maxModified);
+    }
+
+    static long generation(long count, long idSum, long maxModified) {
+        return (count * 1000003L) ^ (idSum * 31L) ^ maxModified;
+    }
+
+    private static long checksum(ByteBuffer buffer, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer data = buffer.duplicate();
+        data.position(0);
+        byte[] chunk = new byte[64 * 1024];
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(chunk.length, remaining);
+            data.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        return crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeUTF(value == null ? "" : value);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        // writeUTF 对 BMP 以内的普通字符与 UTF-8 一致，版本字符串只包含 ASCII。
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
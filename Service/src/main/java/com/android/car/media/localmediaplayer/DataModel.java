@@ -18,437 +18,898 @@ package com.android.car.media.localmediaplayer;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.media.MediaDescription;
 import android.media.MediaMetadata;
+import android.media.browse.MediaBrowser;
 import android.media.browse.MediaBrowser.MediaItem;
 import android.media.session.MediaSession.QueueItem;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
-import android.provider.MediaStore.Audio.AlbumColumns;
 import android.provider.MediaStore.Audio.AudioColumns;
 import android.service.media.MediaBrowserService.Result;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.android.car.media.localmediaplayer.MusicCatalog.TrackRow;
+
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DataModel {
     private static final String TAG = "LMBDataModel";
 
-    private static final String EXTERNAL = "external";
-    private static final String INTERNAL = "internal";
-
     private static final Uri ART_BASE_URI = Uri.parse("content://media/external/audio/albumart");
 
-    public static final String PATH_KEY = "PATH";
+    private static final int MAX_QUERY_ARGS = 500;
+    // resolveLegacyTracks 中找不到的歌曲。
+    static final long NO_TRACK = -1;
+    private static final int MAX_SEARCH_RESULTS = 50;
+    // 搜索请求没有指定结果类型。
+    private static final int ANY_TYPE = -1;
 
     private Context mContext;
     private ContentResolver mResolver;
-    private AsyncTask mPendingTask;
-
-    private List<QueueItem> mQueue = new ArrayList<>();
+    private volatile MusicCatalog mCatalog;
+    private CatalogLoadTask mCatalogLoadTask;
+    // mCatalogLoadTask 在 IoScheduler 中的任务，有请求在等待目录时提升为交互类。
+    private IoScheduler.Task mCatalogLoadIo;
+    private LibrarySync mLibrarySync;
+    private final List<CatalogCallback> mCatalogRequests = new ArrayList<>();
+    // mCatalogLoadTask 和 mCatalogRequests 只在主线程上访问。
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final QueryScheduler mScheduler = new QueryScheduler();
+    private final MetadataCache mMetadataCache = new MetadataCache();
+    private FolderTree mFolderTree;
+    private MusicCatalog mFolderTreeCatalog;
+    // 搜索索引单独加锁，构建索引时不阻塞文件夹浏览。
+    private final Object mSearchLock = new Object();
+    private LibrarySearch mSearch;
+    // 每个客户端在根提示中请求的专辑封面尺寸档位。
+    private final Map<String, Integer> mArtBuckets = new ConcurrentHashMap<>();
 
     public DataModel(Context context) {
         mContext = context;
         mResolver = context.getContentResolver();
+        // 尽早加载目录，使第一次浏览时目录已经可用。
+        loadCatalog();
     }
 
-    private static final Uri[] ALL_AUDIO_URI = new Uri[] {
-            MediaStore.Audio.Media.INTERNAL_CONTENT_URI,
-            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI
-    };
+    public void destroy() {
+        mScheduler.shutdown();
+        if (mLibrarySync != null) {
+            mLibrarySync.stop();
+        }
+    }
 
-    public void onQueryByFolder(String parentId, Result<List<MediaItem>> result) {
-        FilesystemListTask query = new FilesystemListTask(result, ALL_AUDIO_URI, mResolver);
-        queryInBackground(result, query);
+    /**
+     * 记录客户端在根提示中给出的封面尺寸，之后返回给它的专辑和歌曲都带有对应档位的图标 URI。
+     */
+    public void setArtSizeHint(String client, int hintPixels) {
+        mArtBuckets.put(client, AlbumArtProvider.getBucket(hintPixels));
     }
 
-    private static final Uri[] ALBUMS_URI = new Uri[] {
-            MediaStore.Audio.Albums.INTERNAL_CONTENT_URI,
-            MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI
-    };
+    private int getArtBucket(String client) {
+        Integer bucket = mArtBuckets.get(client);
+        return bucket != null ? bucket : AlbumArtProvider.DEFAULT_BUCKET;
+    }
 
-    public void onQueryByAlbum(String parentId, Result<List<MediaItem>> result) {
-        QueryTask query = new QueryTask.Builder()
-                .setResolver(mResolver)
-                .setResult(result)
-                .setUri(ALBUMS_URI)
-                .setKeyColumn(AudioColumns.ALBUM_KEY)
-                .setTitleColumn(AudioColumns.ALBUM)
-                .setFlags(MediaItem.FLAG_BROWSABLE)
-                .build();
-        queryInBackground(result, query);
-    }
-
-    private static final Uri[] ARTISTS_URI = new Uri[] {
-            MediaStore.Audio.Artists.INTERNAL_CONTENT_URI,
-            MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI
-    };
-
-    public void onQueryByArtist(String parentId, Result<List<MediaItem>> result) {
-        QueryTask query = new QueryTask.Builder()
-                .setResolver(mResolver)
-                .setResult(result)
-                .setUri(ARTISTS_URI)
-                .setKeyColumn(AudioColumns.ARTIST_KEY)
-                .setTitleColumn(AudioColumns.ARTIST)
-                .setFlags(MediaItem.FLAG_BROWSABLE)
-                .build();
-        queryInBackground(result, query);
-    }
-
-    private static final Uri[] GENRES_URI = new Uri[] {
-            MediaStore.Audio.Genres.INTERNAL_CONTENT_URI,
-            MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI
-    };
-
-    public void onQueryByGenre(String parentId, Result<List<MediaItem>> result) {
-        QueryTask query = new QueryTask.Builder()
-                .setResolver(mResolver)
-                .setResult(result)
-                .setUri(GENRES_URI)
-                .setKeyColumn(MediaStore.Audio.Genres._ID)
-                .setTitleColumn(MediaStore.Audio.Genres.NAME)
-                .setFlags(MediaItem.FLAG_BROWSABLE)
-                .build();
-        queryInBackground(result, query);
-    }
-
-    private void queryInBackground(Result<List<MediaItem>> result, AsyncTask<Void, Void, Void> task) {
-        result.detach();
-        if (mPendingTask != null) {
-            mPendingTask.cancel(true);
-        }
-        mPendingTask = task;
-        task.execute();
-    }
-
-    public List<QueueItem> getQueue() {
-        return mQueue;
-    }
-
-    public MediaMetadata getMetadata(String key) {
-        Cursor cursor = null;
-        MediaMetadata.Builder metadata = new MediaMetadata.Builder();
-        try {
-            for (Uri uri : ALL_AUDIO_URI) {
-                cursor = mResolver.query(uri, null, AudioColumns.TITLE_KEY + " = ?",
-                        new String[]{ key }, null);
-                if (cursor != null) {
-                    int title = cursor.getColumnIndex(AudioColumns.TITLE);
-                    int artist = cursor.getColumnIndex(AudioColumns.ARTIST);
-                    int album = cursor.getColumnIndex(AudioColumns.ALBUM);
-                    int albumId = cursor.getColumnIndex(AudioColumns.ALBUM_ID);
-                    int duration = cursor.getColumnIndex(AudioColumns.DURATION);
-
-                    while (cursor.moveToNext()) {
-                        metadata.putString(MediaMetadata.METADATA_KEY_TITLE,
-                                cursor.getString(title));
-                        metadata.putString(MediaMetadata.METADATA_KEY_ARTIST,
-                                cursor.getString(artist));
-                        metadata.putString(MediaMetadata.METADATA_KEY_ALBUM,
-                                cursor.getString(album));
-                        metadata.putLong(MediaMetadata.METADATA_KEY_DURATION,
-                                cursor.getLong(duration));
-
-                        String albumArt = null;
-                        Uri albumArtUri = ContentUris.withAppendedId(ART_BASE_URI,
-                                cursor.getLong(albumId));
-                        try {
-                            InputStream dummy = mResolver.openInputStream(albumArtUri);
-                            albumArt = albumArtUri.toString();
-                            dummy.close();
-                        } catch (IOException e) {
-                            // Ignored because the albumArt is intialized correctly anyway.
-                        }
-                        metadata.putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, albumArt);
-                        break;
-                    }
-                }
+    private File getSnapshotFile() {
+        return new File(mContext.getNoBackupFilesDir(), CatalogSnapshot.FILE_NAME);
+    }
+
+    public void onQueryByFolder(String parentId, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        onQueryFolder(parentId, null, client, result, options);
+    }
+
+    public void onQueryByAlbum(String parentId, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        int bucket = getArtBucket(client);
+        queryCatalog(client, parentId + "@" + bucket, result, options,
+                catalog -> new Listing(catalog.getAlbumCount(),
+                        album -> createAlbumItem(catalog, album, bucket)));
+    }
+
+    public void onQueryByArtist(String parentId, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        queryCatalog(client, parentId, result, options,
+                catalog -> new Listing(catalog.getArtistCount(), artist -> createBrowsableItem(
+                        MediaId.artist(catalog.getArtistTableId(artist)),
+                        catalog.getArtistTableName(artist))));
+    }
+
+    public void onQueryByGenre(String parentId, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        queryCatalog(client, parentId, result, options,
+                catalog -> new Listing(catalog.getGenreCount(), genre -> createBrowsableItem(
+                        MediaId.genre(catalog.getGenreTableId(genre)),
+                        catalog.getGenreTableName(genre))));
+    }
+
+    /**
+     * 艺术家下面是专辑，专辑下面才是歌曲。
+     */
+    public void onQueryArtist(String parentId, long artistId, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        int bucket = getArtBucket(client);
+        queryCatalog(client, parentId + "@" + bucket, result, options, catalog -> {
+            int artist = catalog.findArtistById(artistId);
+            if (artist == MusicCatalog.NOT_FOUND) {
+                return new Listing(0, null);
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            PostingLists albums = catalog.getArtistAlbums();
+            return new Listing(albums.size(artist),
+                    i -> createAlbumItem(catalog, albums.get(artist, i), bucket));
+        });
+    }
+
+    /**
+     * 列出专辑或流派中的歌曲。
+     */
+    public void onQueryTracks(MediaId node, String parentId, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        int bucket = getArtBucket(client);
+        queryCatalog(client, parentId + "@" + bucket, result, options, catalog -> {
+            int[] rows = findTracks(catalog, node);
+            return new Listing(rows.length, i -> new MediaItem(
+                    createTrackDescription(catalog, rows[i], bucket, parentId),
+                    MediaItem.FLAG_PLAYABLE));
+        });
+    }
+
+    /**
+     * 列出一个文件夹：第一项是递归播放整个文件夹，然后是子文件夹，最后是直接包含的歌曲。
+     * path 为 null 时列出文件夹树的第一层。
+     */
+    public void onQueryFolder(String parentId, String path, String client,
+            Result<List<MediaItem>> result, Bundle options) {
+        int bucket = getArtBucket(client);
+        queryCatalog(client, parentId + "@" + bucket, result, options, catalog -> {
+            FolderTree tree = getFolderTree(catalog);
+            int folder = path == null ? tree.getTop() : tree.findNode(path);
+            if (folder == FolderTree.NOT_FOUND) {
+                return new Listing(0, null);
+            }
+            // 歌曲的所在节点总是写成 folder:<路径>，使分类根节点和文件夹节点的队列一致。
+            String folderId = MediaId.folder(tree.getPath(folder));
+            int[] rows = tree.getTracks(folder);
+            int playAll = tree.getAllTrackCount(folder) > 0 ? 1 : 0;
+            int folders = tree.getChildCount(folder);
+            return new Listing(playAll + folders + rows.length, i -> {
+                if (i < playAll) {
+                    MediaDescription description = new MediaDescription.Builder()
+                            .setMediaId(MediaId.playFolder(tree.getPath(folder)))
+                            .setTitle(mContext.getString(R.string.play_all))
+                            .setSubtitle(tree.getPath(folder))
+                            .build();
+                    return new MediaItem(description, MediaItem.FLAG_PLAYABLE);
+                }
+                i -= playAll;
+                if (i < folders) {
+                    int child = tree.getChild(folder, i);
+                    MediaDescription description = new MediaDescription.Builder()
+                            .setMediaId(MediaId.folder(tree.getPath(child)))
+                            .setTitle(tree.getName(child))
+                            .setSubtitle(tree.getPath(child))
+                            .build();
+                    return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+                }
+                return new MediaItem(
+                        createTrackDescription(catalog, rows[i - folders], bucket, folderId),
+                        MediaItem.FLAG_PLAYABLE);
+            });
+        });
+    }
+
+    /**
+     * 文件夹树只依赖目录，目录更新后第一次浏览文件夹时重建。
+     */
+    private synchronized FolderTree getFolderTree(MusicCatalog catalog) {
+        if (mFolderTreeCatalog != catalog) {
+            long start = System.currentTimeMillis();
+            mFolderTree = FolderTree.build(catalog);
+            mFolderTreeCatalog = catalog;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Built folder tree in " + (System.currentTimeMillis() - start) + "ms");
             }
         }
+        return mFolderTree;
+    }
 
-        return metadata.build();
+    /**
+     * 在搜索索引中查找，结果依次是歌曲、专辑、艺术家、流派和文件夹中得分最高的若干项。
+     */
+    public void onSearch(String query, String client, Result<List<MediaItem>> result,
+            Bundle extras) {
+        int bucket = getArtBucket(client);
+        queryCatalog(client, "search:" + query + "@" + bucket, result, extras, catalog -> {
+            long start = System.currentTimeMillis();
+            List<SearchIndex.Hit> hits = getSearch(catalog).search(query, MAX_SEARCH_RESULTS);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Search \"" + query + "\" found " + hits.size() + " results in "
+                        + (System.currentTimeMillis() - start) + "ms");
+            }
+            return new Listing(hits.size(), i -> createSearchItem(catalog, hits.get(i), bucket));
+        });
     }
 
-    private static final String QUERY_BY_KEY_WHERE_CLAUSE =
-            AudioColumns.ALBUM_KEY + "= ? or "
-                    + AudioColumns.ARTIST_KEY + " = ? or "
-                    + AudioColumns.TITLE_KEY + " = ? or "
-                    + AudioColumns.DATA + " like ?";
+    /**
+     * 第一次搜索时构建索引，之后随库同步更新；索引和目录不一致时整体重建。
+     */
+    private LibrarySearch getSearch(MusicCatalog catalog) {
+        synchronized (mSearchLock) {
+            if (mSearch == null || mSearch.getCatalog() != catalog) {
+                mSearch = LibrarySearch.build(catalog, getFolderTree(catalog));
+            }
+            return mSearch;
+        }
+    }
 
-    // 注意：这会清除队列。 在调用此方法之前，应该拥有队列的本地备份。
-    public void onQueryByKey(String lastCategory, String parentId, Result<List<MediaItem>> result) {
-        mQueue.clear();
-        QueryTask.Builder query = new QueryTask.Builder()
-                .setResolver(mResolver)
-                .setResult(result);
-        // Genre（流派）来自不同的表，并且不使用通常媒体表中的 where 子句，因此我们需要有这个条件。
-        if (LocalMediaBrowserService.GENRES_ID.equals(lastCategory)) {
-            try {
-                long id = Long.parseLong(parentId);
-                query.setUri(new Uri[] {
-                    MediaStore.Audio.Genres.Members.getContentUri(EXTERNAL, id),
-                    MediaStore.Audio.Genres.Members.getContentUri(INTERNAL, id) });
-            } catch (NumberFormatException e) {
-                // 这不应该发生。
-                Log.e(TAG, "Incorrect key type: " + parentId + ", sending empty result");
-                result.sendResult(new ArrayList<MediaItem>());
-                return;
+    /**
+     * 只有索引对应的正是同步前的目录时才能增量更新，否则留到下一次搜索时重建。
+     */
+    private void updateSearch(MusicCatalog previous, MusicCatalog updated,
+            long[] changedTrackIds, long[] removedTrackIds) {
+        synchronized (mSearchLock) {
+            if (mSearch != null && mSearch.getCatalog() == previous) {
+                mSearch = mSearch.update(updated, getFolderTree(updated), changedTrackIds,
+                        removedTrackIds);
             }
-        } else {
-            query.setUri(ALL_AUDIO_URI)
-                    .setWhereClause(QUERY_BY_KEY_WHERE_CLAUSE)
-                    .setWhereArgs(new String[] { parentId, parentId, parentId, parentId });
         }
+    }
 
-        query.setKeyColumn(AudioColumns.TITLE_KEY)
-                .setTitleColumn(AudioColumns.TITLE)
-                .setSubtitleColumn(AudioColumns.ALBUM)
-                .setFlags(MediaItem.FLAG_PLAYABLE)
-                .setQueue(mQueue);
-        queryInBackground(result, query.build());
+    /**
+     * 把播放搜索请求（例如语音的“播放 Radiohead”）解析为第一首要播放的歌曲的媒体 ID，
+     * 歌曲的所在节点是匹配到的专辑、艺术家、流派或文件夹，所以之后可以用 {@link #loadQueue}
+     * 构建完整的队列。结构化的 extras 给出时优先使用，并优先选择 EXTRA_MEDIA_FOCUS 指定类型的结果；
+     * 查询为空时播放整个音乐库。目录还没有加载或者没有匹配时返回 null。可以在任意线程调用。
+     */
+    public String resolveSearch(String query, Bundle extras) {
+        MusicCatalog catalog = mCatalog;
+        if (catalog == null) {
+            return null;
+        }
+        String focus = extras != null ? extras.getString(MediaStore.EXTRA_MEDIA_FOCUS) : null;
+        String text = query;
+        int type = ANY_TYPE;
+        if (MediaStore.Audio.Artists.ENTRY_CONTENT_TYPE.equals(focus)) {
+            type = SearchIndex.TYPE_ARTIST;
+            text = extras.getString(MediaStore.EXTRA_MEDIA_ARTIST, query);
+        } else if (MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE.equals(focus)) {
+            type = SearchIndex.TYPE_ALBUM;
+            text = join(extras.getString(MediaStore.EXTRA_MEDIA_ALBUM, query),
+                    extras.getString(MediaStore.EXTRA_MEDIA_ARTIST));
+        } else if (MediaStore.Audio.Genres.ENTRY_CONTENT_TYPE.equals(focus)) {
+            type = SearchIndex.TYPE_GENRE;
+            text = extras.getString(MediaStore.EXTRA_MEDIA_GENRE, query);
+        } else if (MediaStore.Audio.Media.ENTRY_CONTENT_TYPE.equals(focus)) {
+            type = SearchIndex.TYPE_TRACK;
+            text = join(extras.getString(MediaStore.EXTRA_MEDIA_TITLE, query),
+                    extras.getString(MediaStore.EXTRA_MEDIA_ARTIST));
+        }
+        if (TextUtils.isEmpty(text) || text.trim().isEmpty()) {
+            FolderTree tree = getFolderTree(catalog);
+            return findFirstTrack(catalog, MediaId.playFolder(tree.getPath(tree.getTop())));
+        }
+        List<SearchIndex.Hit> hits = getSearch(catalog).search(text, MAX_SEARCH_RESULTS);
+        if (hits.isEmpty()) {
+            return null;
+        }
+        SearchIndex.Hit best = hits.get(0);
+        for (SearchIndex.Hit hit : hits) {
+            if (hit.type == type) {
+                best = hit;
+                break;
+            }
+        }
+        switch (best.type) {
+            case SearchIndex.TYPE_TRACK: {
+                // 单首歌曲在所属专辑中播放，从这首歌开始。
+                int row = catalog.findTrackById(best.id);
+                return MediaId.track(best.id, MediaId.album(catalog.getAlbumId(row)));
+            }
+            case SearchIndex.TYPE_ALBUM:
+                return findFirstTrack(catalog, MediaId.album(best.id));
+            case SearchIndex.TYPE_ARTIST:
+                return findFirstTrack(catalog, MediaId.artist(best.id));
+            case SearchIndex.TYPE_GENRE:
+                return findFirstTrack(catalog, MediaId.genre(best.id));
+            default:
+                return findFirstTrack(catalog, MediaId.playFolder(best.path));
+        }
     }
 
-    // 为了便于理解代码，没有和QueryTask封装在一起。如果强行写在一起，看起来非常奇怪并且过度参数化，有可能变得更加冗长
-    private static class FilesystemListTask extends AsyncTask<Void, Void, Void> {
-        private static final String[] COLUMNS = { AudioColumns.DATA };
-        private Result<List<MediaItem>> mResult;
-        private Uri[] mUris;
-        private ContentResolver mResolver;
+    private String findFirstTrack(MusicCatalog catalog, String context) {
+        int[] rows = findTracks(catalog, MediaId.parse(context));
+        return rows.length == 0 ? null : MediaId.track(catalog.getTrackId(rows[0]), context);
+    }
 
-        public FilesystemListTask(Result<List<MediaItem>> result, Uri[] uris,
-                ContentResolver resolver) {
-            mResult = result;
-            mUris = uris;
-            mResolver = resolver;
+    private static String join(String first, String second) {
+        if (TextUtils.isEmpty(first)) {
+            return second;
         }
+        return TextUtils.isEmpty(second) ? first : first + " " + second;
+    }
 
-        @Override
-        protected Void doInBackground(Void... voids) {
-            Set<String> paths = new HashSet<String>();
-            Cursor cursor = null;
-            for (Uri uri : mUris) {
-                try {
-                    cursor = mResolver.query(uri, COLUMNS, null , null, null);
-                    if (cursor != null) {
-                        int pathColumn = cursor.getColumnIndex(AudioColumns.DATA);
-                        while (cursor.moveToNext()) {
-                            // 我们想要对每首歌曲的路径进行重复数据删除，因此我们只得到一个包含目录的列表。
-                            String fullPath = cursor.getString(pathColumn);
-                            int fileNameStart = fullPath.lastIndexOf(File.separator);
-                            if (fileNameStart < 0) {
-                                continue;
-                            }
-                            String dirPath = fullPath.substring(0, fileNameStart);
-                            paths.add(dirPath);
-                        }
-                    }
-                } catch (SQLiteException e) {
-                    Log.e(TAG, "Failed to execute query " + e);
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
-                }
+    private MediaItem createSearchItem(MusicCatalog catalog, SearchIndex.Hit hit, int bucket) {
+        switch (hit.type) {
+            case SearchIndex.TYPE_TRACK: {
+                int row = catalog.findTrackById(hit.id);
+                // 搜索到的歌曲在所属专辑中播放。
+                return new MediaItem(createTrackDescription(catalog, row, bucket,
+                        MediaId.album(catalog.getAlbumId(row))), MediaItem.FLAG_PLAYABLE);
             }
-
-            // 取出去重目录列表，并将它们放入结果列表中，以完整目录路径为键，以便我们稍后进行匹配。
-            List<MediaItem> results = new ArrayList<>();
-            for (String path : paths) {
-                int dirNameStart = path.lastIndexOf(File.separator) + 1;
-                String dirName = path.substring(dirNameStart, path.length());
-                //在封装为 MediaItem
+            case SearchIndex.TYPE_ALBUM:
+                return createAlbumItem(catalog, catalog.findAlbumById(hit.id), bucket);
+            case SearchIndex.TYPE_ARTIST:
+                return createBrowsableItem(MediaId.artist(hit.id),
+                        catalog.getArtistTableName(catalog.findArtistById(hit.id)));
+            case SearchIndex.TYPE_GENRE:
+                return createBrowsableItem(MediaId.genre(hit.id),
+                        catalog.getGenreTableName(catalog.findGenreById(hit.id)));
+            default: {
                 MediaDescription description = new MediaDescription.Builder()
-                        .setMediaId(path + "%")  // 在类似查询中使用。
-                        .setTitle(dirName)
-                        .setSubtitle(path)
+                        .setMediaId(MediaId.folder(hit.path))
+                        .setTitle(new File(hit.path).getName())
+                        .setSubtitle(hit.path)
                         .build();
-                results.add(new MediaItem(description, MediaItem.FLAG_BROWSABLE));
+                return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
             }
-            mResult.sendResult(results);
-            return null;
         }
     }
 
-    private static class QueryTask extends AsyncTask<Void, Void, Void> {
-        private Result<List<MediaItem>> mResult;
-        private String[] mColumns;
-        private String mWhereClause;
-        private String[] mWhereArgs;
-        private String mKeyColumn;
-        private String mTitleColumn;
-        private String mSubtitleColumn;
-        private Uri[] mUris;
-        private int mFlags;
-        private ContentResolver mResolver;
-        private List<QueueItem> mQueue;
-
-        private QueryTask(Builder builder) {
-            mColumns = builder.mColumns;
-            mWhereClause = builder.mWhereClause;
-            mWhereArgs = builder.mWhereArgs;
-            mKeyColumn = builder.mKeyColumn;
-            mTitleColumn = builder.mTitleColumn;
-            mUris = builder.mUris;
-            mFlags = builder.mFlags;
-            mResolver = builder.mResolver;
-            mResult = builder.mResult;
-            mQueue = builder.mQueue;
-            mSubtitleColumn = builder.mSubtitleColumn;
+    /**
+     * 每种节点用自己的索引查找歌曲，返回目录行号。
+     */
+    private int[] findTracks(MusicCatalog catalog, MediaId node) {
+        if (node == null) {
+            return new int[0];
         }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            List<MediaItem> results = new ArrayList<>();
-            long idx = 0;
-            Cursor cursor = null;
-            for (Uri uri : mUris) {
-                try {
-                    cursor = mResolver.query(uri, mColumns, mWhereClause, mWhereArgs, null);
-                    if (cursor != null) {
-                        int keyColumn = cursor.getColumnIndex(mKeyColumn);
-                        int titleColumn = cursor.getColumnIndex(mTitleColumn);
-                        int pathColumn = cursor.getColumnIndex(AudioColumns.DATA);
-                        int subtitleColumn = -1;
-                        if (mSubtitleColumn != null) {
-                            subtitleColumn = cursor.getColumnIndex(mSubtitleColumn);
-                        }
-
-                        while (cursor.moveToNext()) {
-                            Bundle path = new Bundle();
-                            if (pathColumn != -1) {
-                                path.putString(PATH_KEY, cursor.getString(pathColumn));
-                            }
-
-                            MediaDescription.Builder builder = new MediaDescription.Builder()
-                                    .setMediaId(cursor.getString(keyColumn))
-                                    .setTitle(cursor.getString(titleColumn))
-                                    .setExtras(path);
-
-                            if (subtitleColumn != -1) {
-                                builder.setSubtitle(cursor.getString(subtitleColumn));
-                            }
-
-                            MediaDescription description = builder.build();
-                            results.add(new MediaItem(description, mFlags));
-
-                            // 我们在这里重建队列，所以如果用户选择项目，那么我们可以立即使用这个队列。
-                            if (mQueue != null) {
-                                mQueue.add(new QueueItem(description, idx));
-                            }
-                            idx++;
-                        }
-                    }
-                } catch (SQLiteException e) {
-                    // 有时，如果媒体扫描尚未看到该类型的数据，则表不存在。
-                    // 例如，在第一次遇到具有流派的歌曲之前，流派表似乎根本不存在。
-                    // 如果我们遇到异常，则永远不会发送结果导致另一端挂断，这是一件坏事。
-                    // 相反，我们可以保持弹性并返回一个空列表。
-                    Log.i(TAG, "Failed to execute query " + e);
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
-                    }
+        switch (node.getType()) {
+            case MediaId.ALBUM: {
+                int album = catalog.findAlbumById(node.getId());
+                return album == MusicCatalog.NOT_FOUND
+                        ? new int[0] : catalog.getAlbumTracks().toArray(album);
+            }
+            case MediaId.ARTIST: {
+                int artist = catalog.findArtistById(node.getId());
+                return artist == MusicCatalog.NOT_FOUND
+                        ? new int[0] : catalog.getArtistTracks().toArray(artist);
+            }
+            case MediaId.GENRE: {
+                int genre = catalog.findGenreById(node.getId());
+                return genre == MusicCatalog.NOT_FOUND
+                        ? new int[0] : catalog.getGenreTracks().toArray(genre);
+            }
+            case MediaId.FOLDER:
+            case MediaId.PLAY_FOLDER: {
+                FolderTree tree = getFolderTree(catalog);
+                int folder = tree.findNode(node.getPath());
+                if (folder == FolderTree.NOT_FOUND) {
+                    return new int[0];
                 }
+                return MediaId.FOLDER.equals(node.getType())
+                        ? tree.getTracks(folder) : tree.getAllTracks(folder);
             }
-            mResult.sendResult(results);
-            return null;  // 忽略.
+            default:
+                return new int[0];
         }
+    }
 
-        //
-        // 只是示例
-        //
-        public static class Builder {
-            private Result<List<MediaItem>> mResult;
-            private String[] mColumns;
-            private String mWhereClause;
-            private String[] mWhereArgs;
-            private String mKeyColumn;
-            private String mTitleColumn;
-            private String mSubtitleColumn;
-            private Uri[] mUris;
-            private int mFlags;
-            private ContentResolver mResolver;
-            private List<QueueItem> mQueue;
-
-            public Builder setColumns(String[] columns) {
-                mColumns = columns;
-                return this;
+    /**
+     * 返回播放 mediaId 时使用的队列：歌曲所在节点中的所有歌曲，或者递归播放的文件夹中的所有歌曲。
+     * 队列只包含歌曲 ID，不为每首歌创建 QueueItem。目录还没有加载或者找不到歌曲时返回 null。
+     */
+    PlayQueue loadQueue(String mediaId) {
+        MusicCatalog catalog = mCatalog;
+        MediaId id = MediaId.parse(mediaId);
+        if (catalog == null || id == null) {
+            return null;
+        }
+        String context;
+        int[] rows;
+        if (MediaId.TRACK.equals(id.getType())) {
+            int row = catalog.findTrackById(id.getId());
+            if (row == MusicCatalog.NOT_FOUND) {
+                return null;
+            }
+            context = id.getContext();
+            rows = findTracks(catalog, MediaId.parse(context));
+            if (!contains(rows, row)) {
+                // 没有所在节点，或者节点的内容已经变化，只播放这一首。
+                context = null;
+                rows = new int[] { row };
             }
+        } else if (MediaId.PLAY_FOLDER.equals(id.getType())) {
+            context = MediaId.folder(id.getPath());
+            rows = findTracks(catalog, id);
+        } else {
+            return null;
+        }
+        if (rows.length == 0) {
+            return null;
+        }
+        long[] trackIds = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            trackIds[i] = catalog.getTrackId(rows[i]);
+        }
+        return new PlayQueue(trackIds, context, null);
+    }
 
-            public Builder setWhereClause(String whereClause) {
-                mWhereClause = whereClause;
-                return this;
+    /**
+     * 为队列中指定下标的歌曲创建会话使用的 QueueItem，队列 ID 是歌曲在队列中的下标。
+     * 目录中没有的歌曲（例如目录加载完成之前恢复的播放列表）一次批量查询 MediaStore。
+     */
+    List<QueueItem> createQueueItems(PlayQueue queue, int[] indices) {
+        MusicCatalog catalog = mCatalog;
+        long[] missing = new long[indices.length];
+        int count = 0;
+        for (int index : indices) {
+            if (findTrack(catalog, queue.getTrackId(index)) == MusicCatalog.NOT_FOUND) {
+                missing[count++] = queue.getTrackId(index);
+            }
+        }
+        if (count > 0) {
+            resolveMetadata(Arrays.copyOf(missing, count));
+        }
+        List<QueueItem> items = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            int row = findTrack(catalog, queue.getTrackId(index));
+            MediaDescription description;
+            if (row != MusicCatalog.NOT_FOUND) {
+                description = createTrackDescription(catalog, row,
+                        AlbumArtProvider.DEFAULT_BUCKET, queue.getContext());
+            } else {
+                MediaMetadata metadata = mMetadataCache.getMetadata(queue.getTrackId(index));
+                String path = queue.getPath(index);
+                description = new MediaDescription.Builder()
+                        .setMediaId(queue.getMediaId(index))
+                        .setTitle(metadata != null
+                                ? metadata.getString(MediaMetadata.METADATA_KEY_TITLE)
+                                : path != null ? new File(path).getName() : null)
+                        .setSubtitle(metadata != null
+                                ? metadata.getString(MediaMetadata.METADATA_KEY_ALBUM) : null)
+                        .build();
             }
+            items.add(new QueueItem(description, index));
+        }
+        return items;
+    }
+
+    /**
+     * 返回队列中歌曲的文件路径：先查目录，目录中没有时使用队列中保存的路径。
+     */
+    String getPath(PlayQueue queue, int index) {
+        MusicCatalog catalog = mCatalog;
+        int row = findTrack(catalog, queue.getTrackId(index));
+        return row != MusicCatalog.NOT_FOUND ? catalog.getPath(row) : queue.getPath(index);
+    }
+
+    private static int findTrack(MusicCatalog catalog, long trackId) {
+        return catalog == null ? MusicCatalog.NOT_FOUND : catalog.findTrackById(trackId);
+    }
 
-            public Builder setWhereArgs(String[] whereArgs) {
-                mWhereArgs = whereArgs;
-                return this;
+    private static boolean contains(int[] rows, int row) {
+        for (int r : rows) {
+            if (r == row) {
+                return true;
             }
+        }
+        return false;
+    }
+
+    private static MediaItem createAlbumItem(MusicCatalog catalog, int album, int artBucket) {
+        MediaDescription description = new MediaDescription.Builder()
+                .setMediaId(MediaId.album(catalog.getAlbumTableId(album)))
+                .setTitle(catalog.getAlbumTableName(album))
+                .setIconUri(AlbumArtProvider.getUri(catalog.getAlbumTableId(album), artBucket))
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+
+    private static MediaItem createBrowsableItem(String mediaId, String title) {
+        MediaDescription description = new MediaDescription.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+
+    /**
+     * 返回 options 中 {@link MediaBrowser#EXTRA_PAGE} 和 {@link MediaBrowser#EXTRA_PAGE_SIZE}
+     * 指定的 [from, to) 范围；没有分页参数时返回整个列表。
+     */
+    static int[] getPageRange(int size, Bundle options) {
+        if (options == null) {
+            return new int[] { 0, size };
+        }
+        int page = options.getInt(MediaBrowser.EXTRA_PAGE, -1);
+        int pageSize = options.getInt(MediaBrowser.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            return new int[] { 0, size };
+        }
+        long from = (long) page * pageSize;
+        if (from >= size) {
+            return new int[] { 0, 0 };
+        }
+        return new int[] { (int) from, (int) Math.min(from + pageSize, size) };
+    }
+
+    static List<MediaItem> getPage(List<MediaItem> items, Bundle options) {
+        int[] range = getPageRange(items.size(), options);
+        return new ArrayList<>(items.subList(range[0], range[1]));
+    }
 
-            public Builder setUri(Uri[] uris) {
-                mUris = uris;
-                return this;
+    /**
+     * 在查询调度器上用内存目录回答查询，只为请求的那一页创建 MediaItem。
+     * 目录还没有加载时，先 detach 结果，等加载完成后再提交。
+     */
+    private void queryCatalog(String client, String node, Result<List<MediaItem>> result,
+            Bundle options, CatalogQuery query) {
+        int[] page = getPageRange(Integer.MAX_VALUE, options);
+        String key = node + "#" + page[0] + "-" + page[1];
+        MusicCatalog catalog = mCatalog;
+        if (catalog != null) {
+            mScheduler.submit(client, key, result, () -> query.run(catalog).getPage(options));
+            return;
+        }
+        // 只在这里 detach 一次，加载完成后不能再经过 submit。
+        QueryScheduler.Reply reply = QueryScheduler.reply(result);
+        reply.detach();
+        mCatalogRequests.add(loaded -> {
+            if (loaded == null) {
+                // 加载失败（例如还没有权限）时返回空列表，下一次浏览会重新加载。
+                reply.sendResult(new ArrayList<>());
+                return;
             }
+            mScheduler.submitDetached(client, key, reply,
+                    () -> query.run(loaded).getPage(options));
+        });
+        loadCatalog();
+    }
 
-            public Builder setKeyColumn(String keyColumn) {
-                mKeyColumn = keyColumn;
-                return this;
+    /**
+     * 目录加载完成（或者加载失败）之后在 handler 的线程上执行 callback，已经加载时立即执行。
+     * 等待期间目录作为交互工作加载。可以在任意线程调用。
+     */
+    public void whenCatalogLoaded(Handler handler, Runnable callback) {
+        if (mCatalog != null) {
+            callback.run();
+            return;
+        }
+        mMainHandler.post(() -> {
+            if (mCatalog != null) {
+                handler.post(callback);
+                return;
             }
+            mCatalogRequests.add(loaded -> handler.post(callback));
+            loadCatalog();
+        });
+    }
 
-            public Builder setTitleColumn(String titleColumn) {
-                mTitleColumn = titleColumn;
-                return this;
+    /**
+     * 开始加载目录。没有请求在等待时（例如启动时预先加载）作为后台工作，播放期间受限制；
+     * 有请求在等待时作为交互工作，已经在加载时提升它的类别。
+     */
+    private void loadCatalog() {
+        int ioClass = mCatalogRequests.isEmpty() ? IoScheduler.BACKGROUND : IoScheduler.INTERACTIVE;
+        if (mCatalogLoadTask == null) {
+            mCatalogLoadTask = new CatalogLoadTask();
+            mCatalogLoadTask.executeOnExecutor(
+                    runnable -> mCatalogLoadIo = IoScheduler.get().execute(ioClass, runnable));
+        } else if (mCatalogLoadIo != null) {
+            IoScheduler.get().promote(mCatalogLoadIo, ioClass);
+        }
+    }
+
+    private void onCatalogLoaded(MusicCatalog catalog) {
+        if (catalog != null) {
+            mCatalog = catalog;
+        }
+        List<CatalogCallback> requests = new ArrayList<>(mCatalogRequests);
+        mCatalogRequests.clear();
+        for (CatalogCallback request : requests) {
+            request.onCatalogLoaded(mCatalog);
+        }
+    }
+
+    private interface CatalogQuery {
+        Listing run(MusicCatalog catalog);
+    }
+
+    private interface ItemFactory {
+        MediaItem create(int index);
+    }
+
+    /**
+     * 一个节点的全部子项。MediaItem 只在取某一页时才创建。
+     */
+    private static final class Listing {
+        private final int mSize;
+        private final ItemFactory mFactory;
+
+        Listing(int size, ItemFactory factory) {
+            mSize = size;
+            mFactory = factory;
+        }
+
+        List<MediaItem> getPage(Bundle options) {
+            int[] range = getPageRange(mSize, options);
+            List<MediaItem> items = new ArrayList<>(range[1] - range[0]);
+            for (int i = range[0]; i < range[1]; i++) {
+                items.add(mFactory.create(i));
             }
+            return items;
+        }
+    }
 
-            public Builder setSubtitleColumn(String subtitleColumn) {
-                mSubtitleColumn = subtitleColumn;
-                return this;
+    private interface CatalogCallback {
+        void onCatalogLoaded(MusicCatalog catalog);
+    }
+
+    /**
+     * 检查快照的 MediaStore 版本和代数，都一致时直接使用快照中的目录，否则重建目录并重写快照。
+     * 代数只读取两个整数列，所以过期的快照从不会发布给浏览客户端，而有效的快照仍然不需要重建。
+     */
+    private class CatalogLoadTask extends AsyncTask<Void, Void, MusicCatalog> {
+        @Override
+        protected MusicCatalog doInBackground(Void... voids) {
+            File file = getSnapshotFile();
+            CatalogSnapshot snapshot = CatalogSnapshot.read(file);
+            try {
+                // MediaStore 数据库被重建时版本会变化，此时快照中的 ID 全部失效，不能使用。
+                String version = MediaStore.getVersion(mContext);
+                if (snapshot != null && !version.equals(snapshot.getMediaStoreVersion())) {
+                    snapshot = null;
+                }
+                long generation = CatalogSnapshot.queryGeneration(mResolver);
+                if (snapshot != null && snapshot.getGeneration() == generation) {
+                    return snapshot.getCatalog();
+                }
+                MusicCatalog catalog = MusicCatalog.loadFromMediaStore(mResolver);
+                CatalogSnapshot.write(file, catalog, version, generation);
+                return catalog;
+            } catch (SecurityException e) {
+                Log.e(TAG, "Failed to load catalog " + e);
+                return null;
             }
+        }
 
-            public Builder setFlags(int flags) {
-                mFlags = flags;
-                return this;
+        @Override
+        protected void onPostExecute(MusicCatalog catalog) {
+            mCatalogLoadTask = null;
+            mCatalogLoadIo = null;
+            onCatalogLoaded(catalog);
+            if (catalog != null && mLibrarySync == null) {
+                // 之后目录只通过库同步更新。
+                mLibrarySync = new LibrarySync(mContext, getSnapshotFile(),
+                        (updated, changedTrackIds, removedTrackIds) -> {
+                            MusicCatalog previous = mCatalog;
+                            evictAlbumArt(previous, updated, changedTrackIds, removedTrackIds);
+                            mCatalog = updated;
+                            IoScheduler.get().execute(IoScheduler.BACKGROUND, () -> updateSearch(
+                                    previous, updated, changedTrackIds, removedTrackIds));
+                            mMetadataCache.invalidate(changedTrackIds);
+                            mMetadataCache.invalidate(removedTrackIds);
+                        });
+                mLibrarySync.start(catalog);
             }
+        }
+    }
 
-            public Builder setResult(Result<List<MediaItem>> result) {
-                mResult = result;
-                return this;
+    /**
+     * 歌曲变化后专辑封面可能也变了，在后台删除这些专辑的缓存缩略图。变化的歌曲可能换了专辑，
+     * 所以同步前后所在的专辑都要删除。
+     */
+    private void evictAlbumArt(MusicCatalog previous, MusicCatalog updated,
+            long[] changedTrackIds, long[] removedTrackIds) {
+        Set<Long> albumIds = new HashSet<>();
+        addAlbumIds(previous, removedTrackIds, albumIds);
+        addAlbumIds(previous, changedTrackIds, albumIds);
+        addAlbumIds(updated, changedTrackIds, albumIds);
+        if (!albumIds.isEmpty()) {
+            IoScheduler.get().execute(IoScheduler.BACKGROUND, () -> {
+                for (long albumId : albumIds) {
+                    AlbumArtProvider.evict(mContext, albumId);
+                }
+            });
+        }
+    }
+
+    private static void addAlbumIds(MusicCatalog catalog, long[] trackIds, Set<Long> albumIds) {
+        for (long trackId : trackIds) {
+            int row = catalog.findTrackById(trackId);
+            if (row != MusicCatalog.NOT_FOUND) {
+                albumIds.add(catalog.getAlbumId(row));
             }
+        }
+    }
+
+    /**
+     * 返回内存目录估算的堆占用（字节），目录还没有加载时返回 0。
+     */
+    public long getCatalogSizeBytes() {
+        MusicCatalog catalog = mCatalog;
+        return catalog == null ? 0 : catalog.getEstimatedSizeBytes();
+    }
+
+    /**
+     * 返回歌曲的元数据，先查缓存和内存目录。
+     */
+    public MediaMetadata getMetadata(long trackId) {
+        MediaMetadata metadata = mMetadataCache.getMetadata(trackId);
+        if (metadata == null) {
+            resolveMetadata(new long[] { trackId });
+            metadata = mMetadataCache.getMetadata(trackId);
+        }
+        return metadata != null ? metadata : new MediaMetadata.Builder().build();
+    }
 
-            public Builder setResolver(ContentResolver resolver) {
-                mResolver = resolver;
-                return this;
+    /**
+     * 在后台线程上解析一批歌曲（例如当前播放位置附近的队列项）的元数据，
+     * 使之后在播放线程上切歌时可以直接命中缓存。
+     */
+    public void prefetchMetadata(long[] trackIds) {
+        IoScheduler.get().execute(IoScheduler.BACKGROUND, () -> resolveMetadata(trackIds));
+    }
+
+    /**
+     * 解析缓存中没有的歌曲：先查内存目录，剩下的每个卷只用一次 IN (...) 查询。
+     */
+    private void resolveMetadata(long[] trackIds) {
+        MusicCatalog catalog = mCatalog;
+        List<String> internalIds = new ArrayList<>();
+        List<String> externalIds = new ArrayList<>();
+        for (long trackId : trackIds) {
+            if (mMetadataCache.getMetadata(trackId) != null) {
+                continue;
+            }
+            int row = findTrack(catalog, trackId);
+            if (row != MusicCatalog.NOT_FOUND) {
+                cacheMetadata(catalog.getTrackRow(row));
+            } else if (MusicCatalog.isInternal(trackId)) {
+                internalIds.add(String.valueOf(MusicCatalog.toMediaStoreId(trackId)));
+            } else {
+                externalIds.add(String.valueOf(trackId));
             }
+        }
+        queryMetadata(true, internalIds);
+        queryMetadata(false, externalIds);
+    }
 
-            public Builder setQueue(List<QueueItem> queue) {
-                mQueue = queue;
-                return this;
+    private void queryMetadata(boolean internal, List<String> ids) {
+        for (TrackRow row : queryTracksIn(internal, AudioColumns._ID, ids)) {
+            cacheMetadata(row);
+        }
+    }
+
+    /**
+     * 查询一个卷中 column 的值在 values 中的歌曲。
+     */
+    private List<TrackRow> queryTracksIn(boolean internal, String column, List<String> values) {
+        List<TrackRow> rows = new ArrayList<>();
+        // SQLite 限制了一条语句中参数的数量。
+        for (int start = 0; start < values.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk =
+                    values.subList(start, Math.min(values.size(), start + MAX_QUERY_ARGS));
+            StringBuilder selection = new StringBuilder(column).append(" IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
             }
+            selection.append(')');
+            rows.addAll(MusicCatalog.queryTracks(mResolver, internal,
+                    selection.toString(), chunk.toArray(new String[chunk.size()])));
+        }
+        return rows;
+    }
 
-            public QueryTask build() {
-                if (mUris == null || mKeyColumn == null || mResolver == null ||
-                        mResult == null || mTitleColumn == null) {
-                    throw new IllegalStateException(
-                            "uri, keyColumn, resolver, result and titleColumn are required.");
+    /**
+     * 把旧版本保存的播放列表中的歌曲解析为歌曲 ID，只在升级后第一次恢复时调用一次。
+     * 旧版本以 TITLE_KEY 作为媒体 ID，同时保存了路径：先按路径（DATA）查找，路径变了的歌曲
+     * 再按 TITLE_KEY 查找。找不到的歌曲为 {@link #NO_TRACK}。会阻塞，不依赖内存目录。
+     */
+    long[] resolveLegacyTracks(String[] paths, String[] titleKeys) {
+        long[] trackIds = new long[paths.length];
+        Arrays.fill(trackIds, NO_TRACK);
+        Map<String, Long> byPath = new HashMap<>();
+        for (boolean internal : new boolean[] { true, false }) {
+            for (TrackRow row : queryTracksIn(internal, AudioColumns.DATA, Arrays.asList(paths))) {
+                byPath.put(row.path, row.id);
+                cacheMetadata(row);
+            }
+        }
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < paths.length; i++) {
+            Long id = byPath.get(paths[i]);
+            if (id != null) {
+                trackIds[i] = id;
+            } else if (titleKeys[i] != null) {
+                missing.add(titleKeys[i]);
+            }
+        }
+        if (missing.isEmpty()) {
+            return trackIds;
+        }
+        Map<String, Long> byTitleKey = new HashMap<>();
+        for (boolean internal : new boolean[] { true, false }) {
+            for (TrackRow row : queryTracksIn(internal, AudioColumns.TITLE_KEY, missing)) {
+                // 标题相同的歌曲取第一首。
+                if (!byTitleKey.containsKey(row.titleKey)) {
+                    byTitleKey.put(row.titleKey, row.id);
+                    cacheMetadata(row);
                 }
-                return new QueryTask(this);
             }
         }
+        for (int i = 0; i < paths.length; i++) {
+            Long id = trackIds[i] == NO_TRACK ? byTitleKey.get(titleKeys[i]) : null;
+            if (id != null) {
+                trackIds[i] = id;
+            }
+        }
+        return trackIds;
+    }
+
+    private MediaMetadata cacheMetadata(TrackRow row) {
+        MediaMetadata metadata = new MediaMetadata.Builder()
+                .putString(MediaMetadata.METADATA_KEY_TITLE, row.title)
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, row.artist)
+                .putString(MediaMetadata.METADATA_KEY_ALBUM, row.album)
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, row.duration)
+                .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, getAlbumArtUri(row.albumId))
+                .build();
+        mMetadataCache.putMetadata(row.id, metadata);
+        return metadata;
+    }
+
+    /**
+     * 返回正在播放界面使用的专辑封面 URI（最大档位的缩略图），封面不存在时返回 null。
+     * 是否存在的结果按专辑缓存。
+     */
+    private String getAlbumArtUri(long albumId) {
+        // MediaStore 只为外部存储提供专辑封面。
+        if (MusicCatalog.isInternal(albumId)) {
+            return null;
+        }
+        Uri albumArtUri = ContentUris.withAppendedId(ART_BASE_URI, albumId);
+        Boolean exists = mMetadataCache.hasAlbumArt(albumId);
+        if (exists == null) {
+            try (InputStream dummy = mResolver.openInputStream(albumArtUri)) {
+                exists = dummy != null;
+            } catch (IOException | SecurityException e) {
+                exists = false;
+            }
+            mMetadataCache.putAlbumArt(albumId, exists);
+        }
+        if (!exists) {
+            return null;
+        }
+        return AlbumArtProvider.getUri(albumId, AlbumArtProvider.LARGEST_BUCKET).toString();
+    }
+
+    /**
+     * 歌曲的描述不带 extras：媒体 ID 中有歌曲 ID，播放时路径从目录中查找。
+     */
+    private static MediaDescription createTrackDescription(MusicCatalog catalog, int row,
+            int artBucket, String context) {
+        return new MediaDescription.Builder()
+                .setMediaId(MediaId.track(catalog.getTrackId(row), context))
+                .setTitle(catalog.getTitle(row))
+                .setSubtitle(catalog.getAlbum(row))
+                .setIconUri(AlbumArtProvider.getUri(catalog.getAlbumId(row), artBucket))
+                .build();
     }
 }
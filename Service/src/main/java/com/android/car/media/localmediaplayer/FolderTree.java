@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 由目录中歌曲的路径构建的文件夹树（按路径分量组织的 trie）。
+ *
+ * 歌曲按树的先序排列在 mTracks 中：每个节点先是直接包含的歌曲，然后依次是各个子文件夹，
+ * 所以一个文件夹（包括所有子文件夹）中的歌曲是 mTracks 中连续的一段，递归播放只需要复制这一段。
+ */
+final class FolderTree {
+    static final int NOT_FOUND = -1;
+
+    static final int ROOT = 0;
+
+    private final String[] mNames;
+    private final int[] mParents;
+    // 每个节点的子文件夹，按名称排序。
+    private final PostingLists mChildren;
+    // 节点在 mTracks 中的范围：[mStart, mDirectEnd) 是直接包含的歌曲，[mStart, mEnd) 是整个子树。
+    private final int[] mStart;
+    private final int[] mDirectEnd;
+    private final int[] mEnd;
+    private final int[] mTracks;
+    // 浏览的起点：从根开始跳过只有一个子文件夹、没有歌曲的节点（例如 /storage/emulated/0）。
+    private final int mTop;
+
+    private FolderTree(String[] names, int[] parents, PostingLists children, int[] start,
+            int[] directEnd, int[] end, int[] tracks) {
+        mNames = names;
+        mParents = parents;
+        mChildren = children;
+        mStart = start;
+        mDirectEnd = directEnd;
+        mEnd = end;
+        mTracks = tracks;
+        int top = ROOT;
+        while (mChildren.size(top) == 1 && mDirectEnd[top] == mStart[top]) {
+            top = mChildren.get(top, 0);
+        }
+        mTop = top;
+    }
+
+    static FolderTree build(MusicCatalog catalog) {
+        // 每个目录编码对应一个节点，中间的路径分量也各有一个节点。
+        List<String> names = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        HashMap<String, Integer> nodesByPath = new HashMap<>();
+        names.add("");
+        parents.add(NOT_FOUND);
+        int[] dirNodes = new int[catalog.getDirectoryCount()];
+        for (int code = 0; code < dirNodes.length; code++) {
+            int node = ROOT;
+            String dir = catalog.getDirectory(code);
+            int pos = 0;
+            while (dir != null && pos < dir.length()) {
+                int slash = dir.indexOf(File.separatorChar, pos);
+                if (slash < 0) {
+                    slash = dir.length();
+                }
+                if (slash > pos) {
+                    String prefix = dir.substring(0, slash);
+                    Integer child = nodesByPath.get(prefix);
+                    if (child == null) {
+                        child = names.size();
+                        names.add(dir.substring(pos, slash));
+                        parents.add(node);
+                        nodesByPath.put(prefix, child);
+                    }
+                    node = child;
+                }
+                pos = slash + 1;
+            }
+            dirNodes[code] = node;
+        }
+
+        int nodeCount = names.size();
+        String[] nameArray = names.toArray(new String[nodeCount]);
+        int[] parentArray = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            parentArray[i] = parents.get(i);
+        }
+
+        // 先按名称排序，计数排序是稳定的，所以每个节点的子文件夹也按名称排列。
+        Integer[] byName = new Integer[nodeCount - 1];
+        for (int i = 0; i < byName.length; i++) {
+            byName[i] = i + 1;
+        }
+        Arrays.sort(byName, (a, b) -> {
+            int result = nameArray[a].compareToIgnoreCase(nameArray[b]);
+            return result != 0 ? result : nameArray[a].compareTo(nameArray[b]);
+        });
+        int[] childParents = new int[byName.length];
+        int[] childNodes = new int[byName.length];
+        for (int i = 0; i < byName.length; i++) {
+            childNodes[i] = byName[i];
+            childParents[i] = parentArray[byName[i]];
+        }
+        PostingLists children = PostingLists.build(nodeCount, childParents, childNodes,
+                byName.length);
+
+        // 目录中的歌曲按标题排序，所以每个文件夹直接包含的歌曲也按标题排列。
+        // 路径为空或者不含目录的歌曲不属于任何文件夹，不放进树中。
+        int[] trackNodes = new int[catalog.getTrackCount()];
+        int[] rows = new int[trackNodes.length];
+        int trackCount = 0;
+        for (int row = 0; row < trackNodes.length; row++) {
+            int code = catalog.getDirectoryCode(row);
+            if (code != StringDictionary.NO_CODE) {
+                trackNodes[trackCount] = dirNodes[code];
+                rows[trackCount++] = row;
+            }
+        }
+        PostingLists direct = PostingLists.build(nodeCount, trackNodes, rows, trackCount);
+
+        // 先序遍历，依次排列每个节点直接包含的歌曲。
+        int[] order = new int[nodeCount];
+        int[] stack = new int[nodeCount];
+        int depth = 0;
+        int visited = 0;
+        stack[depth++] = ROOT;
+        while (depth > 0) {
+            int node = stack[--depth];
+            order[visited++] = node;
+            for (int i = children.size(node) - 1; i >= 0; i--) {
+                stack[depth++] = children.get(node, i);
+            }
+        }
+        int[] start = new int[nodeCount];
+        int[] directEnd = new int[nodeCount];
+        int[] tracks = new int[trackCount];
+        int pos = 0;
+        for (int i = 0; i < visited; i++) {
+            int node = order[i];
+            start[node] = pos;
+            for (int j = 0; j < direct.size(node); j++) {
+                tracks[pos++] = direct.get(node, j);
+            }
+            directEnd[node] = pos;
+        }
+        // 逆先序累加子树中的歌曲数。
+        int[] end = Arrays.copyOf(directEnd, nodeCount);
+        for (int i = visited - 1; i > 0; i--) {
+            int node = order[i];
+            int parent = parentArray[node];
+            end[parent] = Math.max(end[parent], end[node]);
+        }
+        return new FolderTree(nameArray, parentArray, children, start, directEnd, end, tracks);
+    }
+
+    /**
+     * 返回浏览文件夹时的第一层节点。
+     */
+    int getTop() {
+        return mTop;
+    }
+
+    /**
+     * 按完整路径查找节点，逐级在子文件夹中二分查找。
+     */
+    int findNode(String path) {
+        int node = ROOT;
+        int pos = 0;
+        while (pos < path.length()) {
+            int slash = path.indexOf(File.separatorChar, pos);
+            if (slash < 0) {
+                slash = path.length();
+            }
+            if (slash > pos) {
+                node = findChild(node, path.substring(pos, slash));
+                if (node == NOT_FOUND) {
+                    return NOT_FOUND;
+                }
+            }
+            pos = slash + 1;
+        }
+        return node;
+    }
+
+    private int findChild(int node, String name) {
+        int low = 0;
+        int high = mChildren.size(node) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            String midName = mNames[mChildren.get(node, mid)];
+            int result = midName.compareToIgnoreCase(name);
+            if (result == 0) {
+                result = midName.compareTo(name);
+            }
+            if (result < 0) {
+                low = mid + 1;
+            } else if (result > 0) {
+                high = mid - 1;
+            } else {
+                return mChildren.get(node, mid);
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    int getNodeCount() {
+        return mNames.length;
+    }
+
+    String getName(int node) {
+        return mNames[node];
+    }
+
+    String getPath(int node) {
+        if (node == ROOT) {
+            return File.separator;
+        }
+        StringBuilder path = new StringBuilder();
+        for (int n = node; n != ROOT; n = mParents[n]) {
+            path.insert(0, mNames[n]).insert(0, File.separatorChar);
+        }
+        return path.toString();
+    }
+
+    int getChildCount(int node) {
+        return mChildren.size(node);
+    }
+
+    int getChild(int node, int i) {
+        return mChildren.get(node, i);
+    }
+
+    /**
+     * 返回文件夹直接包含的歌曲的目录行号。
+     */
+    int[] getTracks(int node) {
+        return Arrays.copyOfRange(mTracks, mStart[node], mDirectEnd[node]);
+    }
+
+    /**
+     * 返回文件夹及其所有子文件夹中的歌曲的目录行号。
+     */
+    int[] getAllTracks(int node) {
+        return Arrays.copyOfRange(mTracks, mStart[node], mEnd[node]);
+    }
+
+    int getAllTrackCount(int node) {
+        return mEnd[node] - mStart[node];
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * 进程内所有存储访问的调度器，按优先级分为三类：
+ *
+ * <ul>
+ * <li>{@link #PLAYBACK}：播放器的预读，有自己的线程，按提交顺序执行，从不等待其他类。</li>
+ * <li>{@link #INTERACTIVE}：用户正在等待的浏览查询、搜索和构建队列，工作线程空闲时最先执行。</li>
+ * <li>{@link #BACKGROUND}：目录加载、库同步、索引更新等，同时最多执行一个。</li>
+ * </ul>
+ *
+ * 正在播放或准备时，后台工作受令牌桶限制：每执行一个后台任务消耗一个令牌，扫描整个表的后台工作
+ * 每读取 {@link #ROWS_PER_TOKEN} 行调用一次 {@link #throttle}，再消耗一个令牌。令牌以
+ * {@link #BACKGROUND_TOKENS_PER_SECOND} 的速度补充，所以后台的读取速度是有上限的，
+ * 在 U 盘上重新扫描文件夹时，播放器的读取不会被挤掉。暂停或停止后不再限制。
+ */
+final class IoScheduler {
+    private static final String TAG = "LMBIoScheduler";
+
+    static final int PLAYBACK = 0;
+    static final int INTERACTIVE = 1;
+    static final int BACKGROUND = 2;
+    private static final String[] CLASS_NAMES = { "playback", "interactive", "background" };
+
+    // 交互和后台共用的工作线程，后台最多占用一个，所以浏览查询始终至少有两个线程。
+    private static final int WORKERS = 3;
+    private static final int MAX_BACKGROUND_RUNNING = 1;
+    private static final double BACKGROUND_TOKENS_PER_SECOND = 4;
+    private static final double BACKGROUND_BURST = 4;
+    // 扫描游标时每读取这么多行调用一次 throttle。
+    static final int ROWS_PER_TOKEN = 256;
+
+    private static final IoScheduler sInstance = new IoScheduler(SystemClock::elapsedRealtime);
+
+    static IoScheduler get() {
+        return sInstance;
+    }
+
+    // 令牌桶和统计使用的时钟，测试中可以替换。
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    private final Clock mClock;
+    private final Object mLock = new Object();
+    // 当前线程正在执行的任务，不是调度器的线程时为 null（除非用 markBackgroundThread 标记过）。
+    private final ThreadLocal<Task> mCurrentTask = new ThreadLocal<>();
+    // 以下字段由 mLock 保护。
+    private final ArrayDeque<Task> mPlaybackQueue = new ArrayDeque<>();
+    private final ArrayDeque<Task> mInteractiveQueue = new ArrayDeque<>();
+    private final ArrayDeque<Task> mBackgroundQueue = new ArrayDeque<>();
+    private final Stats[] mStats = { new Stats(), new Stats(), new Stats() };
+    private int mBackgroundRunning;
+    private boolean mPlaybackActive;
+    private double mTokens = BACKGROUND_BURST;
+    private long mTokensTime;
+    private long mThrottled;
+    private long mThrottledMs;
+
+    IoScheduler(Clock clock) {
+        mClock = clock;
+        mTokensTime = clock.elapsedRealtime();
+        new Thread(this::runPlayback, "LMBIoPlayback").start();
+        for (int i = 0; i < WORKERS; i++) {
+            new Thread(this::runWorker, "LMBIoWorker" + i).start();
+        }
+    }
+
+    /**
+     * 提交一个任务，返回的 Task 可以用于 {@link #promote}。
+     */
+    Task execute(int ioClass, Runnable runnable) {
+        Task task = new Task(ioClass, runnable, mClock.elapsedRealtime());
+        synchronized (mLock) {
+            mStats[ioClass].mSubmitted++;
+            getQueueLocked(ioClass).add(task);
+            mLock.notifyAll();
+        }
+        return task;
+    }
+
+    /**
+     * 把任务提升到优先级更高的 ioClass，例如用户开始等待一个后台任务的结果时。
+     * 还在排队的任务移到新的队列；已经开始的任务之后调用 {@link #throttle} 不再受限制。
+     */
+    void promote(Task task, int ioClass) {
+        synchronized (mLock) {
+            // 类别的数值越小优先级越高。
+            if (task.mClass <= ioClass) {
+                return;
+            }
+            if (getQueueLocked(task.mClass).remove(task)) {
+                getQueueLocked(ioClass).add(task);
+            }
+            mStats[task.mClass].mSubmitted--;
+            mStats[ioClass].mSubmitted++;
+            task.mClass = ioClass;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * 播放器开始播放或准备时传入 true，暂停、停止后传入 false。
+     */
+    void setPlaybackActive(boolean active) {
+        synchronized (mLock) {
+            if (mPlaybackActive == active) {
+                return;
+            }
+            refillLocked();
+            mPlaybackActive = active;
+            mLock.notifyAll();
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Playback " + (active ? "active" : "inactive"));
+        }
+    }
+
+    /**
+     * 在后台工作的每一批读取之前调用，播放期间令牌用完时阻塞，直到有令牌或者不再播放。
+     * 只限制后台任务和标记过的后台线程，其他线程（例如播放线程同步查询元数据时）调用时
+     * 立即返回，所以同一段扫描代码可以同时用于各类工作。
+     */
+    void throttle() {
+        Task current = mCurrentTask.get();
+        if (current == null || current.mClass != BACKGROUND) {
+            return;
+        }
+        long begin = mClock.elapsedRealtime();
+        boolean waited = false;
+        synchronized (mLock) {
+            try {
+                long delay;
+                while ((delay = takeTokenLocked()) > 0) {
+                    waited = true;
+                    mLock.wait(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (waited) {
+                mThrottled++;
+                mThrottledMs += mClock.elapsedRealtime() - begin;
+            }
+        }
+    }
+
+    /**
+     * 把当前线程标记为后台工作线程，用于不在调度器上运行的后台工作（例如库同步的线程），
+     * 之后这个线程调用 {@link #throttle} 时受限制。
+     */
+    void markBackgroundThread() {
+        mCurrentTask.set(new Task(BACKGROUND, null, mClock.elapsedRealtime()));
+    }
+
+    private ArrayDeque<Task> getQueueLocked(int ioClass) {
+        switch (ioClass) {
+            case PLAYBACK:
+                return mPlaybackQueue;
+            case INTERACTIVE:
+                return mInteractiveQueue;
+            default:
+                return mBackgroundQueue;
+        }
+    }
+
+    private void refillLocked() {
+        long now = mClock.elapsedRealtime();
+        mTokens = Math.min(BACKGROUND_BURST,
+                mTokens + (now - mTokensTime) * BACKGROUND_TOKENS_PER_SECOND / 1000);
+        mTokensTime = now;
+    }
+
+    /**
+     * 取一个后台令牌，成功时返回 0，否则返回补充下一个令牌还需要的毫秒数。
+     */
+    private long takeTokenLocked() {
+        if (!mPlaybackActive) {
+            return 0;
+        }
+        refillLocked();
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - mTokens) * 1000 / BACKGROUND_TOKENS_PER_SECOND));
+    }
+
+    private void runPlayback() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        while (true) {
+            Task task;
+            synchronized (mLock) {
+                while (mPlaybackQueue.isEmpty()) {
+                    waitLocked(0);
+                }
+                task = mPlaybackQueue.poll();
+            }
+            run(task);
+        }
+    }
+
+    private void runWorker() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Task task;
+            // 任务执行期间可能被提升，所以单独记录是否占用了后台的名额。
+            boolean background = false;
+            synchronized (mLock) {
+                while ((task = mInteractiveQueue.poll()) == null) {
+                    long delay = 0;
+                    if (!mBackgroundQueue.isEmpty()
+                            && mBackgroundRunning < MAX_BACKGROUND_RUNNING) {
+                        delay = takeTokenLocked();
+                        if (delay == 0) {
+                            task = mBackgroundQueue.poll();
+                            mBackgroundRunning++;
+                            background = true;
+                            break;
+                        }
+                    }
+                    waitLocked(delay);
+                }
+            }
+            try {
+                run(task);
+            } finally {
+                if (background) {
+                    synchronized (mLock) {
+                        mBackgroundRunning--;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void waitLocked(long timeoutMs) {
+        try {
+            mLock.wait(timeoutMs);
+        } catch (InterruptedException e) {
+            // 调度器线程不会被中断，继续等待。
+        }
+    }
+
+    private void run(Task task) {
+        long start = mClock.elapsedRealtime();
+        mCurrentTask.set(task);
+        try {
+            task.mRunnable.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Uncaught exception in " + CLASS_NAMES[task.mClass] + " task", e);
+        } finally {
+            mCurrentTask.set(null);
+        }
+        long end = mClock.elapsedRealtime();
+        synchronized (mLock) {
+            mStats[task.mClass].add(start - task.mSubmitTime, end - start);
+        }
+    }
+
+    /**
+     * 输出每一类的排队时间、执行时间和后台限流的统计。
+     */
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("  IoScheduler playbackActive=" + mPlaybackActive
+                    + " tokens=" + String.format("%.1f", mTokens)
+                    + " throttled=" + mThrottled + " throttledMs=" + mThrottledMs);
+            for (int i = 0; i < mStats.length; i++) {
+                writer.println("    " + CLASS_NAMES[i] + ": pending="
+                        + getQueueLocked(i).size() + " " + mStats[i]);
+            }
+        }
+    }
+
+    static final class Task {
+        // 由 mLock 保护写入，throttle 在执行任务的线程上不加锁读取。
+        volatile int mClass;
+        final Runnable mRunnable;
+        final long mSubmitTime;
+
+        Task(int ioClass, Runnable runnable, long submitTime) {
+            mClass = ioClass;
+            mRunnable = runnable;
+            mSubmitTime = submitTime;
+        }
+    }
+
+    private static final class Stats {
+        long mSubmitted;
+        long mCompleted;
+        long mTotalWaitMs;
+        long mMaxWaitMs;
+        long mTotalRunMs;
+        long mMaxRunMs;
+
+        void add(long waitMs, long runMs) {
+            mCompleted++;
+            mTotalWaitMs += waitMs;
+            mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+            mTotalRunMs += runMs;
+            mMaxRunMs = Math.max(mMaxRunMs, runMs);
+        }
+
+        @Override
+        public String toString() {
+            long n = Math.max(1, mCompleted);
+            return "submitted=" + mSubmitted + " completed=" + mCompleted
+                    + " avgWaitMs=" + (mTotalWaitMs / n) + " maxWaitMs=" + mMaxWaitMs
+                    + " avgRunMs=" + (mTotalRunMs / n) + " maxRunMs=" + mMaxRunMs;
+        }
+    }
+}
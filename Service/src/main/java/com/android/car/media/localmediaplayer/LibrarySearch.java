@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 整个音乐库的搜索索引，由几个 {@link SearchIndex} 段组成。
+ *
+ * 歌曲数量大，所以歌曲段增量更新：库变化时，变化和删除的歌曲加入基础段的删除集合，
+ * 变化的歌曲重新写进一个小的增量段；增量段变大之后再整体重建。专辑、艺术家、流派和文件夹的数量小，
+ * 每次都重建。每次更新都返回新的实例，正在进行的查询不受影响。
+ */
+final class LibrarySearch {
+    private static final String TAG = "LMBSearch";
+
+    // 增量段超过这么多歌曲，或者超过基础段的四分之一时，整体重建歌曲段。
+    private static final int MAX_DELTA_TRACKS = 5000;
+
+    private final MusicCatalog mCatalog;
+    private final SearchIndex mTracks;
+    // 基础段中已经失效的歌曲。
+    private final Set<Long> mDeleted;
+    private final SearchIndex mDelta;
+    private final Set<Long> mDeltaIds;
+    private final SearchIndex mOthers;
+
+    private LibrarySearch(MusicCatalog catalog, SearchIndex tracks, Set<Long> deleted,
+            SearchIndex delta, Set<Long> deltaIds, SearchIndex others) {
+        mCatalog = catalog;
+        mTracks = tracks;
+        mDeleted = deleted;
+        mDelta = delta;
+        mDeltaIds = deltaIds;
+        mOthers = others;
+    }
+
+    /**
+     * 返回这个索引对应的目录。
+     */
+    MusicCatalog getCatalog() {
+        return mCatalog;
+    }
+
+    static LibrarySearch build(MusicCatalog catalog, FolderTree folders) {
+        long start = System.currentTimeMillis();
+        SearchIndex.Builder tracks = new SearchIndex.Builder();
+        for (int row = 0; row < catalog.getTrackCount(); row++) {
+            addTrack(tracks, catalog, row);
+        }
+        LibrarySearch search = new LibrarySearch(catalog, tracks.build(),
+                Collections.<Long>emptySet(), SearchIndex.EMPTY, Collections.<Long>emptySet(),
+                buildOthers(catalog, folders));
+        Log.i(TAG, "Indexed " + catalog.getTrackCount() + " tracks in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return search;
+    }
+
+    /**
+     * 在新的目录上应用一次同步的变化，返回新的索引。
+     */
+    LibrarySearch update(MusicCatalog catalog, FolderTree folders, long[] changedTrackIds,
+            long[] removedTrackIds) {
+        Set<Long> deltaIds = new HashSet<>(mDeltaIds);
+        Set<Long> deleted = new HashSet<>(mDeleted);
+        for (long id : changedTrackIds) {
+            deltaIds.add(id);
+            deleted.add(id);
+        }
+        for (long id : removedTrackIds) {
+            deltaIds.remove(id);
+            deleted.add(id);
+        }
+        if (deltaIds.size() > MAX_DELTA_TRACKS || deltaIds.size() > mTracks.size() / 4) {
+            return build(catalog, folders);
+        }
+        SearchIndex.Builder delta = new SearchIndex.Builder();
+        for (long id : deltaIds) {
+            int row = catalog.findTrackById(id);
+            if (row != MusicCatalog.NOT_FOUND) {
+                addTrack(delta, catalog, row);
+            }
+        }
+        return new LibrarySearch(catalog, mTracks, deleted, delta.build(), deltaIds,
+                buildOthers(catalog, folders));
+    }
+
+    /**
+     * 返回得分最高的 limit 个结果。
+     */
+    List<SearchIndex.Hit> search(String query, int limit) {
+        String[] tokens = SearchIndex.tokenize(query);
+        List<SearchIndex.Hit> hits = new ArrayList<>();
+        mTracks.search(tokens, mDeleted, limit, hits);
+        mDelta.search(tokens, null, limit, hits);
+        mOthers.search(tokens, null, limit, hits);
+        Collections.sort(hits, (l, r) -> Float.compare(r.score, l.score));
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    /**
+     * 歌曲按标题和艺术家建索引，所以 "creep radiohead" 也能找到歌曲。
+     */
+    private static void addTrack(SearchIndex.Builder builder, MusicCatalog catalog, int row) {
+        builder.add(SearchIndex.TYPE_TRACK, catalog.getTrackId(row), null,
+                join(catalog.getTitle(row), catalog.getArtist(row)));
+    }
+
+    private static String join(String first, String second) {
+        if (first == null) {
+            return second;
+        }
+        return second == null ? first : first + " " + second;
+    }
+
+    private static SearchIndex buildOthers(MusicCatalog catalog, FolderTree folders) {
+        SearchIndex.Builder builder = new SearchIndex.Builder();
+        for (int artist = 0; artist < catalog.getArtistCount(); artist++) {
+            builder.add(SearchIndex.TYPE_ARTIST, catalog.getArtistTableId(artist), null,
+                    catalog.getArtistTableName(artist));
+        }
+        PostingLists albumTracks = catalog.getAlbumTracks();
+        for (int album = 0; album < catalog.getAlbumCount(); album++) {
+            String artist = albumTracks.size(album) > 0
+                    ? catalog.getArtist(albumTracks.get(album, 0)) : null;
+            builder.add(SearchIndex.TYPE_ALBUM, catalog.getAlbumTableId(album), null,
+                    join(catalog.getAlbumTableName(album), artist));
+        }
+        for (int genre = 0; genre < catalog.getGenreCount(); genre++) {
+            builder.add(SearchIndex.TYPE_GENRE, catalog.getGenreTableId(genre), null,
+                    catalog.getGenreTableName(genre));
+        }
+        for (int node = 0; node < folders.getNodeCount(); node++) {
+            if (node != FolderTree.ROOT && folders.getAllTrackCount(node) > 0) {
+                builder.add(SearchIndex.TYPE_FOLDER, node, folders.getPath(node),
+                        folders.getName(node));
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.util.Log;
+
+import com.android.car.media.localmediaplayer.MusicCatalog.TrackRow;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 根据 MediaStore 的变化通知同步音乐库。
+ *
+ * 监听音频、专辑、艺术家和流派表的变化，把一段时间内的连续通知合并成一次同步，
+ * 然后只查询 _ID 或 DATE_MODIFIED 超过水位的行，并通过一次 _ID 扫描找出被删除的行，
+ * 在现有目录上应用这些变化。同步在自己的线程上进行，结果在主线程上通知 {@link Listener}。
+ *
+ * 只有读取 MediaStore 完整行的一侧限于变化的行，其余部分每次同步仍与库的大小成正比：
+ * <ul>
+ * <li>compileSdk 29 的 MediaStore 不记录删除，只能扫描两个卷的全部 _ID（只读两个整数列），
+ * 同一次扫描也给出快照的代数。</li>
+ * <li>目录是不可变的列式结构，{@link MusicCatalog#applyChanges} 会生成一个完整的新目录。</li>
+ * <li>快照整个重写，因为它由目录的列直接写出。</li>
+ * </ul>
+ * 这些都不访问音频文件本身，并且播放期间受 {@link IoScheduler} 限制。
+ */
+final class LibrarySync {
+    private static final String TAG = "LMBLibrarySync";
+
+    // 最后一次变化之后等待这么久再同步。
+    private static final long DEBOUNCE_MS = 2000;
+    // 持续不断的变化（例如扫描 U 盘）最多推迟这么久就同步一次。
+    private static final long MAX_DELAY_MS = 10000;
+
+    private static final String CHANGED_SELECTION =
+            AudioColumns._ID + " > ? OR " + AudioColumns.DATE_MODIFIED + " > ?";
+
+    private static final String[] SCAN_COLUMNS = {
+            AudioColumns._ID, AudioColumns.DATE_MODIFIED
+    };
+
+    private static final Uri[] OBSERVED_URIS = {
+            MediaStore.Audio.Media.INTERNAL_CONTENT_URI,
+            MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+            MediaStore.Audio.Albums.INTERNAL_CONTENT_URI,
+            MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+            MediaStore.Audio.Artists.INTERNAL_CONTENT_URI,
+            MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI,
+            MediaStore.Audio.Genres.INTERNAL_CONTENT_URI,
+            MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI
+    };
+
+    interface Listener {
+        /**
+         * 目录已更新。changedTrackIds 包含新增和修改的歌曲。
+         */
+        void onLibraryChanged(MusicCatalog catalog, long[] changedTrackIds,
+                long[] removedTrackIds);
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final File mSnapshotFile;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ContentObserver mObserver;
+
+    // 以下字段只在同步线程上访问。
+    private MusicCatalog mCatalog;
+    private long mFirstChangeTime;
+    private boolean mGenresChanged;
+
+    LibrarySync(Context context, File snapshotFile, Listener listener) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mSnapshotFile = snapshotFile;
+        mListener = listener;
+    }
+
+    /**
+     * 以给定目录为基准开始监听变化。
+     */
+    void start(MusicCatalog catalog) {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (uri != null && uri.getPathSegments().contains("genres")) {
+                    mGenresChanged = true;
+                }
+                scheduleSync();
+            }
+        };
+        mHandler.post(() -> {
+            // 同步在这个线程上执行，播放期间和调度器上的后台工作一样受限制。
+            IoScheduler.get().markBackgroundThread();
+            mCatalog = catalog;
+            // 目录加载完成到注册监听之间的变化也要同步。
+            scheduleSync();
+        });
+        for (Uri uri : OBSERVED_URIS) {
+            mResolver.registerContentObserver(uri, true, mObserver);
+        }
+    }
+
+    void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mResolver.unregisterContentObserver(mObserver);
+        mThread.quitSafely();
+        mThread = null;
+    }
+
+    private void scheduleSync() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstChangeTime == 0) {
+            mFirstChangeTime = now;
+        }
+        long delay = Math.min(DEBOUNCE_MS, Math.max(0, mFirstChangeTime + MAX_DELAY_MS - now));
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postDelayed(mSyncRunnable, delay);
+    }
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFirstChangeTime = 0;
+            try {
+                sync();
+            } catch (SecurityException e) {
+                Log.e(TAG, "Failed to sync library " + e);
+            }
+        }
+    };
+
+    private void sync() {
+        long start = SystemClock.uptimeMillis();
+        MusicCatalog catalog = mCatalog;
+        List<TrackRow> changed = new ArrayList<>();
+        long[][] present = new long[2][];
+        long[] stats = new long[3];
+        boolean[] volumes = { true, false };
+        for (int v = 0; v < volumes.length; v++) {
+            boolean internal = volumes[v];
+            // 每次查询之前让播放器的读取优先。
+            IoScheduler.get().throttle();
+            String[] args = {
+                    String.valueOf(catalog.getMaxMediaStoreId(internal)),
+                    String.valueOf(catalog.getMaxDateModified(internal))
+            };
+            changed.addAll(MusicCatalog.queryTracks(mResolver, internal, CHANGED_SELECTION, args));
+            IoScheduler.get().throttle();
+            present[v] = scanIds(internal, stats);
+        }
+
+        Set<Long> removed = new HashSet<>();
+        for (int row = 0; row < catalog.getTrackCount(); row++) {
+            long id = catalog.getTrackId(row);
+            long[] ids = present[MusicCatalog.isInternal(id) ? 0 : 1];
+            if (ids != null && Arrays.binarySearch(ids, MusicCatalog.toMediaStoreId(id)) < 0) {
+                removed.add(id);
+            }
+        }
+
+        boolean genresChanged = mGenresChanged;
+        mGenresChanged = false;
+        if (changed.isEmpty() && removed.isEmpty() && !genresChanged) {
+            return;
+        }
+
+        MusicCatalog.Builder genres = null;
+        if (genresChanged || !changed.isEmpty()) {
+            genres = new MusicCatalog.Builder();
+            IoScheduler.get().throttle();
+            MusicCatalog.loadGenres(mResolver, genres);
+        }
+        MusicCatalog updated = catalog.applyChanges(changed, removed, genres);
+        mCatalog = updated;
+        IoScheduler.get().throttle();
+        CatalogSnapshot.write(mSnapshotFile, updated, MediaStore.getVersion(mContext),
+                CatalogSnapshot.generation(stats[0], stats[1], stats[2]));
+
+        long[] changedIds = new long[changed.size()];
+        for (int i = 0; i < changedIds.length; i++) {
+            changedIds[i] = changed.get(i).id;
+        }
+        long[] removedIds = new long[removed.size()];
+        int i = 0;
+        for (long id : removed) {
+            removedIds[i++] = id;
+        }
+        Log.i(TAG, "Synced " + changedIds.length + " changed and " + removedIds.length
+                + " removed tracks in " + (SystemClock.uptimeMillis() - start) + "ms");
+        mMainHandler.post(() -> mListener.onLibraryChanged(updated, changedIds, removedIds));
+    }
+
+    /**
+     * 按 _ID 顺序读取一个卷中的全部 ID，同时累计计算库代数需要的统计值。
+     * 查询失败时返回 null，此时不能据此判断删除。
+     */
+    private long[] scanIds(boolean internal, long[] stats) {
+        Uri uri = internal ? MediaStore.Audio.Media.INTERNAL_CONTENT_URI
+                : MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(uri, SCAN_COLUMNS, null, null, AudioColumns._ID);
+            if (cursor == null) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            int n = 0;
+            while (cursor.moveToNext() && n < ids.length) {
+                ids[n++] = cursor.getLong(0);
+                stats[0]++;
+                stats[1] += ids[n - 1];
+                stats[2] = Math.max(stats[2], cursor.getLong(1));
+                if (n % IoScheduler.ROWS_PER_TOKEN == 0) {
+                    IoScheduler.get().throttle();
+                }
+            }
+            return n == ids.length ? ids : Arrays.copyOf(ids, n);
+        } catch (SQLiteException e) {
+            Log.i(TAG, "Failed to execute query " + e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
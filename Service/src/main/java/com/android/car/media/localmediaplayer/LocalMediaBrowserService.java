@@ -22,11 +22,18 @@ import android.content.IntentFilter;
 import android.media.MediaDescription;
 import android.media.browse.MediaBrowser;
 import android.media.session.MediaSession;
+import android.media.session.MediaSessionManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.service.media.MediaBrowserService;
 import androidx.annotation.Nullable;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,6 +41,12 @@ public class LocalMediaBrowserService extends MediaBrowserService {
     private static final String TAG = "LMBService";
     private static final String ROOT_ID = "__ROOT__";
     private static final String MEDIA_SESSION_TAG = "LOCAL_MEDIA_SESSION";
+    private static final String DEFAULT_CLIENT_ID = "default";
+    // 与 MediaConstants.EXTRA_MEDIA_ART_SIZE_HINT_PIXELS 相同，客户端在根提示中给出期望的封面尺寸。
+    private static final String EXTRA_MEDIA_ART_SIZE_HINT_PIXELS =
+            "android.media.extras.MEDIA_ART_SIZE_HINT_PIXELS";
+    // 与 MediaConstants.BROWSER_SERVICE_EXTRAS_KEY_SEARCH_SUPPORTED 相同，告诉客户端可以搜索。
+    private static final String EXTRA_SEARCH_SUPPORTED = "android.media.browse.SEARCH_SUPPORTED";
 
     static final String FOLDERS_ID = "__FOLDERS__";
     static final String ARTISTS_ID = "__ARTISTS__";
@@ -45,12 +58,14 @@ public class LocalMediaBrowserService extends MediaBrowserService {
     static final String ACTION_NEXT = "com.android.car.media.localmediaplayer.ACTION_NEXT";
     static final String ACTION_PREV = "com.android.car.media.localmediaplayer.ACTION_PREV";
 
-    private BrowserRoot mRoot = new BrowserRoot(ROOT_ID, null);
+    private BrowserRoot mRoot;
 
     private DataModel mDataModel;
     private Player mPlayer;
     private MediaSession mSession;
-    private String mLastCategory;
+    // 播放线程：MediaSession 回调和 Player 的所有操作都在这个线程上执行，主线程只处理浏览请求。
+    private HandlerThread mPlaybackThread;
+    private Handler mPlaybackHandler;
 
     private BroadcastReceiver mNotificationReceiver = new BroadcastReceiver() {
         @Override
@@ -60,16 +75,16 @@ public class LocalMediaBrowserService extends MediaBrowserService {
             }
             switch (intent.getAction()) {
                 case ACTION_PLAY:
-                    mPlayer.onPlay();
+                    mPlaybackHandler.post(() -> mPlayer.onPlay());
                     break;
                 case ACTION_PAUSE:
-                    mPlayer.onPause();
+                    mPlaybackHandler.post(() -> mPlayer.onPause());
                     break;
                 case ACTION_NEXT:
-                    mPlayer.onSkipToNext();
+                    mPlaybackHandler.post(() -> mPlayer.onSkipToNext());
                     break;
                 case ACTION_PREV:
-                    mPlayer.onSkipToPrevious();
+                    mPlaybackHandler.post(() -> mPlayer.onSkipToPrevious());
                     break;
                 default:
                     Log.w(TAG, "Ingoring intent with unknown action=" + intent);
@@ -116,15 +131,23 @@ public class LocalMediaBrowserService extends MediaBrowserService {
         mDataModel = new DataModel(this);
         // 创建 RootItem
         addRootItems();
+        Bundle rootExtras = new Bundle();
+        rootExtras.putBoolean(EXTRA_SEARCH_SUPPORTED, true);
+        mRoot = new BrowserRoot(ROOT_ID, rootExtras);
         // 创建 MediaSession
         mSession = new MediaSession(this, MEDIA_SESSION_TAG);
         setSessionToken(mSession.getSessionToken());
-        // 媒体播放器，同时也是 MediaSession.Callback
-        mPlayer = new Player(this, mSession, mDataModel);
-        mSession.setCallback(mPlayer);
         mSession.setFlags(MediaSession.FLAG_HANDLES_MEDIA_BUTTONS
                 | MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS);
-        mPlayer.maybeRestoreState();
+        mPlaybackThread = new HandlerThread("LMBPlayback", Process.THREAD_PRIORITY_FOREGROUND);
+        mPlaybackThread.start();
+        mPlaybackHandler = new Handler(mPlaybackThread.getLooper());
+        // 媒体播放器，同时也是 MediaSession.Callback。在播放线程上创建，MediaPlayer 的事件也发送到播放线程。
+        mPlaybackHandler.post(() -> {
+            mPlayer = new Player(this, mSession, mDataModel, mPlaybackHandler);
+            mSession.setCallback(mPlayer, mPlaybackHandler);
+            mPlayer.maybeRestoreState();
+        });
         // 广播，用于监听Notification的控制动作
         IntentFilter filter = new IntentFilter();
         filter.addAction(ACTION_PLAY);
@@ -136,50 +159,111 @@ public class LocalMediaBrowserService extends MediaBrowserService {
 
     @Override
     public void onDestroy() {
-        mPlayer.saveState();
-        mPlayer.destroy();
-        mSession.release();
+        // 等播放线程保存状态、释放播放器之后再释放会话。
+        mPlaybackHandler.post(() -> {
+            mPlayer.saveState();
+            mPlayer.destroy();
+            mSession.release();
+        });
+        mPlaybackThread.quitSafely();
+        mDataModel.destroy();
         unregisterReceiver(mNotificationReceiver);
         super.onDestroy();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("LocalMediaBrowserService");
+        writer.println("  catalogSizeBytes=" + mDataModel.getCatalogSizeBytes());
+        ReadAheadDataSource.dump(writer);
+        IoScheduler.get().dump(writer);
+    }
+
     @Nullable
     @Override
     public BrowserRoot onGetRoot(String clientName, int clientUid, Bundle rootHints) {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "onGetRoot clientName=" + clientName);
+            Log.d(TAG, "onGetRoot clientName=" + clientName + " rootHints=" + rootHints);
+        }
+        if (rootHints != null) {
+            String client = Build.VERSION.SDK_INT >= Build.VERSION_CODES.P
+                    ? getClientId(clientName, clientUid) : DEFAULT_CLIENT_ID;
+            int hint = rootHints.getInt(EXTRA_MEDIA_ART_SIZE_HINT_PIXELS, 0);
+            mDataModel.setArtSizeHint(client, hint);
         }
         return mRoot;
     }
 
+    /**
+     * 返回当前浏览客户端的标识，用于在客户端之间公平地调度查询。
+     */
+    private String getClientId() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            MediaSessionManager.RemoteUserInfo info = getCurrentBrowserInfo();
+            return getClientId(info.getPackageName(), info.getUid());
+        }
+        return DEFAULT_CLIENT_ID;
+    }
+
+    private static String getClientId(String packageName, int uid) {
+        return packageName + ":" + uid;
+    }
+
     @Override
     public void onLoadChildren(String parentId, Result<List<MediaBrowser.MediaItem>> result) {
+        onLoadChildren(parentId, result, null);
+    }
+
+    @Override
+    public void onLoadChildren(String parentId, Result<List<MediaBrowser.MediaItem>> result,
+            Bundle options) {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "onLoadChildren parentId=" + parentId);
+            Log.d(TAG, "onLoadChildren parentId=" + parentId + " options=" + options);
         }
+        String client = getClientId();
         switch (parentId) {
             case ROOT_ID:
-                result.sendResult(mRootItems);
-                mLastCategory = parentId;
-                break;
+                result.sendResult(DataModel.getPage(mRootItems, options));
+                return;
             case FOLDERS_ID:
-                mDataModel.onQueryByFolder(parentId, result);
-                mLastCategory = parentId;
-                break;
+                mDataModel.onQueryByFolder(parentId, client, result, options);
+                return;
             case ALBUMS_ID:
-                mDataModel.onQueryByAlbum(parentId, result);
-                mLastCategory = parentId;
-                break;
+                mDataModel.onQueryByAlbum(parentId, client, result, options);
+                return;
             case ARTISTS_ID:
-                mDataModel.onQueryByArtist(parentId, result);
-                mLastCategory = parentId;
-                break;
+                mDataModel.onQueryByArtist(parentId, client, result, options);
+                return;
             case GENRES_ID:
-                mDataModel.onQueryByGenre(parentId, result);
-                mLastCategory = parentId;
+                mDataModel.onQueryByGenre(parentId, client, result, options);
+                return;
+        }
+        // 其他节点的媒体 ID 本身就说明了要返回什么，与之前浏览过哪个节点无关。
+        MediaId id = MediaId.parse(parentId);
+        String type = id == null ? "" : id.getType();
+        switch (type) {
+            case MediaId.ALBUM:
+            case MediaId.GENRE:
+                mDataModel.onQueryTracks(id, parentId, client, result, options);
+                break;
+            case MediaId.ARTIST:
+                mDataModel.onQueryArtist(parentId, id.getId(), client, result, options);
+                break;
+            case MediaId.FOLDER:
+                mDataModel.onQueryFolder(parentId, id.getPath(), client, result, options);
                 break;
             default:
-                mDataModel.onQueryByKey(mLastCategory, parentId, result);
+                Log.w(TAG, "Unknown parentId " + parentId);
+                result.sendResult(null);
+        }
+    }
+
+    @Override
+    public void onSearch(String query, Bundle extras,
+            Result<List<MediaBrowser.MediaItem>> result) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onSearch query=" + query + " extras=" + extras);
         }
+        mDataModel.onSearch(query, getClientId(), result, extras);
     }
 }
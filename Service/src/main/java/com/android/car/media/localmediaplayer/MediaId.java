@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+/**
+ * 结构化的媒体 ID，格式为 &lt;类型&gt;:&lt;值&gt;。
+ *
+ * <ul>
+ * <li>album:&lt;专辑 ID&gt;、artist:&lt;艺术家 ID&gt;、genre:&lt;流派 ID&gt;</li>
+ * <li>folder:&lt;路径&gt;，以及递归播放整个文件夹的 playfolder:&lt;路径&gt;</li>
+ * <li>track:&lt;歌曲 ID&gt;@&lt;所在节点的媒体 ID&gt;，所在节点决定播放时的队列</li>
+ * </ul>
+ *
+ * 每个 ID 只由自己决定要返回的内容，不依赖之前浏览过哪个节点，所以任意节点都可以单独、并发地加载和缓存。
+ * 歌曲 ID 是目录中的 ID，内部存储的歌曲带有 {@link MusicCatalog#INTERNAL_FLAG}。
+ */
+final class MediaId {
+    static final String ALBUM = "album";
+    static final String ARTIST = "artist";
+    static final String GENRE = "genre";
+    static final String FOLDER = "folder";
+    static final String PLAY_FOLDER = "playfolder";
+    static final String TRACK = "track";
+
+    private static final char TYPE_SEPARATOR = ':';
+    private static final char CONTEXT_SEPARATOR = '@';
+
+    private final String mType;
+    private final long mId;
+    private final String mPath;
+    private final String mContext;
+
+    private MediaId(String type, long id, String path, String context) {
+        mType = type;
+        mId = id;
+        mPath = path;
+        mContext = context;
+    }
+
+    String getType() {
+        return mType;
+    }
+
+    /**
+     * 专辑、艺术家、流派或歌曲的 ID。
+     */
+    long getId() {
+        return mId;
+    }
+
+    /**
+     * 文件夹的路径。
+     */
+    String getPath() {
+        return mPath;
+    }
+
+    /**
+     * 歌曲所在节点的媒体 ID，没有时返回 null。
+     */
+    String getContext() {
+        return mContext;
+    }
+
+    static String album(long albumId) {
+        return ALBUM + TYPE_SEPARATOR + albumId;
+    }
+
+    static String artist(long artistId) {
+        return ARTIST + TYPE_SEPARATOR + artistId;
+    }
+
+    static String genre(long genreId) {
+        return GENRE + TYPE_SEPARATOR + genreId;
+    }
+
+    static String folder(String path) {
+        return FOLDER + TYPE_SEPARATOR + path;
+    }
+
+    static String playFolder(String path) {
+        return PLAY_FOLDER + TYPE_SEPARATOR + path;
+    }
+
+    static String track(long trackId, String context) {
+        String id = TRACK + TYPE_SEPARATOR + trackId;
+        return context == null ? id : id + CONTEXT_SEPARATOR + context;
+    }
+
+    /**
+     * 解析媒体 ID，格式不对时返回 null（例如旧版本保存的、以 TITLE_KEY 作为 ID 的播放列表）。
+     */
+    static MediaId parse(String mediaId) {
+        if (mediaId == null) {
+            return null;
+        }
+        int colon = mediaId.indexOf(TYPE_SEPARATOR);
+        if (colon < 0) {
+            return null;
+        }
+        String type = mediaId.substring(0, colon);
+        String value = mediaId.substring(colon + 1);
+        try {
+            switch (type) {
+                case ALBUM:
+                case ARTIST:
+                case GENRE:
+                    return new MediaId(type, Long.parseLong(value), null, null);
+                case FOLDER:
+                case PLAY_FOLDER:
+                    return new MediaId(type, MusicCatalog.NOT_FOUND, value, null);
+                case TRACK:
+                    // 路径中可能有 '@'，但歌曲 ID 中没有，所以取第一个。
+                    int at = value.indexOf(CONTEXT_SEPARATOR);
+                    if (at < 0) {
+                        return new MediaId(type, Long.parseLong(value), null, null);
+                    }
+                    return new MediaId(type, Long.parseLong(value.substring(0, at)), null,
+                            value.substring(at + 1));
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
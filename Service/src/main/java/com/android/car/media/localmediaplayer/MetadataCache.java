@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.media.MediaMetadata;
+import android.util.LruCache;
+
+/**
+ * 以歌曲 ID 为键的 MediaMetadata 缓存，以及以专辑 ID 为键的专辑封面是否存在的缓存。
+ * 两者都有容量上限，可以在任意线程上访问。
+ */
+final class MetadataCache {
+    private static final int MAX_METADATA_ENTRIES = 256;
+    private static final int MAX_ALBUM_ART_ENTRIES = 2048;
+
+    private final LruCache<Long, MediaMetadata> mMetadata =
+            new LruCache<>(MAX_METADATA_ENTRIES);
+    private final LruCache<Long, Boolean> mAlbumArt = new LruCache<>(MAX_ALBUM_ART_ENTRIES);
+
+    MediaMetadata getMetadata(long trackId) {
+        return mMetadata.get(trackId);
+    }
+
+    void putMetadata(long trackId, MediaMetadata metadata) {
+        mMetadata.put(trackId, metadata);
+    }
+
+    /**
+     * 返回专辑是否有封面，还没有检查过时返回 null。
+     */
+    Boolean hasAlbumArt(long albumId) {
+        return mAlbumArt.get(albumId);
+    }
+
+    void putAlbumArt(long albumId, boolean exists) {
+        mAlbumArt.put(albumId, exists);
+    }
+
+    /**
+     * 音乐库变化时调用。封面可能随新歌曲一起出现，所以封面缓存总是全部清除。
+     */
+    void invalidate(long[] trackIds) {
+        for (long trackId : trackIds) {
+            mMetadata.remove(trackId);
+        }
+        mAlbumArt.evictAll();
+    }
+}
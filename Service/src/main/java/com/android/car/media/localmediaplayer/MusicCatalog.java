@@ -0,0 +1,943 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 音乐库的内存列式目录。
+ *
+ * 从 MediaStore 构建一次之后只读，可以在任意线程上访问。每首歌曲是一个行号，各个属性分别保存在
+ * 原始类型数组中；艺术家、专辑、流派名称和目录路径做字典编码；专辑、艺术家、流派到歌曲的映射保存为
+ * 倒排列表。内部存储和外部存储的 _ID 会重复，所以内部存储的 ID 带有 {@link #INTERNAL_FLAG}。
+ */
+final class MusicCatalog {
+    private static final String TAG = "LMBCatalog";
+
+    static final long INTERNAL_FLAG = 1L << 62;
+    static final int NOT_FOUND = -1;
+
+    // 限制目录大小，使堆占用有上界。超出的歌曲不会出现在浏览列表中。
+    static final int MAX_TRACKS = 200000;
+
+    private static final String EXTERNAL = "external";
+    private static final String INTERNAL = "internal";
+
+    private static final String[] TRACK_COLUMNS = {
+            AudioColumns._ID,
+            AudioColumns.TITLE,
+            AudioColumns.TITLE_KEY,
+            AudioColumns.ARTIST_ID,
+            AudioColumns.ARTIST,
+            AudioColumns.ARTIST_KEY,
+            AudioColumns.ALBUM_ID,
+            AudioColumns.ALBUM,
+            AudioColumns.ALBUM_KEY,
+            AudioColumns.DURATION,
+            AudioColumns.TRACK,
+            AudioColumns.DATA,
+            AudioColumns.DATE_MODIFIED
+    };
+
+    // 歌曲列。
+    private final long[] mTrackIds;
+    private final StringColumn mTitles;
+    private final StringColumn mTitleKeys;
+    private final int[] mArtistCodes;
+    private final int[] mAlbumCodes;
+    private final long[] mArtistIds;
+    private final long[] mAlbumIds;
+    private final int[] mArtistRefs;
+    private final int[] mAlbumRefs;
+    private final int[] mDurations;
+    private final int[] mTrackNumbers;
+    private final int[] mDirCodes;
+    private final StringColumn mFileNames;
+
+    private final StringDictionary mArtistNames;
+    private final StringDictionary mAlbumNames;
+    private final StringDictionary mGenreNames;
+    private final StringDictionary mDirectories;
+
+    // 专辑表，按 ALBUM_KEY 排序。
+    private final long[] mAlbumTable;
+    private final int[] mAlbumTableNames;
+    private final String[] mAlbumTableKeys;
+    // 专辑中的歌曲按曲目号排列。
+    private final PostingLists mAlbumTracks;
+    private final HashMap<Long, Integer> mAlbumById;
+
+    // 艺术家表，按 ARTIST_KEY 排序。
+    private final long[] mArtistTable;
+    private final int[] mArtistTableNames;
+    private final String[] mArtistTableKeys;
+    // 艺术家的歌曲按专辑表的顺序排列，同一专辑内按曲目号排列。
+    private final PostingLists mArtistTracks;
+    // 艺术家 -> 专辑表中的专辑，按专辑表的顺序排列。
+    private final PostingLists mArtistAlbums;
+    private final HashMap<Long, Integer> mArtistById;
+
+    // 流派表，按名称排序。
+    private final long[] mGenreTable;
+    private final int[] mGenreTableNames;
+    private final PostingLists mGenreTracks;
+    private final HashMap<Long, Integer> mGenreById;
+
+    // 库同步的水位：{内部存储最大 _ID，内部存储最大 DATE_MODIFIED，外部存储的同样两个值}。
+    private final long[] mWatermarks;
+
+    // 按 ID 排序的索引：mSortedIds[i] 是 mRowsById[i] 这一行的 ID。
+    private final long[] mSortedIds;
+    private final int[] mRowsById;
+
+    private final long mEstimatedSizeBytes;
+
+    private MusicCatalog(Builder b, int count) {
+        mWatermarks = b.mWatermarks.clone();
+        mTrackIds = new long[count];
+        String[] titles = new String[count];
+        String[] titleKeys = new String[count];
+        mArtistCodes = new int[count];
+        mAlbumCodes = new int[count];
+        mArtistIds = new long[count];
+        mAlbumIds = new long[count];
+        mArtistRefs = new int[count];
+        mAlbumRefs = new int[count];
+        mDurations = new int[count];
+        mTrackNumbers = new int[count];
+        mDirCodes = new int[count];
+        String[] fileNames = new String[count];
+
+        StringDictionary.Builder artistNames = new StringDictionary.Builder();
+        StringDictionary.Builder albumNames = new StringDictionary.Builder();
+        StringDictionary.Builder directories = new StringDictionary.Builder();
+        HashMap<Long, Integer> albumIndex = new HashMap<>();
+        HashMap<Long, Integer> artistIndex = new HashMap<>();
+        ArrayList<TrackRow> albumFirstRows = new ArrayList<>();
+        ArrayList<TrackRow> artistFirstRows = new ArrayList<>();
+        HashMap<Long, Integer> rowById = new HashMap<>();
+
+        for (int row = 0; row < count; row++) {
+            TrackRow t = b.mRows.get(row);
+            mTrackIds[row] = t.id;
+            titles[row] = t.title;
+            titleKeys[row] = t.titleKey;
+            mArtistCodes[row] = artistNames.encode(t.artist);
+            mAlbumCodes[row] = albumNames.encode(t.album);
+            mArtistIds[row] = t.artistId;
+            mAlbumIds[row] = t.albumId;
+            mDurations[row] = t.duration;
+            mTrackNumbers[row] = t.trackNumber;
+            int slash = t.path == null ? -1 : t.path.lastIndexOf(File.separatorChar);
+            if (slash < 0) {
+                mDirCodes[row] = StringDictionary.NO_CODE;
+                fileNames[row] = t.path;
+            } else {
+                mDirCodes[row] = directories.encode(t.path.substring(0, slash));
+                fileNames[row] = t.path.substring(slash + 1);
+            }
+
+            Integer album = albumIndex.get(t.albumId);
+            if (album == null) {
+                album = albumFirstRows.size();
+                albumIndex.put(t.albumId, album);
+                albumFirstRows.add(t);
+            }
+            mAlbumRefs[row] = album;
+            Integer artist = artistIndex.get(t.artistId);
+            if (artist == null) {
+                artist = artistFirstRows.size();
+                artistIndex.put(t.artistId, artist);
+                artistFirstRows.add(t);
+            }
+            mArtistRefs[row] = artist;
+            rowById.put(t.id, row);
+        }
+
+        mTitles = StringColumn.of(titles);
+        mTitleKeys = StringColumn.of(titleKeys);
+        mFileNames = StringColumn.of(fileNames);
+        mArtistNames = artistNames.build();
+        mAlbumNames = albumNames.build();
+        mDirectories = directories.build();
+
+        // 专辑和艺术家表按 key 排序，与 MediaStore 的默认排序一致。
+        int[] albumOrder = sortedOrder(albumFirstRows,
+                (l, r) -> compareKeys(l.albumKey, r.albumKey));
+        int albumCount = albumOrder.length;
+        mAlbumTable = new long[albumCount];
+        mAlbumTableNames = new int[albumCount];
+        mAlbumTableKeys = new String[albumCount];
+        int[] albumRank = new int[albumCount];
+        for (int i = 0; i < albumCount; i++) {
+            TrackRow first = albumFirstRows.get(albumOrder[i]);
+            albumRank[albumOrder[i]] = i;
+            mAlbumTable[i] = first.albumId;
+            mAlbumTableNames[i] = mAlbumNames.lookup(first.album);
+            mAlbumTableKeys[i] = first.albumKey;
+        }
+
+        int[] artistOrder = sortedOrder(artistFirstRows,
+                (l, r) -> compareKeys(l.artistKey, r.artistKey));
+        int artistCount = artistOrder.length;
+        mArtistTable = new long[artistCount];
+        mArtistTableNames = new int[artistCount];
+        mArtistTableKeys = new String[artistCount];
+        int[] artistRank = new int[artistCount];
+        for (int i = 0; i < artistCount; i++) {
+            TrackRow first = artistFirstRows.get(artistOrder[i]);
+            artistRank[artistOrder[i]] = i;
+            mArtistTable[i] = first.artistId;
+            mArtistTableNames[i] = mArtistNames.lookup(first.artist);
+            mArtistTableKeys[i] = first.artistKey;
+        }
+
+        for (int row = 0; row < count; row++) {
+            mAlbumRefs[row] = albumRank[mAlbumRefs[row]];
+            mArtistRefs[row] = artistRank[mArtistRefs[row]];
+        }
+        // MediaStore 的 TRACK 是 碟号 * 1000 + 曲目号，所以按它排序就是按碟号、曲目号排序；
+        // 行号已经按标题排序，用作最后的比较。
+        int[] byTrack = sortedRows(count, (l, r) -> {
+            int result = Integer.compare(trackOrder(mTrackNumbers[l]),
+                    trackOrder(mTrackNumbers[r]));
+            return result != 0 ? result : Integer.compare(l, r);
+        });
+        int[] lists = new int[count];
+        for (int i = 0; i < count; i++) {
+            lists[i] = mAlbumRefs[byTrack[i]];
+        }
+        mAlbumTracks = PostingLists.build(albumCount, lists, byTrack, count);
+
+        // 依次连接各个专辑的歌曲，得到艺术家歌曲和艺术家专辑的顺序。
+        int[] byAlbum = new int[count];
+        int n = 0;
+        for (int album = 0; album < albumCount; album++) {
+            for (int i = 0; i < mAlbumTracks.size(album); i++) {
+                byAlbum[n++] = mAlbumTracks.get(album, i);
+            }
+        }
+        int[] albumLists = new int[count];
+        int[] albumValues = new int[count];
+        HashSet<Long> artistAlbumPairs = new HashSet<>();
+        int pairs = 0;
+        for (int i = 0; i < count; i++) {
+            int row = byAlbum[i];
+            lists[i] = mArtistRefs[row];
+            if (artistAlbumPairs.add((long) mArtistRefs[row] * albumCount + mAlbumRefs[row])) {
+                albumLists[pairs] = mArtistRefs[row];
+                albumValues[pairs] = mAlbumRefs[row];
+                pairs++;
+            }
+        }
+        mArtistTracks = PostingLists.build(artistCount, lists, byAlbum, count);
+        mArtistAlbums = PostingLists.build(artistCount, albumLists, albumValues, pairs);
+
+        // 流派：一首歌可以属于多个流派，所以只保存流派 -> 歌曲的倒排列表。
+        StringDictionary.Builder genreNames = new StringDictionary.Builder();
+        int[] genreOrder = sortedOrder(b.mGenres, (l, r) -> compareKeys(l.name, r.name));
+        int genreCount = genreOrder.length;
+        mGenreTable = new long[genreCount];
+        mGenreTableNames = new int[genreCount];
+        int memberCount = 0;
+        for (GenreRow genre : b.mGenres) {
+            memberCount += genre.trackIds.length;
+        }
+        int[] memberLists = new int[memberCount];
+        int[] memberRows = new int[memberCount];
+        int members = 0;
+        for (int i = 0; i < genreCount; i++) {
+            GenreRow genre = b.mGenres.get(genreOrder[i]);
+            mGenreTable[i] = genre.id;
+            mGenreTableNames[i] = genreNames.encode(genre.name);
+            for (long trackId : genre.trackIds) {
+                Integer row = rowById.get(trackId);
+                if (row != null) {
+                    memberLists[members] = i;
+                    memberRows[members] = row;
+                    members++;
+                }
+            }
+        }
+        mGenreNames = genreNames.build();
+        mGenreTracks = PostingLists.build(genreCount, memberLists, memberRows, members);
+
+        mAlbumById = indexIds(mAlbumTable);
+        mArtistById = indexIds(mArtistTable);
+        mGenreById = indexIds(mGenreTable);
+
+        mRowsById = sortRowsById(mTrackIds);
+        mSortedIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            mSortedIds[i] = mTrackIds[mRowsById[i]];
+        }
+
+        mEstimatedSizeBytes = estimateSizeBytes();
+    }
+
+    /**
+     * 从快照读取目录，与 {@link #writeTo} 的格式对应。原始类型数组被复制到堆上，
+     * 每行的字符串仍然留在映射的文件中。
+     */
+    private MusicCatalog(ByteBuffer buffer) {
+        mWatermarks = readLongs(buffer);
+        mArtistNames = StringDictionary.readFrom(buffer);
+        mAlbumNames = StringDictionary.readFrom(buffer);
+        mGenreNames = StringDictionary.readFrom(buffer);
+        mDirectories = StringDictionary.readFrom(buffer);
+
+        mTrackIds = readLongs(buffer);
+        mArtistIds = readLongs(buffer);
+        mAlbumIds = readLongs(buffer);
+        mArtistCodes = readInts(buffer);
+        mAlbumCodes = readInts(buffer);
+        mArtistRefs = readInts(buffer);
+        mAlbumRefs = readInts(buffer);
+        mDurations = readInts(buffer);
+        mTrackNumbers = readInts(buffer);
+        mDirCodes = readInts(buffer);
+        mTitles = StringColumn.map(buffer);
+        mTitleKeys = StringColumn.map(buffer);
+        mFileNames = StringColumn.map(buffer);
+
+        mAlbumTable = readLongs(buffer);
+        mAlbumTableNames = readInts(buffer);
+        mAlbumTableKeys = readStrings(buffer);
+        mAlbumTracks = PostingLists.readFrom(buffer);
+
+        mArtistTable = readLongs(buffer);
+        mArtistTableNames = readInts(buffer);
+        mArtistTableKeys = readStrings(buffer);
+        mArtistTracks = PostingLists.readFrom(buffer);
+        mArtistAlbums = PostingLists.readFrom(buffer);
+
+        mGenreTable = readLongs(buffer);
+        mGenreTableNames = readInts(buffer);
+        mGenreTracks = PostingLists.readFrom(buffer);
+
+        mSortedIds = readLongs(buffer);
+        mRowsById = readInts(buffer);
+
+        mAlbumById = indexIds(mAlbumTable);
+        mArtistById = indexIds(mArtistTable);
+        mGenreById = indexIds(mGenreTable);
+
+        mEstimatedSizeBytes = estimateSizeBytes();
+    }
+
+    static MusicCatalog readFrom(ByteBuffer buffer) {
+        return new MusicCatalog(buffer);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        writeLongs(out, mWatermarks);
+        mArtistNames.writeTo(out);
+        mAlbumNames.writeTo(out);
+        mGenreNames.writeTo(out);
+        mDirectories.writeTo(out);
+
+        writeLongs(out, mTrackIds);
+        writeLongs(out, mArtistIds);
+        writeLongs(out, mAlbumIds);
+        writeInts(out, mArtistCodes);
+        writeInts(out, mAlbumCodes);
+        writeInts(out, mArtistRefs);
+        writeInts(out, mAlbumRefs);
+        writeInts(out, mDurations);
+        writeInts(out, mTrackNumbers);
+        writeInts(out, mDirCodes);
+        mTitles.writeTo(out);
+        mTitleKeys.writeTo(out);
+        mFileNames.writeTo(out);
+
+        writeLongs(out, mAlbumTable);
+        writeInts(out, mAlbumTableNames);
+        StringColumn.of(mAlbumTableKeys).writeTo(out);
+        mAlbumTracks.writeTo(out);
+
+        writeLongs(out, mArtistTable);
+        writeInts(out, mArtistTableNames);
+        StringColumn.of(mArtistTableKeys).writeTo(out);
+        mArtistTracks.writeTo(out);
+        mArtistAlbums.writeTo(out);
+
+        writeLongs(out, mGenreTable);
+        writeInts(out, mGenreTableNames);
+        mGenreTracks.writeTo(out);
+
+        writeLongs(out, mSortedIds);
+        writeInts(out, mRowsById);
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+        return values;
+    }
+
+    static long[] readLongs(ByteBuffer buffer) {
+        long[] values = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(values);
+        buffer.position(buffer.position() + 8 * values.length);
+        return values;
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        StringColumn column = StringColumn.map(buffer);
+        String[] values = new String[column.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = column.get(i);
+        }
+        return values;
+    }
+
+    private static HashMap<Long, Integer> indexIds(long[] ids) {
+        HashMap<Long, Integer> index = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            index.put(ids[i], i);
+        }
+        return index;
+    }
+
+    /**
+     * 按歌曲 ID 查找行号，O(log n)。
+     */
+    int findTrackById(long trackId) {
+        int i = Arrays.binarySearch(mSortedIds, trackId);
+        return i < 0 ? NOT_FOUND : mRowsById[i];
+    }
+
+    int getTrackCount() {
+        return mTrackIds.length;
+    }
+
+    long getTrackId(int row) {
+        return mTrackIds[row];
+    }
+
+    String getTitle(int row) {
+        return mTitles.get(row);
+    }
+
+    String getTitleKey(int row) {
+        return mTitleKeys.get(row);
+    }
+
+    String getArtist(int row) {
+        return mArtistNames.get(mArtistCodes[row]);
+    }
+
+    String getAlbum(int row) {
+        return mAlbumNames.get(mAlbumCodes[row]);
+    }
+
+    long getArtistId(int row) {
+        return mArtistIds[row];
+    }
+
+    long getAlbumId(int row) {
+        return mAlbumIds[row];
+    }
+
+    int getDuration(int row) {
+        return mDurations[row];
+    }
+
+    int getTrackNumber(int row) {
+        return mTrackNumbers[row];
+    }
+
+    String getPath(int row) {
+        String dir = mDirectories.get(mDirCodes[row]);
+        String fileName = mFileNames.get(row);
+        return dir == null ? fileName : dir + File.separator + fileName;
+    }
+
+    int getDirectoryCode(int row) {
+        return mDirCodes[row];
+    }
+
+    int getDirectoryCount() {
+        return mDirectories.size();
+    }
+
+    String getDirectory(int code) {
+        return mDirectories.get(code);
+    }
+
+    int getAlbumCount() {
+        return mAlbumTable.length;
+    }
+
+    long getAlbumTableId(int album) {
+        return mAlbumTable[album];
+    }
+
+    String getAlbumTableName(int album) {
+        return mAlbumNames.get(mAlbumTableNames[album]);
+    }
+
+    String getAlbumTableKey(int album) {
+        return mAlbumTableKeys[album];
+    }
+
+    PostingLists getAlbumTracks() {
+        return mAlbumTracks;
+    }
+
+    int findAlbumById(long albumId) {
+        Integer album = mAlbumById.get(albumId);
+        return album == null ? NOT_FOUND : album;
+    }
+
+    int getArtistCount() {
+        return mArtistTable.length;
+    }
+
+    long getArtistTableId(int artist) {
+        return mArtistTable[artist];
+    }
+
+    String getArtistTableName(int artist) {
+        return mArtistNames.get(mArtistTableNames[artist]);
+    }
+
+    String getArtistTableKey(int artist) {
+        return mArtistTableKeys[artist];
+    }
+
+    PostingLists getArtistTracks() {
+        return mArtistTracks;
+    }
+
+    int findArtistById(long artistId) {
+        Integer artist = mArtistById.get(artistId);
+        return artist == null ? NOT_FOUND : artist;
+    }
+
+    PostingLists getArtistAlbums() {
+        return mArtistAlbums;
+    }
+
+    int getGenreCount() {
+        return mGenreTable.length;
+    }
+
+    long getGenreTableId(int genre) {
+        return mGenreTable[genre];
+    }
+
+    String getGenreTableName(int genre) {
+        return mGenreNames.get(mGenreTableNames[genre]);
+    }
+
+    PostingLists getGenreTracks() {
+        return mGenreTracks;
+    }
+
+    int findGenreById(long genreId) {
+        Integer genre = mGenreById.get(genreId);
+        return genre == null ? NOT_FOUND : genre;
+    }
+
+    long getEstimatedSizeBytes() {
+        return mEstimatedSizeBytes;
+    }
+
+    long getMaxMediaStoreId(boolean internal) {
+        return mWatermarks[internal ? 0 : 2];
+    }
+
+    long getMaxDateModified(boolean internal) {
+        return mWatermarks[internal ? 1 : 3];
+    }
+
+    /**
+     * 把一行还原成构建时的数据，用于在库同步时重建目录。
+     */
+    TrackRow getTrackRow(int row) {
+        TrackRow t = new TrackRow();
+        t.id = mTrackIds[row];
+        t.title = getTitle(row);
+        t.titleKey = getTitleKey(row);
+        t.artistId = mArtistIds[row];
+        t.artist = getArtist(row);
+        t.artistKey = mArtistTableKeys[mArtistRefs[row]];
+        t.albumId = mAlbumIds[row];
+        t.album = getAlbum(row);
+        t.albumKey = mAlbumTableKeys[mAlbumRefs[row]];
+        t.duration = mDurations[row];
+        t.trackNumber = mTrackNumbers[row];
+        t.path = getPath(row);
+        return t;
+    }
+
+    /**
+     * 在这个目录上应用一批变化，返回新的目录。changed 中的行会替换相同 ID 的旧行，
+     * removed 中的 ID 被删除；genres 为 null 时保留原来的流派。
+     */
+    MusicCatalog applyChanges(List<TrackRow> changed, Set<Long> removed,
+            Builder genres) {
+        Builder builder = new Builder();
+        builder.mWatermarks = mWatermarks.clone();
+        Set<Long> replaced = new HashSet<>(removed);
+        for (TrackRow row : changed) {
+            replaced.add(row.id);
+        }
+        for (int row = 0; row < mTrackIds.length; row++) {
+            if (!replaced.contains(mTrackIds[row])) {
+                builder.addTrack(getTrackRow(row));
+            }
+        }
+        for (TrackRow row : changed) {
+            builder.addTrack(row);
+        }
+        if (genres != null) {
+            builder.mGenres.addAll(genres.mGenres);
+        } else {
+            for (int genre = 0; genre < mGenreTable.length; genre++) {
+                long[] trackIds = new long[mGenreTracks.size(genre)];
+                for (int i = 0; i < trackIds.length; i++) {
+                    trackIds[i] = mTrackIds[mGenreTracks.get(genre, i)];
+                }
+                builder.addGenre(mGenreTable[genre], getGenreTableName(genre), trackIds);
+            }
+        }
+        return builder.build();
+    }
+
+    private long estimateSizeBytes() {
+        int n = mTrackIds.length;
+        // 每行：3 个 long 列和 7 个 int 列，以及三个字符串列。
+        long size = n * (3L * 8 + 7L * 4);
+        size += mTitles.estimateSizeBytes() + mTitleKeys.estimateSizeBytes()
+                + mFileNames.estimateSizeBytes();
+        size += mArtistNames.estimateSizeBytes() + mAlbumNames.estimateSizeBytes()
+                + mGenreNames.estimateSizeBytes() + mDirectories.estimateSizeBytes();
+        size += mAlbumTable.length * (8L + 4 + 8 + 48) + mArtistTable.length * (8L + 4 + 8 + 48)
+                + mGenreTable.length * (8L + 4);
+        for (String key : mAlbumTableKeys) {
+            size += sizeOf(key);
+        }
+        for (String key : mArtistTableKeys) {
+            size += sizeOf(key);
+        }
+        size += mAlbumTracks.estimateSizeBytes() + mArtistTracks.estimateSizeBytes()
+                + mArtistAlbums.estimateSizeBytes() + mGenreTracks.estimateSizeBytes();
+        // 流派的 ID 索引；专辑和艺术家的索引已经算在上面每一项的 48 字节中。
+        size += 48L * mGenreTable.length;
+        size += 12L * n;
+        return size;
+    }
+
+    static long sizeOf(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    static boolean isInternal(long catalogId) {
+        return (catalogId & INTERNAL_FLAG) != 0;
+    }
+
+    static long toMediaStoreId(long catalogId) {
+        return catalogId & ~INTERNAL_FLAG;
+    }
+
+    static Uri getTrackUri(long catalogId) {
+        Uri base = isInternal(catalogId) ? MediaStore.Audio.Media.INTERNAL_CONTENT_URI
+                : MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        return ContentUris.withAppendedId(base, toMediaStoreId(catalogId));
+    }
+
+    private static int[] sortRowsById(long[] ids) {
+        return sortedRows(ids.length, (l, r) -> Long.compare(ids[l], ids[r]));
+    }
+
+    private static int[] sortedRows(int count, Comparator<Integer> comparator) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, comparator);
+        int[] rows = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            rows[i] = order[i];
+        }
+        return rows;
+    }
+
+    /**
+     * 没有曲目号（0）的歌曲排在有曲目号的歌曲之后。
+     */
+    private static int trackOrder(int trackNumber) {
+        return trackNumber > 0 ? trackNumber : Integer.MAX_VALUE;
+    }
+
+    private static int compareKeys(String l, String r) {
+        if (l == null) {
+            return r == null ? 0 : 1;
+        }
+        return r == null ? -1 : l.compareTo(r);
+    }
+
+    private static <T> int[] sortedOrder(List<T> items, Comparator<T> comparator) {
+        Integer[] order = new Integer[items.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (l, r) -> comparator.compare(items.get(l), items.get(r)));
+        int[] result = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * 从 MediaStore 的两个卷构建目录。会阻塞，只能在后台线程调用。
+     */
+    static MusicCatalog loadFromMediaStore(ContentResolver resolver) {
+        long start = System.currentTimeMillis();
+        Builder builder = new Builder();
+        for (TrackRow row : queryTracks(resolver, true, null, null)) {
+            builder.addTrack(row);
+        }
+        for (TrackRow row : queryTracks(resolver, false, null, null)) {
+            builder.addTrack(row);
+        }
+        loadGenres(resolver, builder);
+        MusicCatalog catalog = builder.build();
+        Log.i(TAG, "Loaded " + catalog.getTrackCount() + " tracks, "
+                + catalog.getAlbumCount() + " albums, " + catalog.getArtistCount()
+                + " artists in " + (System.currentTimeMillis() - start) + "ms, ~"
+                + (catalog.getEstimatedSizeBytes() / 1024) + "KB");
+        return catalog;
+    }
+
+    /**
+     * 查询一个卷中满足条件的歌曲。会阻塞，只能在后台线程调用。
+     */
+    static List<TrackRow> queryTracks(ContentResolver resolver, boolean internal,
+            String selection, String[] selectionArgs) {
+        long flag = internal ? INTERNAL_FLAG : 0;
+        Uri uri = internal ? MediaStore.Audio.Media.INTERNAL_CONTENT_URI
+                : MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        List<TrackRow> rows = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, TRACK_COLUMNS, selection, selectionArgs,
+                    AudioColumns.TITLE_KEY);
+            if (cursor == null) {
+                return rows;
+            }
+            int id = cursor.getColumnIndex(AudioColumns._ID);
+            int title = cursor.getColumnIndex(AudioColumns.TITLE);
+            int titleKey = cursor.getColumnIndex(AudioColumns.TITLE_KEY);
+            int artistId = cursor.getColumnIndex(AudioColumns.ARTIST_ID);
+            int artist = cursor.getColumnIndex(AudioColumns.ARTIST);
+            int artistKey = cursor.getColumnIndex(AudioColumns.ARTIST_KEY);
+            int albumId = cursor.getColumnIndex(AudioColumns.ALBUM_ID);
+            int album = cursor.getColumnIndex(AudioColumns.ALBUM);
+            int albumKey = cursor.getColumnIndex(AudioColumns.ALBUM_KEY);
+            int duration = cursor.getColumnIndex(AudioColumns.DURATION);
+            int track = cursor.getColumnIndex(AudioColumns.TRACK);
+            int data = cursor.getColumnIndex(AudioColumns.DATA);
+            int dateModified = cursor.getColumnIndex(AudioColumns.DATE_MODIFIED);
+            while (cursor.moveToNext()) {
+                TrackRow row = new TrackRow();
+                row.id = cursor.getLong(id) | flag;
+                row.title = cursor.getString(title);
+                row.titleKey = cursor.getString(titleKey);
+                row.artistId = cursor.getLong(artistId) | flag;
+                row.artist = cursor.getString(artist);
+                row.artistKey = cursor.getString(artistKey);
+                row.albumId = cursor.getLong(albumId) | flag;
+                row.album = cursor.getString(album);
+                row.albumKey = cursor.getString(albumKey);
+                row.duration = cursor.getInt(duration);
+                row.trackNumber = cursor.getInt(track);
+                row.path = cursor.getString(data);
+                row.dateModified = cursor.getLong(dateModified);
+                rows.add(row);
+                if (rows.size() % IoScheduler.ROWS_PER_TOKEN == 0) {
+                    IoScheduler.get().throttle();
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.i(TAG, "Failed to execute query " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 重新读取两个卷的全部流派及其成员。
+     */
+    static void loadGenres(ContentResolver resolver, Builder builder) {
+        loadGenres(resolver, INTERNAL, true, builder);
+        loadGenres(resolver, EXTERNAL, false, builder);
+    }
+
+    private static void loadGenres(ContentResolver resolver, String volume, boolean internal,
+            Builder builder) {
+        long flag = internal ? INTERNAL_FLAG : 0;
+        Uri uri = internal ? MediaStore.Audio.Genres.INTERNAL_CONTENT_URI
+                : MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI;
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, new String[] {
+                    MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME }, null, null, null);
+            if (cursor == null) {
+                return;
+            }
+            while (cursor.moveToNext()) {
+                // 每个流派还要再查询一次成员。
+                IoScheduler.get().throttle();
+                long genreId = cursor.getLong(0);
+                long[] members = loadGenreMembers(resolver,
+                        MediaStore.Audio.Genres.Members.getContentUri(volume, genreId), flag);
+                builder.addGenre(genreId | flag, cursor.getString(1), members);
+            }
+        } catch (SQLiteException e) {
+            // 在第一次遇到具有流派的歌曲之前，流派表可能根本不存在。
+            Log.i(TAG, "Failed to execute query " + e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private static long[] loadGenreMembers(ContentResolver resolver, Uri uri, long flag) {
+        Cursor cursor = resolver.query(uri,
+                new String[] { MediaStore.Audio.Genres.Members.AUDIO_ID }, null, null, null);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] members = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext() && i < members.length) {
+                members[i++] = cursor.getLong(0) | flag;
+                if (i % IoScheduler.ROWS_PER_TOKEN == 0) {
+                    IoScheduler.get().throttle();
+                }
+            }
+            return members;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 构建目录时使用的一行歌曲数据。
+     */
+    static final class TrackRow {
+        long id;
+        String title;
+        String titleKey;
+        long artistId;
+        String artist;
+        String artistKey;
+        long albumId;
+        String album;
+        String albumKey;
+        int duration;
+        int trackNumber;
+        String path;
+        // 只在从 MediaStore 读取时有效，用于计算同步水位。
+        long dateModified;
+    }
+
+    private static final class GenreRow {
+        final long id;
+        final String name;
+        final long[] trackIds;
+
+        GenreRow(long id, String name, long[] trackIds) {
+            this.id = id;
+            this.name = name;
+            this.trackIds = trackIds;
+        }
+    }
+
+    static final class Builder {
+        private final ArrayList<TrackRow> mRows = new ArrayList<>();
+        private final ArrayList<GenreRow> mGenres = new ArrayList<>();
+        private long[] mWatermarks = new long[4];
+
+        Builder addTrack(TrackRow row) {
+            mRows.add(row);
+            int volume = isInternal(row.id) ? 0 : 2;
+            mWatermarks[volume] = Math.max(mWatermarks[volume], toMediaStoreId(row.id));
+            mWatermarks[volume + 1] = Math.max(mWatermarks[volume + 1], row.dateModified);
+            return this;
+        }
+
+        Builder addGenre(long genreId, String name, long[] trackIds) {
+            mGenres.add(new GenreRow(genreId, name, trackIds));
+            return this;
+        }
+
+        MusicCatalog build() {
+            // 两个卷的歌曲和同步加入的歌曲统一按 TITLE_KEY 排序。
+            Collections.sort(mRows, (l, r) -> compareKeys(l.titleKey, r.titleKey));
+            int count = mRows.size();
+            if (count > MAX_TRACKS) {
+                Log.w(TAG, "Library has " + count + " tracks, only indexing " + MAX_TRACKS);
+                count = MAX_TRACKS;
+            }
+            return new MusicCatalog(this, count);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+/**
+ * 播放队列：按顺序排列的歌曲 ID 和它们共同的所在节点，不可变。
+ *
+ * 队列只保存基本类型的数组，加载整个音乐库也不会为每首歌创建对象；会话需要的 QueueItem
+ * 由 {@link DataModel#createQueueItems} 按需创建，路径和元数据通过歌曲 ID 从目录中查找。
+ * 歌曲 ID 到下标的映射是开放寻址的哈希表，查找当前歌曲是 O(1)。
+ */
+final class PlayQueue {
+    static final int NOT_FOUND = -1;
+
+    private final long[] mTrackIds;
+    private final String mContext;
+    // 目录中可能还没有的歌曲（例如恢复的播放列表）的路径，按下标排列；都从目录查找时为 null。
+    private final String[] mPaths;
+    // 下标加一，0 表示空槽。
+    private final int[] mSlots;
+    private final int mMask;
+
+    PlayQueue(long[] trackIds, String context, String[] paths) {
+        mTrackIds = trackIds;
+        mContext = context;
+        mPaths = paths;
+        // 装载因子不超过一半。
+        int capacity = Integer.highestOneBit(Math.max(1, trackIds.length) * 2 - 1) << 1;
+        mSlots = new int[capacity];
+        mMask = capacity - 1;
+        for (int i = 0; i < trackIds.length; i++) {
+            int slot = hash(trackIds[i]) & mMask;
+            while (mSlots[slot] != 0) {
+                if (mTrackIds[mSlots[slot] - 1] == trackIds[i]) {
+                    break;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            // 同一首歌出现多次时，映射到第一次出现的位置。
+            if (mSlots[slot] == 0) {
+                mSlots[slot] = i + 1;
+            }
+        }
+    }
+
+    int size() {
+        return mTrackIds.length;
+    }
+
+    boolean isEmpty() {
+        return mTrackIds.length == 0;
+    }
+
+    long getTrackId(int index) {
+        return mTrackIds[index];
+    }
+
+    /**
+     * 所在节点的媒体 ID，只播放一首歌时为 null。
+     */
+    String getContext() {
+        return mContext;
+    }
+
+    String getMediaId(int index) {
+        return MediaId.track(mTrackIds[index], mContext);
+    }
+
+    /**
+     * 返回队列中保存的路径，没有时返回 null，由调用方从目录中查找。
+     */
+    String getPath(int index) {
+        return mPaths != null ? mPaths[index] : null;
+    }
+
+    /**
+     * 返回歌曲在队列中第一次出现的下标，不在队列中时返回 {@link #NOT_FOUND}。
+     */
+    int indexOf(long trackId) {
+        int slot = hash(trackId) & mMask;
+        while (mSlots[slot] != 0) {
+            int index = mSlots[slot] - 1;
+            if (mTrackIds[index] == trackId) {
+                return index;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NOT_FOUND;
+    }
+
+    static int hash(long trackId) {
+        long h = trackId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * 用两个 MediaPlayer 实现无缝播放。
+ *
+ * 当前歌曲播放时，下一首在另一个 MediaPlayer 上用 prepareAsync 在后台准备，准备好之后通过
+ * {@link MediaPlayer#setNextMediaPlayer} 接在当前歌曲后面，由框架在解码层面直接衔接，没有间隙。
+ * 当前歌曲结束后两个播放器交换角色。只能在创建它的线程上调用。
+ *
+ * 当前播放器也用 prepareAsync 准备，状态见 STATE_* 常量。准备期间到达的播放、暂停和跳转命令
+ * 只记录下来，准备完成后再执行；新的 {@link #prepare} 取代还没有完成的准备。
+ *
+ * 打开交叉淡入淡出后不再用 setNextMediaPlayer 衔接，而是在当前歌曲结束前提前启动已经准备好的下一首，
+ * 两个播放器同时播放，在淡入淡出期间按固定间隔调整音量。平时只有一个延时消息等待淡入淡出开始，
+ * 不轮询播放位置。淡入淡出期间暂停、跳转或切歌会取消淡入淡出，下一首回到开头等待。
+ *
+ * 两个播放器都从 {@link ReadAheadDataSource} 读取文件，下一首的开头在切换之前就已经读进内存。
+ */
+final class PlaybackEngine {
+    private static final String TAG = "LMBEngine";
+
+    static final int STATE_IDLE = 0;
+    static final int STATE_PREPARING = 1;
+    // 准备好了，但还没有开始播放。
+    static final int STATE_PREPARED = 2;
+    static final int STATE_PLAYING = 3;
+    static final int STATE_PAUSED = 4;
+    static final int STATE_ERROR = 5;
+
+    // 淡入淡出期间调整音量的间隔。
+    private static final long FADE_STEP_MS = 50;
+
+    interface Listener {
+        /**
+         * 状态或者准备完成后是否播放发生了变化。
+         */
+        void onStateChanged(int state);
+
+        /**
+         * 已经切换到了 {@link #setNext} 指定的歌曲（无缝衔接，或者淡入淡出结束）。
+         */
+        void onNextStarted();
+
+        /**
+         * 当前歌曲结束，并且没有准备好的下一首。
+         */
+        void onCompletion();
+    }
+
+    private final Listener mListener;
+    // 创建引擎的线程，MediaPlayer 的事件和淡入淡出的定时都在这个线程上。
+    private final Handler mHandler = new Handler();
+    private MediaPlayer mCurrent;
+    private ReadAheadDataSource mCurrentSource;
+    private int mState = STATE_IDLE;
+    // 准备期间收到的命令：准备完成后是否开始播放，以及要跳转到的位置。
+    private boolean mPlayWhenReady;
+    private int mPendingSeek;
+    private MediaPlayer mNext;
+    private ReadAheadDataSource mNextSource;
+    // mNext 对应的歌曲路径，为 null 时 mNext 空闲。
+    private String mNextPath;
+    private boolean mNextPrepared;
+    // mNext 是否已经通过 setNextMediaPlayer 接在当前歌曲后面。
+    private boolean mNextAttached;
+
+    // 交叉淡入淡出的时长，0 表示无缝衔接。
+    private int mCrossfadeMs;
+    // 正在淡入淡出：mCurrent 淡出，mNext 淡入。
+    private boolean mFading;
+    private long mFadeStartTime;
+    private long mFadeDuration;
+    private final Runnable mStartFade = this::startFade;
+    private final Runnable mFadeTick = this::onFadeTick;
+
+    PlaybackEngine(Listener listener) {
+        mListener = listener;
+        mCurrent = createPlayer();
+        mNext = createPlayer();
+    }
+
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        player.setOnCompletionListener(this::onCompletion);
+        player.setOnPreparedListener(this::onPrepared);
+        player.setOnErrorListener(this::onError);
+        return player;
+    }
+
+    /**
+     * 设置交叉淡入淡出的时长，0 表示关闭，歌曲之间无缝衔接。
+     */
+    void setCrossfade(int durationMs) {
+        abortFade();
+        mCrossfadeMs = Math.max(0, durationMs);
+        if (mNextAttached) {
+            mCurrent.setNextMediaPlayer(null);
+            mNextAttached = false;
+        }
+        attachNext();
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    /**
+     * 准备完成后是否开始播放，只在 STATE_PREPARING 时有意义。
+     */
+    boolean getPlayWhenReady() {
+        return mPlayWhenReady;
+    }
+
+    /**
+     * 异步准备 path，完成后处于 STATE_PREPARED；期间调用 {@link #play} 则完成后直接播放。
+     * 如果下一首正好是 path 并且已经准备好，直接交换播放器，立即进入 STATE_PREPARED。
+     */
+    void prepare(String path) throws IOException {
+        abortFade();
+        mPlayWhenReady = false;
+        mPendingSeek = 0;
+        if (path.equals(mNextPath) && mNextPrepared) {
+            resetCurrent();
+            swap();
+            setState(STATE_PREPARED);
+            return;
+        }
+        // reset 也会取消还没有完成的准备。
+        resetCurrent();
+        setState(STATE_IDLE, false);
+        mCurrentSource = new ReadAheadDataSource(path);
+        mCurrent.setDataSource(mCurrentSource);
+        mCurrent.prepareAsync();
+        setState(STATE_PREPARING);
+    }
+
+    /**
+     * 指定当前歌曲之后要无缝播放的歌曲，null 表示没有下一首。
+     */
+    void setNext(String path) {
+        if (path != null && path.equals(mNextPath)) {
+            return;
+        }
+        abortFade();
+        clearNext();
+        if (path == null) {
+            return;
+        }
+        try {
+            mNextSource = new ReadAheadDataSource(path);
+            // 切换时直接从内存读取下一首的开头。
+            mNextSource.prefetchHead(ReadAheadDataSource.HEAD_PREFETCH_BYTES);
+            mNext.setDataSource(mNextSource);
+            mNext.prepareAsync();
+            mNextPath = path;
+        } catch (IOException | IllegalStateException e) {
+            Log.w(TAG, "Failed to prepare next track " + path, e);
+            clearNext();
+        }
+    }
+
+    void play() {
+        switch (mState) {
+            case STATE_PREPARING:
+                if (!mPlayWhenReady) {
+                    mPlayWhenReady = true;
+                    mListener.onStateChanged(mState);
+                }
+                break;
+            case STATE_PREPARED:
+            case STATE_PAUSED:
+                mCurrent.start();
+                setState(STATE_PLAYING);
+                scheduleFade();
+                break;
+            default:
+                break;
+        }
+    }
+
+    void pause() {
+        switch (mState) {
+            case STATE_PREPARING:
+                if (mPlayWhenReady) {
+                    mPlayWhenReady = false;
+                    mListener.onStateChanged(mState);
+                }
+                break;
+            case STATE_PLAYING:
+                abortFade();
+                mCurrent.pause();
+                setState(STATE_PAUSED);
+                break;
+            default:
+                break;
+        }
+    }
+
+    void seekTo(int positionMs) {
+        switch (mState) {
+            case STATE_PREPARING:
+                mPendingSeek = positionMs;
+                break;
+            case STATE_PREPARED:
+            case STATE_PLAYING:
+            case STATE_PAUSED:
+                abortFade();
+                mCurrent.seekTo(positionMs);
+                scheduleFade();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 停止播放，释放两个播放器占用的解码资源，回到 STATE_IDLE。
+     */
+    void stop() {
+        abortFade();
+        clearNext();
+        resetCurrent();
+        setState(STATE_IDLE);
+    }
+
+    boolean isPlaying() {
+        return mState == STATE_PLAYING;
+    }
+
+    int getCurrentPosition() {
+        switch (mState) {
+            case STATE_PREPARING:
+                return mPendingSeek;
+            case STATE_PREPARED:
+            case STATE_PLAYING:
+            case STATE_PAUSED:
+                return mCurrent.getCurrentPosition();
+            default:
+                return 0;
+        }
+    }
+
+    void release() {
+        mHandler.removeCallbacks(mStartFade);
+        mHandler.removeCallbacks(mFadeTick);
+        mCurrent.release();
+        mNext.release();
+        IoScheduler.get().setPlaybackActive(false);
+        closeSource(mCurrentSource);
+        closeSource(mNextSource);
+        mCurrentSource = null;
+        mNextSource = null;
+    }
+
+    private void setState(int state) {
+        setState(state, true);
+    }
+
+    /**
+     * 所有状态变化都经过这里。notify 为 false 时不通知监听器，由调用方在状态确定之后通知。
+     */
+    private void setState(int state, boolean notify) {
+        if (mState == state) {
+            return;
+        }
+        mState = state;
+        // 只在播放或准备期间限制后台的存储访问，准备好但没有播放、出错时都不限制。
+        IoScheduler.get().setPlaybackActive(state == STATE_PREPARING || state == STATE_PLAYING);
+        if (notify) {
+            mListener.onStateChanged(state);
+        }
+    }
+
+    private boolean isCurrentPrepared() {
+        return mState == STATE_PREPARED || mState == STATE_PLAYING || mState == STATE_PAUSED;
+    }
+
+    private void swap() {
+        MediaPlayer previous = mCurrent;
+        mCurrent = mNext;
+        mNext = previous;
+        mCurrentSource = mNextSource;
+        mNextSource = null;
+        mNextPath = null;
+        mNextPrepared = false;
+        mNextAttached = false;
+    }
+
+    private void attachNext() {
+        if (!isCurrentPrepared() || !mNextPrepared) {
+            return;
+        }
+        if (usesCrossfade()) {
+            scheduleFade();
+        } else if (!mNextAttached) {
+            mCurrent.setNextMediaPlayer(mNext);
+            mNextAttached = true;
+        }
+    }
+
+    private void clearNext() {
+        if (mNextAttached) {
+            mCurrent.setNextMediaPlayer(null);
+        }
+        mNext.reset();
+        closeSource(mNextSource);
+        mNextSource = null;
+        mNextPath = null;
+        mNextPrepared = false;
+        mNextAttached = false;
+    }
+
+    /**
+     * 重置当前播放器并关闭它的数据源，归还预读缓冲区。
+     */
+    private void resetCurrent() {
+        mCurrent.reset();
+        closeSource(mCurrentSource);
+        mCurrentSource = null;
+    }
+
+    private static void closeSource(ReadAheadDataSource source) {
+        if (source == null) {
+            return;
+        }
+        try {
+            source.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close data source " + e);
+        }
+    }
+
+    /**
+     * 时长未知的歌曲无法提前开始淡入淡出，仍然无缝衔接。
+     */
+    private boolean usesCrossfade() {
+        return mCrossfadeMs > 0 && isCurrentPrepared() && mCurrent.getDuration() > 0;
+    }
+
+    /**
+     * 在当前歌曲结束前 mCrossfadeMs 开始淡入淡出。播放、跳转和下一首准备好时都要重新安排。
+     */
+    private void scheduleFade() {
+        mHandler.removeCallbacks(mStartFade);
+        if (mState != STATE_PLAYING || !mNextPrepared || mFading || !usesCrossfade()) {
+            return;
+        }
+        long remaining = mCurrent.getDuration() - mCurrent.getCurrentPosition();
+        mHandler.postDelayed(mStartFade, Math.max(0, remaining - mCrossfadeMs));
+    }
+
+    private void startFade() {
+        if (mState != STATE_PLAYING || !mNextPrepared || mFading) {
+            return;
+        }
+        long remaining = mCurrent.getDuration() - mCurrent.getCurrentPosition();
+        mFading = true;
+        mFadeStartTime = SystemClock.uptimeMillis();
+        mFadeDuration = Math.max(FADE_STEP_MS, Math.min(mCrossfadeMs, remaining));
+        mNext.setVolume(0f, 0f);
+        mNext.start();
+        onFadeTick();
+    }
+
+    /**
+     * 按等功率曲线调整两个播放器的音量。按开始时间对齐下一次更新，定时误差不会累积。
+     */
+    private void onFadeTick() {
+        long elapsed = SystemClock.uptimeMillis() - mFadeStartTime;
+        float progress = Math.min(1f, (float) elapsed / mFadeDuration);
+        float fadeOut = (float) Math.cos(progress * Math.PI / 2);
+        float fadeIn = (float) Math.sin(progress * Math.PI / 2);
+        mCurrent.setVolume(fadeOut, fadeOut);
+        mNext.setVolume(fadeIn, fadeIn);
+        if (progress >= 1f) {
+            finishFade();
+            return;
+        }
+        mHandler.postAtTime(mFadeTick,
+                mFadeStartTime + (elapsed / FADE_STEP_MS + 1) * FADE_STEP_MS);
+    }
+
+    private void finishFade() {
+        mHandler.removeCallbacks(mFadeTick);
+        mFading = false;
+        resetCurrent();
+        mCurrent.setVolume(1f, 1f);
+        swap();
+        mCurrent.setVolume(1f, 1f);
+        mListener.onNextStarted();
+    }
+
+    /**
+     * 取消等待中或者进行中的淡入淡出：当前歌曲恢复音量，下一首暂停并回到开头，之后仍然可以使用。
+     */
+    private void abortFade() {
+        mHandler.removeCallbacks(mStartFade);
+        if (!mFading) {
+            return;
+        }
+        mHandler.removeCallbacks(mFadeTick);
+        mFading = false;
+        mCurrent.setVolume(1f, 1f);
+        mNext.pause();
+        mNext.seekTo(0);
+        mNext.setVolume(1f, 1f);
+    }
+
+    private void onPrepared(MediaPlayer player) {
+        if (player == mNext) {
+            if (mNextPath != null) {
+                mNextPrepared = true;
+                attachNext();
+            }
+            return;
+        }
+        if (mState != STATE_PREPARING) {
+            return;
+        }
+        if (mPendingSeek > 0) {
+            mCurrent.seekTo(mPendingSeek);
+        }
+        setState(STATE_PREPARED, false);
+        attachNext();
+        if (mPlayWhenReady) {
+            mCurrent.start();
+            setState(STATE_PLAYING, false);
+            scheduleFade();
+        }
+        mListener.onStateChanged(mState);
+    }
+
+    private void onCompletion(MediaPlayer player) {
+        if (player != mCurrent) {
+            return;
+        }
+        if (mFading) {
+            // 淡入淡出比歌曲剩下的部分长，直接结束。
+            finishFade();
+        } else if (mNextPrepared) {
+            // 无缝衔接时框架已经开始播放下一首，否则立即开始已经准备好的下一首。
+            boolean started = mNextAttached;
+            resetCurrent();
+            swap();
+            if (!started) {
+                mCurrent.start();
+            }
+            mListener.onNextStarted();
+        } else {
+            mListener.onCompletion();
+        }
+    }
+
+    private boolean onError(MediaPlayer player, int what, int extra) {
+        Log.e(TAG, "MediaPlayer error what=" + what + " extra=" + extra);
+        if (player == mNext) {
+            // 下一首出错时放弃无缝切换，结束后按普通方式前进。
+            if (mFading) {
+                mHandler.removeCallbacks(mFadeTick);
+                mFading = false;
+                mCurrent.setVolume(1f, 1f);
+            }
+            clearNext();
+            return true;
+        }
+        abortFade();
+        if (mState == STATE_PREPARING) {
+            // 准备失败，通常是文件无法解码。
+            resetCurrent();
+            setState(STATE_ERROR);
+            return true;
+        }
+        // 播放中出错时不会衔接下一首，按普通方式前进。
+        setState(STATE_ERROR, false);
+        mListener.onCompletion();
+        return true;
+    }
+}
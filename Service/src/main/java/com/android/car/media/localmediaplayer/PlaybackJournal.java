@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * 播放状态的追加式日志，重启（包括崩溃和断电）之后用来恢复队列和播放位置。
+ *
+ * 格式：int MAGIC，int FORMAT_VERSION，然后是一串记录，每条记录是 int 长度、byte 类型、内容和
+ * 类型加内容的 CRC32。记录有三种：队列快照（所在节点、歌曲 ID 和前缀压缩的路径）、乱序状态和
+ * 播放位置。读取时按顺序重放，最后一个队列快照和它之后的状态有效；遇到不完整或校验失败的记录就停止，
+ * 并截掉文件后面的部分，所以写到一半断电只会丢掉最后一条记录。
+ *
+ * 写入都在单独的线程上进行，每条记录写完都 fsync。文件超过最后一个队列快照的两倍（至少
+ * {@link #MIN_COMPACT_BYTES}）时，只用最新的状态重写一个新文件，写完临时文件再重命名。
+ */
+final class PlaybackJournal {
+    private static final String TAG = "LMBJournal";
+
+    static final String FILE_NAME = "playback.journal";
+
+    private static final int MAGIC = 0x4C4D424A;  // "LMBJ"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte TYPE_QUEUE = 1;
+    private static final byte TYPE_SHUFFLE = 2;
+    private static final byte TYPE_POSITION = 3;
+
+    // 单条记录的上限，超过的长度一定是损坏的数据。
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    /**
+     * 查找队列中歌曲的路径，写入队列快照时使用。
+     */
+    interface PathResolver {
+        String getPath(PlayQueue queue, int index);
+    }
+
+    /**
+     * 还没有写入的播放位置和它所属的队列。
+     */
+    private static final class Position {
+        final int mGeneration;
+        final byte[] mRecord;
+
+        Position(int generation, byte[] record) {
+            mGeneration = generation;
+            mRecord = record;
+        }
+    }
+
+    /**
+     * 从日志中恢复的状态。
+     */
+    static final class State {
+        PlayQueue queue;
+        boolean shuffling;
+        long shuffleSeed;
+        int shuffleFirst;
+        int index;
+        long position;
+    }
+
+    private final File mFile;
+    private final PathResolver mPathResolver;
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, TAG));
+    // 还没有写入的播放位置。位置写得频繁，写线程跟不上时只写最新的一个。
+    private final AtomicReference<Position> mPendingPosition = new AtomicReference<>();
+    // 调用 writeQueue 的次数，用来标记播放位置属于哪个队列。只在调用线程上访问。
+    private int mGeneration;
+
+    // 以下字段只在写线程上访问。
+    // 最新的队列记录对应的 mGeneration。
+    private int mQueueGeneration;
+    // 待写入的位置属于还没有写入的队列，留给那个队列的记录之后写入。
+    private boolean mPositionDeferred;
+    private FileOutputStream mOut;
+    private long mSize;
+    // 最新的各类记录，压缩时写入新文件。
+    private byte[] mQueueRecord;
+    private byte[] mShuffleRecord;
+    private byte[] mPositionRecord;
+
+    PlaybackJournal(File file, PathResolver pathResolver) {
+        mFile = file;
+        mPathResolver = pathResolver;
+    }
+
+    /**
+     * 重放日志，返回最后的状态；没有可用的队列时返回 null。必须在第一次写入之前调用。
+     */
+    State read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        State state = null;
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            long size = raf.length();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Bad journal size " + size);
+            }
+            byte[] bytes = new byte[(int) size];
+            raf.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown journal format");
+            }
+            long valid = buffer.position();
+            while (buffer.remaining() >= 4) {
+                byte[] record = nextRecord(buffer);
+                if (record == null) {
+                    break;
+                }
+                state = apply(state, record);
+                valid = buffer.position();
+            }
+            if (valid < size) {
+                Log.w(TAG, "Truncating journal at " + valid + " of " + size + " bytes");
+                raf.setLength(valid);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding journal " + mFile + ": " + e);
+            mFile.delete();
+            return null;
+        }
+        return state != null && state.queue != null ? state : null;
+    }
+
+    /**
+     * 记录新的队列。路径在写线程上通过目录解析。
+     */
+    void writeQueue(PlayQueue queue) {
+        int generation = ++mGeneration;
+        submit(() -> {
+            mQueueGeneration = generation;
+            try {
+                mQueueRecord = encodeQueue(queue);
+                // 新队列之前的乱序状态和播放位置都失效了。
+                mShuffleRecord = null;
+                mPositionRecord = null;
+                append(mQueueRecord);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write queue " + e);
+            }
+            // 新队列的位置可能在队列记录之前就已经被取走并留到这里。
+            if (mPositionDeferred) {
+                mPositionDeferred = false;
+                drainPosition();
+            }
+        });
+    }
+
+    /**
+     * 记录乱序状态，order 为 null 表示按原来的顺序播放。
+     */
+    void writeShuffle(ShuffleOrder order) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(TYPE_SHUFFLE);
+            out.writeBoolean(order != null);
+            out.writeLong(order != null ? order.getSeed() : 0);
+            out.writeInt(order != null ? order.getFirst() : 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] record = bytes.toByteArray();
+        submit(() -> {
+            mShuffleRecord = record;
+            appendQuietly(record);
+        });
+    }
+
+    /**
+     * 记录当前歌曲在队列中的下标和播放位置（毫秒）。
+     */
+    void writePosition(int index, long position) {
+        byte[] record = ByteBuffer.allocate(13)
+                .put(TYPE_POSITION).putInt(index).putLong(position).array();
+        if (mPendingPosition.getAndSet(new Position(mGeneration, record)) == null) {
+            submit(this::drainPosition);
+        }
+    }
+
+    /**
+     * 在写线程上写入最新的播放位置。属于还没有写入的队列的位置留给那个队列的记录之后写入，
+     * 否则重放时它会被当成上一个队列的位置；属于更早的队列的位置直接丢弃。
+     */
+    private void drainPosition() {
+        Position latest;
+        while ((latest = mPendingPosition.get()) != null) {
+            if (latest.mGeneration > mQueueGeneration) {
+                mPositionDeferred = true;
+                return;
+            }
+            if (mPendingPosition.compareAndSet(latest, null)) {
+                if (latest.mGeneration == mQueueGeneration) {
+                    mPositionRecord = latest.mRecord;
+                    appendQuietly(latest.mRecord);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 等待已经提交的记录写完，然后关闭日志。
+     */
+    void close() {
+        submit(() -> {
+            try {
+                if (mOut != null) {
+                    mOut.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close journal " + e);
+            }
+        });
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 关闭之后的写入被忽略。
+    private void submit(Runnable task) {
+        if (!mExecutor.isShutdown()) {
+            mExecutor.execute(task);
+        }
+    }
+
+    private void appendQuietly(byte[] record) {
+        try {
+            append(record);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append record " + e);
+        }
+    }
+
+    /**
+     * 追加一条记录。调用前 record 已经记为同类型的最新记录，所以需要压缩时压缩就写入了它。
+     */
+    private void append(byte[] record) throws IOException {
+        if (mOut == null || shouldCompact(record.length)) {
+            compact();
+            return;
+        }
+        writeRecord(mOut, record);
+        mOut.getFD().sync();
+        mSize += frameSize(record);
+    }
+
+    private boolean shouldCompact(int length) {
+        long live = mQueueRecord != null ? frameSize(mQueueRecord) : 0;
+        return mSize + length > Math.max(MIN_COMPACT_BYTES, HEADER_BYTES + 2 * live);
+    }
+
+    /**
+     * 只用最新的状态重写日志。先写临时文件再重命名，崩溃时旧文件仍然完整。
+     */
+    private void compact() throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        long size = HEADER_BYTES;
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            for (byte[] record : new byte[][] { mQueueRecord, mShuffleRecord, mPositionRecord }) {
+                if (record != null) {
+                    writeRecord(fos, record);
+                    size += frameSize(record);
+                }
+            }
+            fos.getFD().sync();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp);
+        }
+        mOut = new FileOutputStream(mFile, true);
+        mSize = size;
+    }
+
+    private static void writeRecord(FileOutputStream fos, byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        // 一次写入整条记录。
+        ByteBuffer frame = ByteBuffer.allocate(frameSize(record));
+        frame.putInt(record.length).put(record).putInt((int) crc.getValue());
+        fos.write(frame.array());
+    }
+
+    private static int frameSize(byte[] record) {
+        return 4 + record.length + 4;
+    }
+
+    private static byte[] nextRecord(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length <= 0 || length > MAX_RECORD_BYTES || buffer.remaining() < length + 4) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        buffer.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return buffer.getInt() == (int) crc.getValue() ? record : null;
+    }
+
+    private State apply(State state, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        switch (in.readByte()) {
+            case TYPE_QUEUE:
+                state = new State();
+                state.queue = decodeQueue(in);
+                mQueueRecord = record;
+                mShuffleRecord = null;
+                mPositionRecord = null;
+                break;
+            case TYPE_SHUFFLE:
+                if (state != null) {
+                    state.shuffling = in.readBoolean();
+                    state.shuffleSeed = in.readLong();
+                    state.shuffleFirst = in.readInt();
+                    mShuffleRecord = record;
+                }
+                break;
+            case TYPE_POSITION:
+                if (state != null) {
+                    state.index = in.readInt();
+                    state.position = in.readLong();
+                    mPositionRecord = record;
+                }
+                break;
+            default:
+                throw new IOException("Unknown record type");
+        }
+        return state;
+    }
+
+    /**
+     * 队列快照：所在节点、歌曲数、歌曲 ID，然后是路径。同一文件夹中的路径前缀相同，
+     * 所以每个路径只写和上一个路径不同的后缀。
+     */
+    private byte[] encodeQueue(PlayQueue queue) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(queue.size() * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_QUEUE);
+        out.writeUTF(queue.getContext() != null ? queue.getContext() : "");
+        out.writeInt(queue.size());
+        for (int i = 0; i < queue.size(); i++) {
+            out.writeLong(queue.getTrackId(i));
+        }
+        String previous = "";
+        for (int i = 0; i < queue.size(); i++) {
+            String path = mPathResolver.getPath(queue, i);
+            if (path == null) {
+                path = "";
+            }
+            int shared = commonPrefix(previous, path);
+            out.writeShort(shared);
+            out.writeUTF(path.substring(shared));
+            previous = path;
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static PlayQueue decodeQueue(DataInputStream in) throws IOException {
+        String context = in.readUTF();
+        int count = in.readInt();
+        if (count <= 0 || count > MusicCatalog.MAX_TRACKS) {
+            throw new EOFException("Bad queue size " + count);
+        }
+        long[] trackIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            trackIds[i] = in.readLong();
+        }
+        String[] paths = new String[count];
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int shared = in.readUnsignedShort();
+            if (shared > previous.length()) {
+                throw new EOFException("Bad path prefix");
+            }
+            previous = previous.substring(0, shared) + in.readUTF();
+            // 写入时路径未知的歌曲只能从目录中查找。
+            paths[i] = previous.isEmpty() ? null : previous;
+        }
+        return new PlayQueue(trackIds, context.isEmpty() ? null : context, paths);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xffff);
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -23,38 +23,46 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.AudioManager.OnAudioFocusChangeListener;
-import android.media.MediaDescription;
 import android.media.MediaMetadata;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
 import android.media.session.MediaSession;
-import android.media.session.MediaSession.QueueItem;
 import android.media.session.PlaybackState;
 import android.media.session.PlaybackState.CustomAction;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.car.media.localmediaplayer.nano.Proto.Playlist;
 import com.android.car.media.localmediaplayer.nano.Proto.Song;
 
 // Proto should be available in AOSP.
-import com.google.protobuf.nano.MessageNano;
 import com.google.protobuf.nano.InvalidProtocolBufferNanoException;
 
 import java.io.IOException;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 /**
- * TODO：考虑异步执行所有内容提供程序访问和播放器操作。
+ * 播放器和 MediaSession.Callback。
+ *
+ * 所有方法（包括 MediaPlayer 和音频焦点的回调）都在构造时传入的播放线程上执行，播放器的状态只在这个线程上访问，
+ * 所以读取 MediaStore 和检查文件都不会阻塞主线程上的浏览请求。播放状态由 {@link PlaybackJournal} 在后台写入。
+ * 必须在播放线程上构造，MediaPlayer 把事件发送到创建它的线程。
  */
 public class Player extends MediaSession.Callback {
     private static final String TAG = "LMPlayer";
     private static final String SHARED_PREFS_NAME = "com.android.car.media.localmediaplayer.prefs";
+    // 旧版本保存在 SharedPreferences 中的播放列表，只在第一次启动时读取一次。
     private static final String CURRENT_PLAYLIST_KEY = "__CURRENT_PLAYLIST_KEY__";
+    private static final String CROSSFADE_KEY = "__CROSSFADE_MS__";
     private static final int NOTIFICATION_ID = 42;
     private static final int REQUEST_CODE = 94043;
 
@@ -62,55 +70,123 @@ public class Player extends MediaSession.Callback {
     private static final float PLAYBACK_SPEED_STOPPED = 1.0f;
     private static final long PLAYBACK_POSITION_STOPPED = 0;
 
+    // 预取元数据的范围：当前歌曲之后和之前各几首。
+    private static final int PREFETCH_AHEAD = 5;
+    private static final int PREFETCH_BEHIND = 2;
+
+    // 会话队列只包含当前歌曲之前和之后这么多首，其余的队列项不创建。
+    private static final int QUEUE_WINDOW_BEHIND = 50;
+    private static final int QUEUE_WINDOW_AHEAD = 200;
+    // 窗口中当前歌曲之后少于这么多首（且窗口没有到达队列末尾）时重新发布窗口。
+    private static final int QUEUE_WINDOW_MIN_AHEAD = 20;
+
+    // 恢复时最多检查当前歌曲和之后这么多首，从第一首存在的歌曲开始播放，其余的在后台检查。
+    private static final int RESTORE_PROBE_TRACKS = 8;
+
+    // 播放时每隔这么久在日志中记录一次播放位置，恢复的位置最多落后这么久。
+    private static final long CHECKPOINT_INTERVAL_MS = 3000;
+
+    // 连续切歌时，最后一次按键之后安静这么久才真正准备目标歌曲。
+    private static final long SKIP_SETTLE_MS = 300;
+
     // 注意：队列循环，所以下一个/上一个总是可用的。
     private static final long PLAYING_ACTIONS = PlaybackState.ACTION_PAUSE
-            | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID | PlaybackState.ACTION_SKIP_TO_NEXT
+            | PlaybackState.ACTION_SEEK_TO
+            | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID | PlaybackState.ACTION_PLAY_FROM_SEARCH
+            | PlaybackState.ACTION_PREPARE_FROM_MEDIA_ID
+            | PlaybackState.ACTION_PREPARE_FROM_SEARCH | PlaybackState.ACTION_SKIP_TO_NEXT
             | PlaybackState.ACTION_SKIP_TO_PREVIOUS | PlaybackState.ACTION_SKIP_TO_QUEUE_ITEM;
 
     private static final long PAUSED_ACTIONS = PlaybackState.ACTION_PLAY
-            | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID | PlaybackState.ACTION_SKIP_TO_NEXT
+            | PlaybackState.ACTION_SEEK_TO | PlaybackState.ACTION_PREPARE
+            | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID | PlaybackState.ACTION_PLAY_FROM_SEARCH
+            | PlaybackState.ACTION_PREPARE_FROM_MEDIA_ID
+            | PlaybackState.ACTION_PREPARE_FROM_SEARCH | PlaybackState.ACTION_SKIP_TO_NEXT
             | PlaybackState.ACTION_SKIP_TO_PREVIOUS;
 
     private static final long STOPPED_ACTIONS = PlaybackState.ACTION_PLAY
-            | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID | PlaybackState.ACTION_SKIP_TO_NEXT
+            | PlaybackState.ACTION_PREPARE
+            | PlaybackState.ACTION_PLAY_FROM_MEDIA_ID | PlaybackState.ACTION_PLAY_FROM_SEARCH
+            | PlaybackState.ACTION_PREPARE_FROM_MEDIA_ID
+            | PlaybackState.ACTION_PREPARE_FROM_SEARCH | PlaybackState.ACTION_SKIP_TO_NEXT
             | PlaybackState.ACTION_SKIP_TO_PREVIOUS;
 
     private static final String SHUFFLE = "android.car.media.localmediaplayer.shuffle";
+    // 设置交叉淡入淡出的时长，extras 中的 EXTRA_CROSSFADE_MS 为 0 时关闭，歌曲之间无缝衔接。
+    static final String CROSSFADE = "android.car.media.localmediaplayer.crossfade";
+    static final String EXTRA_CROSSFADE_MS = "android.car.media.localmediaplayer.CROSSFADE_MS";
+    // 播放状态的 extras：整个队列的长度和当前歌曲在播放顺序中的位置（从 0 开始），
+    // 会话队列只是其中的一段，界面用它们显示“第 123 首，共 4512 首”。
+    static final String EXTRA_QUEUE_SIZE = "android.car.media.localmediaplayer.QUEUE_SIZE";
+    static final String EXTRA_QUEUE_POSITION = "android.car.media.localmediaplayer.QUEUE_POSITION";
+    private static final int MAX_CROSSFADE_MS = 12000;
 
     private final Context mContext;
     private final MediaSession mSession;
     private final AudioManager mAudioManager;
     private final PlaybackState mErrorState;
     private final DataModel mDataModel;
+    // 播放线程。
+    private final Handler mHandler;
     private final CustomAction mShuffle;
 
-    private List<QueueItem> mQueue;
+    // 队列保持原来的顺序，队列 ID 就是歌曲在队列中的下标。
+    private PlayQueue mQueue;
     private int mCurrentQueueIdx = 0;
+    // 引擎中准备好的下一首的队列下标，没有下一首时为 PlayQueue.NOT_FOUND。
+    private int mNextQueueIdx = PlayQueue.NOT_FOUND;
+    // 乱序播放时的播放顺序，不乱序时为 null。下一首/上一首按它在位置和下标之间换算。
+    private ShuffleOrder mShuffleOrder;
+    private boolean mShuffling;
+    // 已经发布到会话的队列窗口在播放顺序中的范围 [mWindowFrom, mWindowTo)。
+    private int mWindowFrom;
+    private int mWindowTo;
+    // 恢复的队列还在后台检查时为 true，这期间不发布会话队列。
+    private boolean mRestoring;
+    private final Random mRandom = new Random();
+    // 每次播放请求加一，使后台解析完成时可以判断请求是否已经被之后的请求取代。
+    private int mPlayRequest;
+    // 播放搜索请求到达的时间，开始出声时记录延迟。
+    private long mRequestTime;
+    // 播放器创建和最近一次 onPlay 的时间，第一次出声时记录从开机、启动服务和 onPlay 起的延迟。
+    private final long mCreateTime = SystemClock.elapsedRealtime();
+    private long mPlayTime;
+    private boolean mFirstAudio;
+    // 连续切歌还没有结束时为 STATE_SKIPPING_TO_NEXT 或 STATE_SKIPPING_TO_PREVIOUS：
+    // 当前位置已经移到目标歌曲，但还没有准备。
+    private int mSkipState = PlaybackState.STATE_NONE;
+    private final Runnable mSettleSkip = () -> settleSkip(true);
+    private final Runnable mCheckpoint = () -> checkpoint();
     private final SharedPreferences mSharedPrefs;
+    private final PlaybackJournal mJournal;
 
     private NotificationManager mNotificationManager;
     private Notification.Builder mPlayingNotificationBuilder;
     private Notification.Builder mPausedNotificationBuilder;
 
-    // TODO: Use multiple media players for gapless playback.
-    private final MediaPlayer mMediaPlayer;
+    // 两个 MediaPlayer 交替使用，下一首预先准备好，实现无缝播放。
+    private final PlaybackEngine mEngine;
 
-    public Player(Context context, MediaSession session, DataModel dataModel) {
+    public Player(Context context, MediaSession session, DataModel dataModel, Handler handler) {
         mContext = context;
         mDataModel = dataModel;
+        mHandler = handler;
         // 创建AudioManager
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
 
         mSession = session;
-        // 创建SharedPreferences用于记录播放状态
+        // 创建SharedPreferences用于记录设置
         mSharedPrefs = context.getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE);
+        // 队列和播放位置记录在日志中
+        mJournal = new PlaybackJournal(
+                new File(context.getNoBackupFilesDir(), PlaybackJournal.FILE_NAME),
+                dataModel::getPath);
 
         mShuffle = new CustomAction.Builder(SHUFFLE, context.getString(R.string.shuffle),
                 R.drawable.shuffle).build();
 
-        mMediaPlayer = new MediaPlayer();
-        mMediaPlayer.reset();
-        mMediaPlayer.setOnCompletionListener(mOnCompletionListener);
+        mEngine = new PlaybackEngine(mEngineListener);
+        mEngine.setCrossfade(mSharedPrefs.getInt(CROSSFADE_KEY, 0));
 
         // 初始化播放器状态，这里设定为error状态
         mErrorState = new PlaybackState.Builder()
@@ -164,6 +240,7 @@ public class Player extends MediaSession.Callback {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "onPlay");
         }
+        mPlayTime = SystemClock.elapsedRealtime();
         // 每次尝试播放媒体时都要检查权限
         if (!Utils.hasRequiredPermissions(mContext)) {
             setMissingPermissionError();
@@ -197,48 +274,215 @@ public class Player extends MediaSession.Callback {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "resumePlayback()");
         }
-        // 更新播放状态
-        updatePlaybackStatePlaying();
-        if (!mMediaPlayer.isPlaying()) {
-            mMediaPlayer.start();
+        if (mSkipState != PlaybackState.STATE_NONE) {
+            settleSkip(true);
+            return;
+        }
+        int state = mEngine.getState();
+        if (state != PlaybackEngine.STATE_IDLE && state != PlaybackEngine.STATE_ERROR) {
+            // 正在准备时只记录下来，准备完成后开始播放。
+            mEngine.play();
+        } else if (mQueue != null && !mQueue.isEmpty()) {
+            // 还没有加载当前歌曲（或者加载失败），重新加载。
+            try {
+                playCurrentQueueIndex(true);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to resume.", e);
+                mSession.setPlaybackState(mErrorState);
+            }
+        }
+    }
+
+    /**
+     * 准备当前歌曲但不播放，也不获取音频焦点。开机时车机在真正播放之前调用，
+     * 恢复的歌曲提前解码并跳转到上次的位置，之后的 onPlay 可以马上出声。
+     */
+    @Override
+    public void onPrepare() {
+        super.onPrepare();
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onPrepare");
+        }
+        if (!Utils.hasRequiredPermissions(mContext)) {
+            setMissingPermissionError();
+            return;
+        }
+        if (mSkipState != PlaybackState.STATE_NONE) {
+            settleSkip(false);
+            return;
+        }
+        int state = mEngine.getState();
+        if (mQueue == null || mQueue.isEmpty()
+                || (state != PlaybackEngine.STATE_IDLE && state != PlaybackEngine.STATE_ERROR)) {
+            // 没有可以准备的歌曲，或者已经准备好（例如恢复时）。
+            return;
+        }
+        try {
+            playCurrentQueueIndex(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to prepare.", e);
+            mSession.setPlaybackState(mErrorState);
         }
     }
 
+    @Override
+    public void onPrepareFromMediaId(String mediaId, Bundle extras) {
+        super.onPrepareFromMediaId(mediaId, extras);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onPrepareFromMediaId mediaId" + mediaId + " extras=" + extras);
+        }
+        if (!Utils.hasRequiredPermissions(mContext)) {
+            setMissingPermissionError();
+            return;
+        }
+        int request = ++mPlayRequest;
+        mRequestTime = 0;
+        mDataModel.whenCatalogLoaded(mHandler, () -> {
+            if (request == mPlayRequest) {
+                startPlayback(mediaId, false);
+            }
+        });
+    }
+
     @Override
     public void onPlayFromMediaId(String mediaId, Bundle extras) {
         super.onPlayFromMediaId(mediaId, extras);
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "onPlayFromMediaId mediaId" + mediaId + " extras=" + extras);
         }
-        requestAudioFocus(() -> startPlayback(mediaId));
+        if (!Utils.hasRequiredPermissions(mContext)) {
+            setMissingPermissionError();
+            return;
+        }
+        int request = ++mPlayRequest;
+        mRequestTime = 0;
+        mPlayTime = SystemClock.elapsedRealtime();
+        // 刚启动时目录可能还在加载，等加载完成再构建队列。
+        mDataModel.whenCatalogLoaded(mHandler, () -> {
+            if (request == mPlayRequest) {
+                requestAudioFocus(() -> startPlayback(mediaId, true));
+            }
+        });
     }
 
-    private void startPlayback(String key) {
+    @Override
+    public void onPlayFromSearch(String query, Bundle extras) {
+        super.onPlayFromSearch(query, extras);
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "startPlayback()");
+            Log.d(TAG, "onPlayFromSearch query=" + query + " extras=" + extras);
         }
-        List<QueueItem> queue = mDataModel.getQueue();
-        int idx = 0;
-        int foundIdx = -1;
-        for (QueueItem item : queue) {
-            if (item.getDescription().getMediaId().equals(key)) {
-                foundIdx = idx;
-                break;
+        if (!Utils.hasRequiredPermissions(mContext)) {
+            setMissingPermissionError();
+            return;
+        }
+        playFromSearch(query, extras, true);
+    }
+
+    @Override
+    public void onPrepareFromSearch(String query, Bundle extras) {
+        super.onPrepareFromSearch(query, extras);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onPrepareFromSearch query=" + query + " extras=" + extras);
+        }
+        if (!Utils.hasRequiredPermissions(mContext)) {
+            setMissingPermissionError();
+            return;
+        }
+        playFromSearch(query, extras, false);
+    }
+
+    /**
+     * 在后台解析搜索（第一次搜索时还要构建索引），然后先只用第一首歌开始播放，
+     * 完整的队列在后台构建好之后再替换进来，使出声不需要等待整个队列。
+     */
+    private void playFromSearch(String query, Bundle extras, boolean playWhenReady) {
+        int request = ++mPlayRequest;
+        long requestTime = SystemClock.elapsedRealtime();
+        // 刚启动时目录可能还在加载，等加载完成再解析，不把搜索当作没有结果。
+        mDataModel.whenCatalogLoaded(mHandler, () -> {
+            if (request != mPlayRequest) {
+                return;
             }
-            idx++;
+            IoScheduler.get().execute(IoScheduler.INTERACTIVE, () -> {
+                String mediaId = mDataModel.resolveSearch(query, extras);
+                mHandler.post(() -> onSearchResolved(request, requestTime, query, mediaId,
+                        playWhenReady));
+            });
+        });
+    }
+
+    private void onSearchResolved(int request, long requestTime, String query, String mediaId,
+            boolean playWhenReady) {
+        if (request != mPlayRequest) {
+            return;
         }
-        if (foundIdx == -1) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Resolved search \"" + query + "\" to " + mediaId + " in "
+                    + (SystemClock.elapsedRealtime() - requestTime) + "ms");
+        }
+        if (mediaId == null) {
+            mSession.setPlaybackState(new PlaybackState.Builder()
+                    .setState(PlaybackState.STATE_ERROR, 0, 0)
+                    .setErrorMessage(mContext.getString(R.string.no_search_results))
+                    .build());
+            return;
+        }
+        mRequestTime = playWhenReady ? requestTime : 0;
+        String first = MediaId.track(MediaId.parse(mediaId).getId(), null);
+        PlayQueue previous = mQueue;
+        if (playWhenReady) {
+            requestAudioFocus(() -> startPlayback(first, true));
+        } else {
+            startPlayback(first, false);
+        }
+        if (mQueue != previous) {
+            loadQueueInBackground(mediaId, mQueue);
+        }
+    }
+
+    /**
+     * 在后台构建 mediaId 的完整队列，如果这期间队列没有被替换，就换成完整的队列并保持当前歌曲。
+     */
+    private void loadQueueInBackground(String mediaId, PlayQueue placeholder) {
+        IoScheduler.get().execute(IoScheduler.INTERACTIVE, () -> {
+            PlayQueue queue = mDataModel.loadQueue(mediaId);
+            mHandler.post(() -> {
+                if (queue == null || mQueue != placeholder) {
+                    return;
+                }
+                int foundIdx = queue.indexOf(MediaId.parse(mediaId).getId());
+                setQueue(queue, foundIdx != PlayQueue.NOT_FOUND ? foundIdx : 0);
+                prefetchMetadata();
+                updateSessionQueueState();
+                prepareNext();
+                // 队列 ID 变了，更新播放状态中的当前队列项。
+                updatePlaybackState();
+            });
+        });
+    }
+
+    private void startPlayback(String key, boolean playWhenReady) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "startPlayback()");
+        }
+        cancelSkip();
+        // 队列由媒体 ID 决定：歌曲所在节点中的所有歌曲，或者递归播放的文件夹中的所有歌曲。
+        PlayQueue queue = mDataModel.loadQueue(key);
+        if (queue == null) {
             mSession.setPlaybackState(mErrorState);
             return;
         }
-        mQueue = new ArrayList<>(queue);
-        mCurrentQueueIdx = foundIdx;
-        QueueItem current = mQueue.get(mCurrentQueueIdx);
-        String path = current.getDescription().getExtras().getString(DataModel.PATH_KEY);
-        MediaMetadata metadata = mDataModel.getMetadata(current.getDescription().getMediaId());
+        MediaId id = MediaId.parse(key);
+        int foundIdx = MediaId.TRACK.equals(id.getType())
+                ? queue.indexOf(id.getId()) : PlayQueue.NOT_FOUND;
+        if (foundIdx == PlayQueue.NOT_FOUND) {
+            // 递归播放文件夹时从第一首开始，乱序播放时从随机的一首开始。
+            foundIdx = mShuffling ? mRandom.nextInt(queue.size()) : 0;
+        }
+        setQueue(queue, foundIdx);
         updateSessionQueueState();
         try {
-            play(path, metadata);
+            playCurrentQueueIndex(playWhenReady);
         } catch (IOException e) {
             Log.e(TAG, "Playback failed.", e);
             mSession.setPlaybackState(mErrorState);
@@ -260,21 +504,23 @@ public class Player extends MediaSession.Callback {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "pausePlayback()");
         }
-        long currentPosition = 0;
-        if (mMediaPlayer.isPlaying()) {
-            currentPosition = mMediaPlayer.getCurrentPosition();
-            mMediaPlayer.pause();
+        if (mSkipState != PlaybackState.STATE_NONE) {
+            // 连续切歌时暂停：准备好目标歌曲，但不播放。
+            settleSkip(false);
+            return;
         }
-        // 更新播放状态
-        PlaybackState state = new PlaybackState.Builder()
-                .setState(PlaybackState.STATE_PAUSED, currentPosition, PLAYBACK_SPEED_STOPPED)
-                .setActions(PAUSED_ACTIONS)
-                .addCustomAction(mShuffle)
-                .setActiveQueueItemId(mQueue.get(mCurrentQueueIdx).getQueueId())
-                .build();
-        mSession.setPlaybackState(state);
-        // 更新媒体的Notification状态。
-        postMediaNotification(mPausedNotificationBuilder);
+        // 播放状态由引擎的状态回调更新。
+        mEngine.pause();
+    }
+
+    @Override
+    public void onSeekTo(long pos) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onSeekTo pos=" + pos);
+        }
+        // 正在准备时记录下来，准备完成后再跳转。
+        mEngine.seekTo((int) pos);
+        updatePlaybackState();
     }
 
     @Override
@@ -282,7 +528,7 @@ public class Player extends MediaSession.Callback {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "onSkipToNext()");
         }
-        safeAdvance();
+        skip(1);
     }
 
     private void safeAdvance() {
@@ -299,42 +545,73 @@ public class Player extends MediaSession.Callback {
             Log.d(TAG, "advance()");
         }
         // 如果存在，请转到下一首歌曲。
-        // 请注意，如果您要支持无缝播放，则必须更改此代码，
-        // 以便拥有当前正在播放和正在加载的MediaPlayer，并在它们之间进行切换，同时还调用setNextMediaPlayer。
         if (mQueue != null && !mQueue.isEmpty()) {
             // 当我们跑出当前队列的末尾时，继续循环。
-            mCurrentQueueIdx = (mCurrentQueueIdx + 1) % mQueue.size();
-            playCurrentQueueIndex();
+            mCurrentQueueIdx = queueIndexAt(1);
+            playCurrentQueueIndex(true);
         } else {
             // 停止播放
             stopPlayback();
         }
     }
 
-    private void playCurrentQueueIndex() throws IOException {
-        MediaDescription next = mQueue.get(mCurrentQueueIdx).getDescription();
-        String path = next.getExtras().getString(DataModel.PATH_KEY);
-        MediaMetadata metadata = mDataModel.getMetadata(next.getMediaId());
-        play(path, metadata);
+    private void playCurrentQueueIndex(boolean playWhenReady) throws IOException {
+        // 歌曲可能已经从库中删除，队列中也没有保存路径：按播放顺序跳到之后第一首能播放的。
+        int index = findPlayableIndex(0);
+        if (index == PlayQueue.NOT_FOUND) {
+            Log.w(TAG, "No playable track in the queue");
+            mEngine.stop();
+            mSession.setPlaybackState(mErrorState);
+            return;
+        }
+        mCurrentQueueIdx = index;
+        String path = mDataModel.getPath(mQueue, mCurrentQueueIdx);
+        MediaMetadata metadata = mDataModel.getMetadata(mQueue.getTrackId(mCurrentQueueIdx));
+        prefetchMetadata();
+        maybeMoveQueueWindow();
+        play(path, metadata, playWhenReady);
+    }
+
+    /**
+     * 从当前歌曲之后第 delta 首开始按播放顺序查找第一首有路径的歌曲，返回它的队列下标，
+     * 整个队列都没有路径时返回 PlayQueue.NOT_FOUND。
+     */
+    private int findPlayableIndex(int delta) {
+        for (int i = 0; i < mQueue.size(); i++) {
+            int index = queueIndexAt(delta + i);
+            if (mDataModel.getPath(mQueue, index) != null) {
+                return index;
+            }
+        }
+        return PlayQueue.NOT_FOUND;
+    }
+
+    /**
+     * 预先解析当前位置前后几首歌的元数据，使切歌时不需要在播放线程上查询 MediaStore。
+     */
+    private void prefetchMetadata() {
+        int count = Math.min(mQueue.size(), PREFETCH_AHEAD + PREFETCH_BEHIND + 1);
+        long[] trackIds = new long[count];
+        for (int i = 0; i < count; i++) {
+            trackIds[i] = mQueue.getTrackId(queueIndexAt(i - PREFETCH_BEHIND));
+        }
+        mDataModel.prefetchMetadata(trackIds);
     }
 
-    private void play(String path, MediaMetadata metadata) throws IOException {
+    private void play(String path, MediaMetadata metadata, boolean playWhenReady)
+            throws IOException {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "play path=" + path + " metadata=" + metadata);
         }
-        mMediaPlayer.reset();
-        mMediaPlayer.setDataSource(path);
-        mMediaPlayer.prepare();
+        // 异步准备，期间发布 STATE_BUFFERING，完成后由引擎的状态回调更新播放状态。
+        mEngine.prepare(path);
+        prepareNext();
         if (metadata != null) {
             mSession.setMetadata(metadata);
         }
-        // 判断此时是否获取到音频焦点
-        boolean wasGrantedAudio = requestAudioFocus(() -> {
-            mMediaPlayer.start();
-            updatePlaybackStatePlaying();
-        });
-        if (!wasGrantedAudio) {
-            pausePlayback();
+        // 没有获取到音频焦点时只准备，准备好后停在暂停状态。
+        if (playWhenReady) {
+            requestAudioFocus(() -> mEngine.play());
         }
     }
 
@@ -342,9 +619,8 @@ public class Player extends MediaSession.Callback {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "stopPlayback()");
         }
-        if (mMediaPlayer.isPlaying()) {
-            mMediaPlayer.stop();
-        }
+        cancelSkip();
+        mEngine.stop();
         // 更新播放状态
         PlaybackState state = new PlaybackState.Builder()
                 .setState(PlaybackState.STATE_STOPPED, PLAYBACK_POSITION_STOPPED,
@@ -359,42 +635,60 @@ public class Player extends MediaSession.Callback {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
             Log.d(TAG, "onSkipToPrevious()");
         }
-        safeRetreat();
+        skip(-1);
     }
 
-    private void safeRetreat() {
+    /**
+     * 合并连续的切歌：每次按键只移动队列位置，立即显示目标歌曲的元数据和状态，
+     * 等按键停下 SKIP_SETTLE_MS 之后才准备最后的目标歌曲，连按十次只准备一次。
+     */
+    private void skip(int delta) {
+        if (mQueue == null || mQueue.isEmpty()) {
+            stopPlayback();
+            return;
+        }
+        // 队列循环，第一首之前是最后一首。
+        mCurrentQueueIdx = queueIndexAt(delta);
+        mSkipState = delta > 0
+                ? PlaybackState.STATE_SKIPPING_TO_NEXT : PlaybackState.STATE_SKIPPING_TO_PREVIOUS;
+        // 停下正在播放的歌曲，它不会再结束并前进到别的歌曲。
+        mEngine.pause();
+        mSession.setMetadata(mDataModel.getMetadata(mQueue.getTrackId(mCurrentQueueIdx)));
+        prefetchMetadata();
+        maybeMoveQueueWindow();
+        updatePlaybackState();
+        mHandler.removeCallbacks(mSettleSkip);
+        mHandler.postDelayed(mSettleSkip, SKIP_SETTLE_MS);
+    }
+
+    /**
+     * 结束连续切歌，准备当前位置的歌曲。
+     */
+    private void settleSkip(boolean playWhenReady) {
+        cancelSkip();
         try {
-            retreat();
+            playCurrentQueueIndex(playWhenReady);
         } catch (IOException e) {
-            Log.e(TAG, "Failed to advance.", e);
+            Log.e(TAG, "Failed to skip.", e);
             mSession.setPlaybackState(mErrorState);
         }
     }
 
-    private void retreat() throws IOException {
-        if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "retreat()");
-        }
-        // 如果有下一首歌，请转到下一首。
-        // 请注意，如果要支持无间隙播放，则必须更改此代码，以便在调用setNextMediaPlayer的同时，
-        // 拥有当前正在播放和正在加载的MediaPlayer，并在两者之间进行切换。
-        if (mQueue != null) {
-            // 当我们跑完当前队列的末尾时，继续循环。
-            mCurrentQueueIdx--;
-            if (mCurrentQueueIdx < 0) {
-                mCurrentQueueIdx = mQueue.size() - 1;
-            }
-            playCurrentQueueIndex();
-        } else {
-            stopPlayback();
-        }
+    private void cancelSkip() {
+        mHandler.removeCallbacks(mSettleSkip);
+        mSkipState = PlaybackState.STATE_NONE;
     }
 
     @Override
     public void onSkipToQueueItem(long id) {
+        if (mQueue == null || id < 0 || id >= mQueue.size()) {
+            return;
+        }
+        cancelSkip();
         try {
+            // 队列 ID 就是下标，乱序播放时播放顺序不变，从这首继续。
             mCurrentQueueIdx = (int) id;
-            playCurrentQueueIndex();
+            playCurrentQueueIndex(true);
         } catch (IOException e) {
             Log.e(TAG, "Failed to play.", e);
             mSession.setPlaybackState(mErrorState);
@@ -407,81 +701,144 @@ public class Player extends MediaSession.Callback {
             case SHUFFLE:
                 shuffle();
                 break;
+            case CROSSFADE:
+                setCrossfade(extras != null ? extras.getInt(EXTRA_CROSSFADE_MS, 0) : 0);
+                break;
             default:
                 Log.e(TAG, "Unhandled custom action: " + action);
         }
     }
 
     /**
-     * 这是shuffle 的一个简单实现，之前播放的歌曲可能会在shuffle操作后重复。只能从主线程调用此函数。
-     * shuffle 可以理解为乱序播放。
+     * 切换乱序播放。只能从播放线程调用此函数。
+     *
+     * 乱序不改动队列，只换一个从当前歌曲开始的随机播放顺序，所以下一首/上一首不需要分配内存，
+     * 整个列表播完之前不会重复；关闭乱序后按原来的顺序从当前歌曲继续。
      */
     private void shuffle() {
+        mShuffling = !mShuffling;
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Shuffling");
-        }
-        // 以随机的形式重建队列。
-        if (mQueue != null && mQueue.size() > 2) {
-            QueueItem current = mQueue.remove(mCurrentQueueIdx);
-            // 打乱队列顺序
-            Collections.shuffle(mQueue);
-            mQueue.add(0, current);
-            // QueueItem 包含一个队列 id，当用户选择当前播放列表时，该 id 用作键。
-            // 这意味着必须重建 QueueItems 以设置其新 ID。
-            for (int i = 0; i < mQueue.size(); i++) {
-                mQueue.set(i, new QueueItem(mQueue.get(i).getDescription(), i));
-            }
-            mCurrentQueueIdx = 0;
+            Log.d(TAG, "Shuffle " + mShuffling);
+        }
+        if (mQueue != null && !mQueue.isEmpty()) {
+            setQueue(mQueue, mCurrentQueueIdx);
             // 更新MediaSession队列状态
             updateSessionQueueState();
+            prefetchMetadata();
+            prepareNext();
+        }
+    }
+
+    /**
+     * 替换队列和当前歌曲。乱序播放时生成新的播放顺序，从当前歌曲开始。
+     */
+    private void setQueue(PlayQueue queue, int index) {
+        mRestoring = false;
+        if (queue != mQueue) {
+            mJournal.writeQueue(queue);
+        }
+        mQueue = queue;
+        mCurrentQueueIdx = index;
+        mShuffleOrder = mShuffling && queue.size() > 1
+                ? new ShuffleOrder(queue.size(), mRandom.nextLong(), index) : null;
+        mJournal.writeShuffle(mShuffleOrder);
+    }
+
+    /**
+     * 返回按播放顺序从当前歌曲移动 delta 首之后的队列下标，队列循环。
+     */
+    private int queueIndexAt(int delta) {
+        int size = mQueue.size();
+        return indexAt(((positionOf(mCurrentQueueIdx) + delta) % size + size) % size);
+    }
+
+    // 播放顺序中的位置和队列下标之间的换算。
+    private int positionOf(int index) {
+        return mShuffleOrder != null ? mShuffleOrder.indexOf(index) : index;
+    }
+
+    private int indexAt(int position) {
+        return mShuffleOrder != null ? mShuffleOrder.get(position) : position;
+    }
+
+    /**
+     * 在另一个播放器上预先准备队列中的下一首，队列变化（切歌、乱序、替换队列）后都要调用。
+     */
+    private void prepareNext() {
+        // 队列循环，最后一首之后是第一首；跳过已经不能播放的歌曲。
+        mNextQueueIdx = mQueue == null || mQueue.isEmpty()
+                ? PlayQueue.NOT_FOUND : findPlayableIndex(1);
+        mEngine.setNext(mNextQueueIdx != PlayQueue.NOT_FOUND
+                ? mDataModel.getPath(mQueue, mNextQueueIdx) : null);
+    }
+
+    private void setCrossfade(int durationMs) {
+        int crossfade = Math.max(0, Math.min(durationMs, MAX_CROSSFADE_MS));
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Crossfade " + crossfade + "ms");
         }
+        mEngine.setCrossfade(crossfade);
+        mSharedPrefs.edit().putInt(CROSSFADE_KEY, crossfade).apply();
     }
 
     private void updateSessionQueueState() {
         mSession.setQueueTitle(mContext.getString(R.string.playlist));
-        mSession.setQueue(mQueue);
+        // 只为当前歌曲前后的一段按播放顺序创建队列项，ID 是歌曲在队列中的下标。
+        int position = positionOf(mCurrentQueueIdx);
+        mWindowFrom = Math.max(0, position - QUEUE_WINDOW_BEHIND);
+        mWindowTo = Math.min(mQueue.size(), position + QUEUE_WINDOW_AHEAD + 1);
+        int[] indices = new int[mWindowTo - mWindowFrom];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = indexAt(mWindowFrom + i);
+        }
+        mSession.setQueue(mDataModel.createQueueItems(mQueue, indices));
+    }
+
+    /**
+     * 当前歌曲移出已发布的窗口，或者接近窗口末尾时，重新发布以当前歌曲为中心的窗口。
+     * 在窗口内切歌只更新播放状态中的当前队列项，不重新发送队列。
+     */
+    private void maybeMoveQueueWindow() {
+        if (mRestoring) {
+            return;
+        }
+        int position = positionOf(mCurrentQueueIdx);
+        boolean nearEnd = mWindowTo < mQueue.size()
+                && position >= mWindowTo - QUEUE_WINDOW_MIN_AHEAD;
+        if (position < mWindowFrom || position >= mWindowTo || nearEnd) {
+            updateSessionQueueState();
+        }
     }
 
     public void destroy() {
+        mHandler.removeCallbacks(mCheckpoint);
         stopPlayback();
         mNotificationManager.cancelAll();
         mAudioManager.abandonAudioFocus(mAudioFocusListener);
-        mMediaPlayer.release();
+        mEngine.release();
+        mJournal.close();
     }
 
+    /**
+     * 在日志中记录最后的播放位置。队列在变化时就已经记录了。
+     */
     public void saveState() {
         if (mQueue == null || mQueue.isEmpty()) {
             return;
         }
+        checkpoint();
+    }
 
-        Playlist playlist = new Playlist();
-        playlist.songs = new Song[mQueue.size()];
-
-        int idx = 0;
-        for (QueueItem item : mQueue) {
-            Song song = new Song();
-            song.queueId = item.getQueueId();
-            MediaDescription description = item.getDescription();
-            song.mediaId = description.getMediaId();
-            song.title = description.getTitle().toString();
-            song.subtitle = description.getSubtitle().toString();
-            song.path = description.getExtras().getString(DataModel.PATH_KEY);
-
-            playlist.songs[idx] = song;
-            idx++;
+    /**
+     * 记录当前的播放位置，播放时每隔 CHECKPOINT_INTERVAL_MS 再记录一次。
+     */
+    private void checkpoint() {
+        mHandler.removeCallbacks(mCheckpoint);
+        long position = mSkipState != PlaybackState.STATE_NONE ? 0 : mEngine.getCurrentPosition();
+        mJournal.writePosition(mCurrentQueueIdx, position);
+        if (mEngine.isPlaying()) {
+            mHandler.postDelayed(mCheckpoint, CHECKPOINT_INTERVAL_MS);
         }
-        playlist.currentQueueId = mQueue.get(mCurrentQueueIdx).getQueueId();
-        playlist.currentSongPosition = mMediaPlayer.getCurrentPosition();
-        playlist.name = CURRENT_PLAYLIST_KEY;
-
-        // Go to Base64 to ensure that we can actually store the string in a sharedpref. This is
-        // slightly wasteful because of the fact that base64 expands the size a bit but it's a
-        // lot less riskier than abusing the java string to directly store bytes coming out of
-        // proto encoding.
-        String serialized = Base64.getEncoder().encodeToString(MessageNano.toByteArray(playlist));
-        SharedPreferences.Editor editor = mSharedPrefs.edit();
-        editor.putString(CURRENT_PLAYLIST_KEY, serialized);
-        editor.commit();
     }
 
     public boolean maybeRestoreState() {
@@ -489,10 +846,166 @@ public class Player extends MediaSession.Callback {
             setMissingPermissionError();
             return false;
         }
+        PlaybackJournal.State state = mJournal.read();
+        if (state == null) {
+            return maybeRestoreLegacyState();
+        }
+        long start = SystemClock.elapsedRealtime();
+        boolean ready = restoreQueue(state);
+        if (ready) {
+            prepareRestoredPlayback(state.position);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Restored " + mQueue.size() + " tracks in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms, ready=" + ready);
+        }
+        validateQueueInBackground(mQueue, !ready);
+        return true;
+    }
+
+    /**
+     * 恢复日志中的队列和乱序状态，但只检查当前歌曲和之后几首的文件，使播放马上就能继续。
+     * 当前歌曲不在时从之后第一首存在的歌曲的开头播放。这几首都不在时返回 false，等后台检查完成。
+     */
+    private boolean restoreQueue(PlaybackJournal.State state) {
+        PlayQueue queue = state.queue;
+        mQueue = queue;
+        mCurrentQueueIdx = state.index >= 0 && state.index < queue.size() ? state.index : 0;
+        mShuffling = state.shuffling;
+        mShuffleOrder = mShuffling && queue.size() > 1
+                ? new ShuffleOrder(queue.size(), state.shuffleSeed, state.shuffleFirst) : null;
+        mRestoring = true;
+        for (int i = 0; i < Math.min(queue.size(), RESTORE_PROBE_TRACKS); i++) {
+            int index = queueIndexAt(i);
+            String path = mDataModel.getPath(queue, index);
+            if (path != null && new File(path).exists()) {
+                if (i > 0) {
+                    state.position = 0;
+                }
+                mCurrentQueueIdx = index;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在后台检查恢复的队列中的文件（用户可能在两次运行之间删除了文件或者拔出了存储卡），
+     * 完成后去掉不存在的歌曲，并且只发布一次会话队列。这期间队列被替换时放弃结果。
+     */
+    private void validateQueueInBackground(PlayQueue queue, boolean prepare) {
+        IoScheduler.get().execute(IoScheduler.BACKGROUND, () -> {
+            long start = SystemClock.elapsedRealtime();
+            int[] remap = findExistingTracks(queue);
+            int count = 0;
+            for (int index : remap) {
+                count = Math.max(count, index + 1);
+            }
+            PlayQueue validated = queue;
+            if (count < queue.size()) {
+                long[] trackIds = new long[count];
+                String[] paths = new String[count];
+                for (int i = 0; i < remap.length; i++) {
+                    if (remap[i] >= 0) {
+                        trackIds[remap[i]] = queue.getTrackId(i);
+                        paths[remap[i]] = mDataModel.getPath(queue, i);
+                    }
+                }
+                validated = count > 0 ? new PlayQueue(trackIds, queue.getContext(), paths) : null;
+            }
+            Log.i(TAG, "Validated " + queue.size() + " restored tracks in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms, "
+                    + (queue.size() - count) + " missing");
+            PlayQueue result = validated;
+            mHandler.post(() -> onQueueValidated(queue, result, remap, prepare));
+        });
+    }
+
+    private void onQueueValidated(PlayQueue restored, PlayQueue validated, int[] remap,
+            boolean prepare) {
+        if (mQueue != restored) {
+            return;
+        }
+        if (validated == null) {
+            // 队列中的歌曲都不在了。
+            mQueue = null;
+            mShuffleOrder = null;
+            mRestoring = false;
+            stopPlayback();
+            return;
+        }
+        if (validated != restored) {
+            // 从当前歌曲开始按播放顺序找第一首还在的歌曲。乱序顺序随队列重新生成。
+            int index = 0;
+            for (int i = 0; i < restored.size(); i++) {
+                int candidate = remap[queueIndexAt(i)];
+                if (candidate >= 0) {
+                    index = candidate;
+                    break;
+                }
+            }
+            setQueue(validated, index);
+        }
+        mRestoring = false;
+        updateSessionQueueState();
+        if (prepare) {
+            prepareRestoredPlayback(0);
+        } else {
+            prefetchMetadata();
+            prepareNext();
+            updatePlaybackState();
+        }
+    }
+
+    /**
+     * 按目录批量检查文件是否存在：每个目录只列一次文件。返回每首歌在去掉不存在的歌曲之后的下标，
+     * 不存在的为 -1。
+     */
+    private int[] findExistingTracks(PlayQueue queue) {
+        HashMap<String, Set<String>> directories = new HashMap<>();
+        int[] remap = new int[queue.size()];
+        int count = 0;
+        for (int i = 0; i < queue.size(); i++) {
+            String path = mDataModel.getPath(queue, i);
+            int slash = path != null ? path.lastIndexOf('/') : -1;
+            boolean exists = false;
+            if (slash >= 0) {
+                String directory = path.substring(0, slash + 1);
+                Set<String> names = directories.get(directory);
+                if (names == null) {
+                    String[] list = new File(directory).list();
+                    names = list != null
+                            ? new HashSet<>(Arrays.asList(list)) : Collections.<String>emptySet();
+                    directories.put(directory, names);
+                }
+                exists = names.contains(path.substring(slash + 1));
+            }
+            remap[i] = exists ? count++ : -1;
+        }
+        return remap;
+    }
+
+    /**
+     * 准备恢复的歌曲并跳转到上次的位置，停在暂停状态，不获取音频焦点；由之后的 onPlay 开始播放。
+     */
+    private void prepareRestoredPlayback(long position) {
+        try {
+            playCurrentQueueIndex(false);
+            mEngine.seekTo((int) position);
+        } catch (IOException e) {
+            Log.e(TAG, "Restored queue, but couldn't prepare playback.");
+        }
+    }
+
+    /**
+     * 读取旧版本保存的 Base64 播放列表并删除它，之后的状态都记录在日志中。
+     */
+    private boolean maybeRestoreLegacyState() {
         String serialized = mSharedPrefs.getString(CURRENT_PLAYLIST_KEY, null);
         if (serialized == null) {
             return false;
         }
+        mSharedPrefs.edit().remove(CURRENT_PLAYLIST_KEY).apply();
 
         try {
             Playlist playlist = Playlist.parseFrom(Base64.getDecoder().decode(serialized));
@@ -500,16 +1013,7 @@ public class Player extends MediaSession.Callback {
                 return false;
             }
             updateSessionQueueState();
-
-            requestAudioFocus(() -> {
-                try {
-                    playCurrentQueueIndex();
-                    mMediaPlayer.seekTo(playlist.currentSongPosition);
-                    updatePlaybackStatePlaying();
-                } catch (IOException e) {
-                    Log.e(TAG, "Restored queue, but couldn't resume playback.");
-                }
-            });
+            prepareRestoredPlayback(playlist.currentSongPosition);
         } catch (IllegalArgumentException | InvalidProtocolBufferNanoException e) {
             // Couldn't restore the playlist. Not the end of the world.
             return false;
@@ -519,63 +1023,101 @@ public class Player extends MediaSession.Callback {
     }
 
     private boolean maybeRebuildQueue(Playlist playlist) {
-        List<QueueItem> queue = new ArrayList<>();
-        int foundIdx = 0;
+        List<Song> songs = new ArrayList<>();
         // You need to check if the playlist actually is still valid because the user could have
         // deleted files or taken out the sd card between runs so we might as well check this ahead
         // of time before we load up the playlist.
         for (Song song : playlist.songs) {
-            File tmp = new File(song.path);
-            if (!tmp.exists()) {
-                continue;
+            if (song.path != null && new File(song.path).exists()) {
+                songs.add(song);
             }
+        }
+        if (songs.isEmpty()) {
+            return false;
+        }
 
-            if (playlist.currentQueueId == song.queueId) {
-                foundIdx = queue.size();
-            }
+        // 旧版本以 TITLE_KEY 作为媒体 ID，这里一次性解析为歌曲 ID。
+        String[] paths = new String[songs.size()];
+        String[] titleKeys = new String[songs.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = songs.get(i).path;
+            titleKeys[i] = songs.get(i).mediaId;
+        }
+        long[] resolved = mDataModel.resolveLegacyTracks(paths, titleKeys);
 
-            Bundle bundle = new Bundle();
-            bundle.putString(DataModel.PATH_KEY, song.path);
-            MediaDescription description = new MediaDescription.Builder()
-                    .setMediaId(song.mediaId)
-                    .setTitle(song.title)
-                    .setSubtitle(song.subtitle)
-                    .setExtras(bundle)
-                    .build();
-            queue.add(new QueueItem(description, song.queueId));
+        long[] trackIds = new long[songs.size()];
+        int count = 0;
+        int foundIdx = 0;
+        for (int i = 0; i < songs.size(); i++) {
+            if (resolved[i] == DataModel.NO_TRACK) {
+                continue;
+            }
+            if (playlist.currentQueueId == songs.get(i).queueId) {
+                foundIdx = count;
+            }
+            // 目录可能还没有加载，保存路径使恢复不需要等待目录。
+            paths[count] = paths[i];
+            trackIds[count++] = resolved[i];
         }
 
-        if (queue.isEmpty()) {
+        if (count == 0) {
             return false;
         }
 
-        mQueue = queue;
-        mCurrentQueueIdx = foundIdx;  // Resumes from beginning if last playing song was not found.
+        // Resumes from beginning if last playing song was not found.
+        // 旧版本的队列没有所在节点。
+        setQueue(new PlayQueue(Arrays.copyOf(trackIds, count), null,
+                Arrays.copyOf(paths, count)), foundIdx);
 
         return true;
     }
 
-    // 更新播放状态
-    private void updatePlaybackStatePlaying() {
-        if (!mSession.isActive()) {
+    // 按引擎的状态更新播放状态和通知
+    private void updatePlaybackState() {
+        if (mQueue == null || mQueue.isEmpty()) {
+            return;
+        }
+        int state = mEngine.getState();
+        if (state == PlaybackEngine.STATE_ERROR) {
+            mSession.setPlaybackState(mErrorState);
+            return;
+        }
+        if (state == PlaybackEngine.STATE_IDLE) {
+            return;
+        }
+        // 准备期间如果之后要播放，显示缓冲中；否则和暂停一样。
+        boolean playing = state == PlaybackEngine.STATE_PLAYING
+                || (state == PlaybackEngine.STATE_PREPARING && mEngine.getPlayWhenReady());
+        int sessionState;
+        if (mSkipState != PlaybackState.STATE_NONE) {
+            playing = true;
+            sessionState = mSkipState;
+        } else if (state == PlaybackEngine.STATE_PREPARING && playing) {
+            sessionState = PlaybackState.STATE_BUFFERING;
+        } else {
+            sessionState = playing ? PlaybackState.STATE_PLAYING : PlaybackState.STATE_PAUSED;
+        }
+        if (playing && !mSession.isActive()) {
             mSession.setActive(true);
         }
+        float speed = state == PlaybackEngine.STATE_PLAYING
+                ? PLAYBACK_SPEED : PLAYBACK_SPEED_STOPPED;
         // 更新媒体会话中的状态。
-        CustomAction action = new CustomAction
-                .Builder("android.car.media.localmediaplayer.shuffle",
-                mContext.getString(R.string.shuffle),
-                R.drawable.shuffle)
-                .build();
-        PlaybackState state = new PlaybackState.Builder()
-                .setState(PlaybackState.STATE_PLAYING,
-                        mMediaPlayer.getCurrentPosition(), PLAYBACK_SPEED)
-                .setActions(PLAYING_ACTIONS)
-                .addCustomAction(action)
-                .setActiveQueueItemId(mQueue.get(mCurrentQueueIdx).getQueueId())
+        long position = mSkipState != PlaybackState.STATE_NONE ? 0 : mEngine.getCurrentPosition();
+        Bundle extras = new Bundle();
+        extras.putInt(EXTRA_QUEUE_SIZE, mQueue.size());
+        extras.putInt(EXTRA_QUEUE_POSITION, positionOf(mCurrentQueueIdx));
+        PlaybackState playbackState = new PlaybackState.Builder()
+                .setState(sessionState, position, speed)
+                .setActions(playing ? PLAYING_ACTIONS : PAUSED_ACTIONS)
+                .addCustomAction(mShuffle)
+                .setActiveQueueItemId(mCurrentQueueIdx)
+                .setExtras(extras)
                 .build();
-        mSession.setPlaybackState(state);
+        mSession.setPlaybackState(playbackState);
+        checkpoint();
         // 更新媒体样式的通知。
-        postMediaNotification(mPlayingNotificationBuilder);
+        postMediaNotification(playing ? mPlayingNotificationBuilder : mPausedNotificationBuilder);
     }
 
     // 更新媒体的Notification状态
@@ -583,11 +1125,11 @@ public class Player extends MediaSession.Callback {
         if (mQueue == null) {
             return;
         }
-        MediaDescription current = mQueue.get(mCurrentQueueIdx).getDescription();
+        MediaMetadata current = mDataModel.getMetadata(mQueue.getTrackId(mCurrentQueueIdx));
         Notification notification = builder
                 .setStyle(new Notification.MediaStyle().setMediaSession(mSession.getSessionToken()))
-                .setContentTitle(current.getTitle())
-                .setContentText(current.getSubtitle())
+                .setContentTitle(current.getString(MediaMetadata.METADATA_KEY_TITLE))
+                .setContentText(current.getString(MediaMetadata.METADATA_KEY_ALBUM))
                 .setShowWhen(false)
                 .build();
         notification.flags |= Notification.FLAG_NO_CLEAR;
@@ -606,27 +1148,62 @@ public class Player extends MediaSession.Callback {
     }
 
 
-    private OnAudioFocusChangeListener mAudioFocusListener = new OnAudioFocusChangeListener() {
+    // 音频焦点的变化在主线程上回调，转到播放线程处理。
+    private OnAudioFocusChangeListener mAudioFocusListener =
+            focus -> mHandler.post(() -> onAudioFocusChange(focus));
+
+    private void onAudioFocusChange(int focus) {
+        switch (focus) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                resumePlayback();
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS:
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                pausePlayback();
+                break;
+            default:
+                Log.e(TAG, "Unhandled audio focus type: " + focus);
+        }
+    }
+
+    private PlaybackEngine.Listener mEngineListener = new PlaybackEngine.Listener() {
         @Override
-        public void onAudioFocusChange(int focus) {
-            switch (focus) {
-                case AudioManager.AUDIOFOCUS_GAIN:
-                    resumePlayback();
-                    break;
-                case AudioManager.AUDIOFOCUS_LOSS:
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    pausePlayback();
-                    break;
-                default:
-                    Log.e(TAG, "Unhandled audio focus type: " + focus);
+        public void onStateChanged(int state) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "onStateChanged state=" + state);
+            }
+            updatePlaybackState();
+            if (state == PlaybackEngine.STATE_PLAYING && !mFirstAudio) {
+                mFirstAudio = true;
+                long now = SystemClock.elapsedRealtime();
+                Log.i(TAG, "First audio " + now + "ms after boot, " + (now - mCreateTime)
+                        + "ms after service start, "
+                        + (mPlayTime != 0 ? (now - mPlayTime) + "ms after play" : "no play"));
+            }
+            if (state == PlaybackEngine.STATE_PLAYING && mRequestTime != 0) {
+                Log.i(TAG, "Playback started " + (SystemClock.elapsedRealtime() - mRequestTime)
+                        + "ms after search request");
+                mRequestTime = 0;
             }
         }
-    };
 
-    private OnCompletionListener mOnCompletionListener = new OnCompletionListener() {
         @Override
-        public void onCompletion(MediaPlayer mediaPlayer) {
+        public void onNextStarted() {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "onNextStarted()");
+            }
+            // 下一首已经在播放，只需要更新队列位置和会话状态。
+            mCurrentQueueIdx = mNextQueueIdx;
+            mSession.setMetadata(mDataModel.getMetadata(mQueue.getTrackId(mCurrentQueueIdx)));
+            prefetchMetadata();
+            maybeMoveQueueWindow();
+            updatePlaybackState();
+            prepareNext();
+        }
+
+        @Override
+        public void onCompletion() {
             if (Log.isLoggable(TAG, Log.DEBUG)) {
                 Log.d(TAG, "onCompletion()");
             }
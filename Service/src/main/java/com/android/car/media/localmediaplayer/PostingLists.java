@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 一组倒排列表（posting list），以 CSR 的形式保存在两个 int 数组中：
+ * 第 i 个列表的内容是 mValues[mOffsets[i] .. mOffsets[i + 1])。
+ */
+final class PostingLists {
+    private final int[] mOffsets;
+    private final int[] mValues;
+
+    PostingLists(int[] offsets, int[] values) {
+        mOffsets = offsets;
+        mValues = values;
+    }
+
+    int listCount() {
+        return mOffsets.length - 1;
+    }
+
+    int size(int list) {
+        return mOffsets[list + 1] - mOffsets[list];
+    }
+
+    int get(int list, int i) {
+        return mValues[mOffsets[list] + i];
+    }
+
+    int[] toArray(int list) {
+        return Arrays.copyOfRange(mValues, mOffsets[list], mOffsets[list + 1]);
+    }
+
+    long estimateSizeBytes() {
+        return 32 + 4L * mOffsets.length + 4L * mValues.length;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        MusicCatalog.writeInts(out, mOffsets);
+        MusicCatalog.writeInts(out, mValues);
+    }
+
+    static PostingLists readFrom(ByteBuffer buffer) {
+        return new PostingLists(MusicCatalog.readInts(buffer), MusicCatalog.readInts(buffer));
+    }
+
+    /**
+     * 由 (list, value) 对构建，使用计数排序，所以同一列表中的值保持输入顺序。
+     */
+    static PostingLists build(int listCount, int[] lists, int[] values, int count) {
+        int[] offsets = new int[listCount + 1];
+        for (int i = 0; i < count; i++) {
+            offsets[lists[i] + 1]++;
+        }
+        for (int i = 0; i < listCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] cursor = Arrays.copyOf(offsets, listCount);
+        int[] out = new int[count];
+        for (int i = 0; i < count; i++) {
+            out[cursor[lists[i]]++] = values[i];
+        }
+        return new PostingLists(offsets, out);
+    }
+}
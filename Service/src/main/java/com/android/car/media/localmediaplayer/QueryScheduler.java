@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.media.browse.MediaBrowser.MediaItem;
+import android.service.media.MediaBrowserService.Result;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 浏览查询的调度器。
+ *
+ * <ul>
+ * <li>相同 key（节点 + 分页）的并发请求只执行一次，结果发送给所有请求者。</li>
+ * <li>每个客户端有自己的队列，客户端之间轮流执行，一个客户端不能饿死另一个。</li>
+ * <li>同一客户端内最新的请求最先执行，因为那是用户正在看的节点。</li>
+ * <li>被取消的请求一定会以 null 结果完成，客户端不会一直挂起。</li>
+ * </ul>
+ *
+ * 查询在 {@link IoScheduler} 的交互类中执行，优先于后台的目录加载和同步。
+ */
+final class QueryScheduler {
+    private static final String TAG = "LMBQueryScheduler";
+
+    // 每个客户端最多排队这么多请求，超出时取消最旧的。
+    private static final int MAX_PENDING_PER_CLIENT = 8;
+
+    interface Query {
+        List<MediaItem> run();
+    }
+
+    /**
+     * 查询结果的接收者，通常包装一个浏览请求的 {@link Result}。
+     */
+    interface Reply {
+        void detach();
+
+        void sendResult(List<MediaItem> items);
+    }
+
+    private final Object mLock = new Object();
+    // 以下字段由 mLock 保护。
+    private final HashMap<String, Job> mJobs = new HashMap<>();
+    private final LinkedHashMap<String, ArrayDeque<Job>> mClients = new LinkedHashMap<>();
+    private boolean mShutdown;
+
+    /**
+     * 把浏览请求的 {@link Result} 包装成 {@link Reply}。
+     */
+    static Reply reply(Result<List<MediaItem>> result) {
+        return new Reply() {
+            @Override
+            public void detach() {
+                result.detach();
+            }
+
+            @Override
+            public void sendResult(List<MediaItem> items) {
+                result.sendResult(items);
+            }
+        };
+    }
+
+    void submit(String client, String key, Result<List<MediaItem>> result, Query query) {
+        submit(client, key, reply(result), query);
+    }
+
+    /**
+     * 提交一个查询。reply 会被 detach，并在查询完成或被取消时发送。
+     */
+    void submit(String client, String key, Reply reply, Query query) {
+        reply.detach();
+        submitDetached(client, key, reply, query);
+    }
+
+    /**
+     * 和 {@link #submit} 相同，但 reply 已经由调用者 detach，例如在等待目录加载之前。
+     * Result 只能 detach 一次。
+     */
+    void submitDetached(String client, String key, Reply reply, Query query) {
+        Job cancelled = null;
+        boolean isNew;
+        synchronized (mLock) {
+            if (mShutdown) {
+                reply.sendResult(null);
+                return;
+            }
+            Job job = mJobs.get(key);
+            isNew = job == null;
+            if (isNew) {
+                job = new Job(key, query);
+                mJobs.put(key, job);
+            }
+            job.mReplies.add(reply);
+            if (!job.mStarted) {
+                ArrayDeque<Job> queue = mClients.get(client);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    mClients.put(client, queue);
+                }
+                queue.remove(job);
+                queue.addFirst(job);
+                cancelled = trimLocked(queue);
+            }
+            if (isNew) {
+                IoScheduler.get().execute(IoScheduler.INTERACTIVE, this::runNext);
+            }
+        }
+        if (cancelled != null) {
+            cancelled.complete(null);
+        }
+    }
+
+    /**
+     * 取消所有还没有开始的查询，并停止接受新的查询。
+     */
+    void shutdown() {
+        List<Job> cancelled = new ArrayList<>();
+        synchronized (mLock) {
+            mShutdown = true;
+            for (Job job : mJobs.values()) {
+                if (!job.mStarted) {
+                    cancelled.add(job);
+                }
+            }
+            mJobs.values().removeAll(cancelled);
+            mClients.clear();
+        }
+        for (Job job : cancelled) {
+            job.complete(null);
+        }
+    }
+
+    private Job trimLocked(ArrayDeque<Job> queue) {
+        Iterator<Job> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().mStarted) {
+                it.remove();
+            }
+        }
+        if (queue.size() <= MAX_PENDING_PER_CLIENT) {
+            return null;
+        }
+        Job oldest = queue.removeLast();
+        // 其他客户端可能也在等这个查询，此时不能取消。
+        for (ArrayDeque<Job> other : mClients.values()) {
+            if (other.contains(oldest)) {
+                return null;
+            }
+        }
+        mJobs.remove(oldest.mKey);
+        return oldest;
+    }
+
+    private Job pickLocked() {
+        Iterator<Map.Entry<String, ArrayDeque<Job>>> it = mClients.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ArrayDeque<Job>> entry = it.next();
+            ArrayDeque<Job> queue = entry.getValue();
+            Job job = queue.pollFirst();
+            while (job != null && job.mStarted) {
+                job = queue.pollFirst();
+            }
+            it.remove();
+            if (job == null) {
+                continue;
+            }
+            // 轮到的客户端放到末尾。
+            if (!queue.isEmpty()) {
+                mClients.put(entry.getKey(), queue);
+            }
+            return job;
+        }
+        return null;
+    }
+
+    private void runNext() {
+        Job job;
+        synchronized (mLock) {
+            job = pickLocked();
+            if (job == null) {
+                return;
+            }
+            job.mStarted = true;
+        }
+        List<MediaItem> items = null;
+        try {
+            items = job.mQuery.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Query " + job.mKey + " failed", e);
+        }
+        synchronized (mLock) {
+            mJobs.remove(job.mKey);
+        }
+        job.complete(items);
+    }
+
+    private static final class Job {
+        final String mKey;
+        final Query mQuery;
+        final List<Reply> mReplies = new ArrayList<>();
+        boolean mStarted;
+
+        Job(String key, Query query) {
+            mKey = key;
+            mQuery = query;
+        }
+
+        /**
+         * 只能在 job 已经从 mJobs 中移除之后调用，此时不会再有新的请求者加入。
+         */
+        void complete(List<MediaItem> items) {
+            for (Reply reply : mReplies) {
+                reply.sendResult(items);
+            }
+        }
+    }
+}
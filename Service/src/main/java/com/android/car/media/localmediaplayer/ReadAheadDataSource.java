@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import android.media.MediaDataSource;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带预读的 MediaDataSource，代替直接把路径交给 MediaPlayer。
+ *
+ * 文件按 {@link #CHUNK_BYTES} 分块，解码器读到第 k 块时，后台线程按顺序把 k 之后的
+ * {@link #READ_AHEAD_CHUNKS} 块读进内存，解码器的读取通常直接从内存复制，不等待存储。
+ * 读取作为 {@link IoScheduler#PLAYBACK} 类在一个线程上按顺序执行，顺序读取比并发读取更适合 U 盘。
+ * 块保存在一个 {@link #RING_CHUNKS} 个槽位的环中，第 k 块放在第 k % RING_CHUNKS 个槽位，
+ * 缓冲区来自所有数据源共用的 {@link BufferPool}。块还没有读完时解码器等待（计为一次卡顿），
+ * 块不在环中（跳转）时在解码器的线程上把整块读进环中，缓冲区池用完时直接读取存储。
+ *
+ * 下一首歌在切换之前用 {@link #prefetchHead} 把开头几 MB 读进内存，切换时不需要等待存储，
+ * 即使存储同时还在被音乐库扫描访问。
+ */
+final class ReadAheadDataSource extends MediaDataSource {
+    private static final String TAG = "LMBReadAhead";
+
+    static final int CHUNK_BYTES = 256 * 1024;
+    private static final int RING_CHUNKS = 16;
+    private static final int READ_AHEAD_CHUNKS = 8;
+    // 下一首预先读入的开头部分。
+    static final long HEAD_PREFETCH_BYTES = 4L * 1024 * 1024;
+    // 等待一块读完的上限，超时后直接读取。
+    private static final long STALL_TIMEOUT_MS = 2000;
+
+    // 当前歌曲和下一首各一个环。
+    private static final BufferPool sPool = new BufferPool(2 * RING_CHUNKS, CHUNK_BYTES);
+
+    private static final AtomicLong sStalls = new AtomicLong();
+    private static final AtomicLong sStallMs = new AtomicLong();
+    private static final AtomicLong sDirectReads = new AtomicLong();
+    private static final AtomicLong sMissLoads = new AtomicLong();
+    private static final AtomicLong sChunkReads = new AtomicLong();
+
+    private static final class Chunk {
+        long index = -1;
+        int length;
+        boolean loading;
+        boolean ready;
+        ByteBuffer buffer;
+    }
+
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    // 以下字段由 this 保护。
+    private final Chunk[] mRing = new Chunk[RING_CHUNKS];
+    private boolean mClosed;
+
+    ReadAheadDataSource(String path) throws IOException {
+        mPath = path;
+        mFile = new RandomAccessFile(path, "r");
+        mChannel = mFile.getChannel();
+        mSize = mChannel.size();
+        for (int i = 0; i < RING_CHUNKS; i++) {
+            mRing[i] = new Chunk();
+        }
+    }
+
+    /**
+     * 在后台读入文件开头的 bytes 字节（最多一个环），用于即将播放的下一首。
+     */
+    synchronized void prefetchHead(long bytes) {
+        fill(0, (int) Math.min(RING_CHUNKS, (bytes + CHUNK_BYTES - 1) / CHUNK_BYTES));
+    }
+
+    @Override
+    public long getSize() {
+        return mSize;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (position >= mSize) {
+            return -1;
+        }
+        int total = 0;
+        while (total < size && position + total < mSize) {
+            int n = readChunk(position + total, buffer, offset + total, size - total);
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+        }
+        return total > 0 ? total : -1;
+    }
+
+    /**
+     * 从 position 所在的块中读取，不跨块，返回读取的字节数。
+     */
+    private int readChunk(long position, byte[] buffer, int offset, int size) throws IOException {
+        long index = position / CHUNK_BYTES;
+        int start = (int) (position - index * CHUNK_BYTES);
+        Chunk chunk = mRing[(int) (index % RING_CHUNKS)];
+        boolean claimed = false;
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Data source closed");
+            }
+            if (chunk.index == index && chunk.loading) {
+                waitForChunk(chunk, index);
+            }
+            if (chunk.index != index && !chunk.loading) {
+                // 不在环中（例如跳转之后）：在当前线程把整块读进环中，占住槽位，读取线程不会再读一遍。
+                chunk.index = index;
+                chunk.ready = false;
+                chunk.loading = true;
+                claimed = true;
+            }
+            fill(index + 1, READ_AHEAD_CHUNKS);
+        }
+        if (claimed) {
+            sMissLoads.incrementAndGet();
+            load(chunk, index);
+        }
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Data source closed");
+            }
+            if (chunk.index == index && chunk.ready && start < chunk.length) {
+                int n = Math.min(size, chunk.length - start);
+                ByteBuffer view = chunk.buffer.duplicate();
+                view.position(start);
+                view.get(buffer, offset, n);
+                return n;
+            }
+        }
+        // 缓冲区池用完、槽位正被别的块占用或者等待超时。
+        sDirectReads.incrementAndGet();
+        int length = (int) Math.min(size, CHUNK_BYTES - start);
+        return mChannel.read(ByteBuffer.wrap(buffer, offset, length), position);
+    }
+
+    private void waitForChunk(Chunk chunk, long index) {
+        long begin = SystemClock.elapsedRealtime();
+        long deadline = begin + STALL_TIMEOUT_MS;
+        sStalls.incrementAndGet();
+        try {
+            while (chunk.index == index && chunk.loading && !mClosed) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    break;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sStallMs.addAndGet(SystemClock.elapsedRealtime() - begin);
+    }
+
+    /**
+     * 在后台读入从 first 开始的 count 块。槽位正在读取别的块时跳过，之后再读。
+     */
+    private void fill(long first, int count) {
+        for (long index = first; index < first + count; index++) {
+            if (mClosed || index * CHUNK_BYTES >= mSize) {
+                return;
+            }
+            Chunk chunk = mRing[(int) (index % RING_CHUNKS)];
+            if (chunk.index == index || chunk.loading) {
+                continue;
+            }
+            chunk.index = index;
+            chunk.ready = false;
+            chunk.loading = true;
+            long target = index;
+            IoScheduler.get().execute(IoScheduler.PLAYBACK, () -> load(chunk, target));
+        }
+    }
+
+    private void load(Chunk chunk, long index) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = chunk.buffer;
+        }
+        if (buffer == null) {
+            buffer = sPool.acquire();
+        }
+        boolean ready = false;
+        if (buffer != null) {
+            try {
+                buffer.clear();
+                long position = index * CHUNK_BYTES;
+                while (buffer.hasRemaining() && position + buffer.position() < mSize) {
+                    if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+                sChunkReads.incrementAndGet();
+                ready = true;
+            } catch (IOException e) {
+                // 也包括读取期间被关闭。
+                if (!isClosed()) {
+                    Log.w(TAG, "Failed to read " + mPath + " at chunk " + index + ": " + e);
+                }
+            }
+        }
+        synchronized (this) {
+            chunk.loading = false;
+            if (mClosed) {
+                chunk.buffer = null;
+                if (buffer != null) {
+                    sPool.release(buffer);
+                }
+            } else {
+                chunk.buffer = buffer;
+                chunk.ready = ready;
+                chunk.length = ready ? buffer.position() : 0;
+                if (!ready) {
+                    chunk.index = -1;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            // 正在读取的块由读取线程在完成后归还。
+            for (Chunk chunk : mRing) {
+                if (!chunk.loading && chunk.buffer != null) {
+                    sPool.release(chunk.buffer);
+                    chunk.buffer = null;
+                }
+            }
+            notifyAll();
+        }
+        mFile.close();
+    }
+
+    /**
+     * 输出缓冲区池的使用情况和读取统计。
+     */
+    static void dump(PrintWriter writer) {
+        writer.println("  " + sPool);
+        writer.println("  chunkReads=" + sChunkReads.get() + " missLoads=" + sMissLoads.get()
+                + " directReads=" + sDirectReads.get() + " stalls=" + sStalls.get()
+                + " stallMs=" + sStallMs.get());
+    }
+}
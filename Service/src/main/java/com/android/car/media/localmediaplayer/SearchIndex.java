@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一个不可变的全文索引段。
+ *
+ * 文本在建索引时统一做大小写和变音符号折叠（"Beyoncé" 和 "beyonce" 是同一个词）。
+ * 词表排好序，前缀查询是在词表上二分出一个区间（相当于一棵压缩成数组的前缀树）；
+ * 词表中找不到前缀时，再用三元组（trigram）倒排找出相似的词，容忍输入错误。
+ * 查询中的每个词都必须命中，得分由字段权重、匹配质量（完全、前缀、模糊）和覆盖率决定。
+ */
+final class SearchIndex {
+    static final int TYPE_TRACK = 0;
+    static final int TYPE_ALBUM = 1;
+    static final int TYPE_ARTIST = 2;
+    static final int TYPE_GENRE = 3;
+    static final int TYPE_FOLDER = 4;
+
+    // 同样的匹配，艺术家排在专辑前面，专辑排在歌曲前面。
+    private static final float[] TYPE_WEIGHTS = { 2f, 3f, 4f, 2.5f, 1f };
+
+    private static final float EXACT = 1f;
+    private static final float PREFIX = 0.7f;
+    private static final float FUZZY = 0.5f;
+    // 模糊匹配的最短输入长度、最低 Jaccard 相似度和每个词最多展开的候选数。
+    private static final int MIN_FUZZY_LENGTH = 4;
+    private static final float MIN_SIMILARITY = 0.35f;
+    private static final int MAX_FUZZY_TERMS = 16;
+
+    static final SearchIndex EMPTY = new Builder().build();
+
+    private final byte[] mTypes;
+    private final long[] mIds;
+    private final String[] mPaths;
+    // 每个文档中不同词的个数，用于计算覆盖率。
+    private final byte[] mTokenCounts;
+
+    // 排好序的词表和词 -> 文档的倒排列表，文档按编号递增。
+    private final String[] mTerms;
+    private final PostingLists mTermDocs;
+    // 排好序的三元组和三元组 -> 词的倒排列表。
+    private final long[] mTrigrams;
+    private final PostingLists mTrigramTerms;
+
+    private SearchIndex(byte[] types, long[] ids, String[] paths, byte[] tokenCounts,
+            String[] terms, PostingLists termDocs, long[] trigrams, PostingLists trigramTerms) {
+        mTypes = types;
+        mIds = ids;
+        mPaths = paths;
+        mTokenCounts = tokenCounts;
+        mTerms = terms;
+        mTermDocs = termDocs;
+        mTrigrams = trigrams;
+        mTrigramTerms = trigramTerms;
+    }
+
+    int size() {
+        return mTypes.length;
+    }
+
+    /**
+     * 一个命中的文档。文件夹用路径标识，其他类型用目录中的 ID 标识。
+     */
+    static final class Hit {
+        final int type;
+        final long id;
+        final String path;
+        final float score;
+
+        Hit(int type, long id, String path, float score) {
+            this.type = type;
+            this.id = id;
+            this.path = path;
+            this.score = score;
+        }
+    }
+
+    /**
+     * 查找包含所有查询词的文档，跳过 excluded 中的歌曲，把得分最高的 limit 个加入 out。
+     * tokens 必须是 {@link #tokenize} 的结果。
+     */
+    void search(String[] tokens, Set<Long> excluded, int limit, List<Hit> out) {
+        int n = mTypes.length;
+        if (n == 0 || tokens.length == 0 || limit <= 0) {
+            return;
+        }
+        float[] scores = new float[n];
+        // matched[d] 是文档 d 已经命中的查询词个数；只有命中了前面所有词的文档才会继续累计。
+        int[] matched = new int[n];
+        for (int t = 0; t < tokens.length; t++) {
+            String token = tokens[t];
+            int from = lowerBound(token);
+            int to = from;
+            while (to < mTerms.length && mTerms[to].startsWith(token)) {
+                to++;
+            }
+            if (from < to) {
+                // 完全匹配的词排在前缀区间的第一个，先累计它，文档就取到最好的匹配质量。
+                for (int term = from; term < to; term++) {
+                    float quality = mTerms[term].length() == token.length() ? EXACT : PREFIX;
+                    accumulate(term, t, quality, scores, matched);
+                }
+            } else if (token.length() >= MIN_FUZZY_LENGTH) {
+                int[] terms = new int[MAX_FUZZY_TERMS];
+                float[] similarities = new float[MAX_FUZZY_TERMS];
+                int count = findSimilarTerms(token, terms, similarities);
+                for (int i = 0; i < count; i++) {
+                    accumulate(terms[i], t, FUZZY * similarities[i], scores, matched);
+                }
+            }
+        }
+
+        Hit[] top = new Hit[limit];
+        int size = 0;
+        for (int d = 0; d < n; d++) {
+            if (matched[d] != tokens.length) {
+                continue;
+            }
+            if (mTypes[d] == TYPE_TRACK && excluded != null && excluded.contains(mIds[d])) {
+                continue;
+            }
+            float coverage = Math.min(1f, (float) tokens.length / Math.max(1, mTokenCounts[d]));
+            float score = TYPE_WEIGHTS[mTypes[d]] * (scores[d] / tokens.length)
+                    * (0.5f + 0.5f * coverage);
+            if (size == limit && score <= top[size - 1].score) {
+                continue;
+            }
+            // 按得分降序插入；limit 很小，插入排序比对所有命中排序便宜。
+            int i = size == limit ? size - 1 : size++;
+            while (i > 0 && top[i - 1].score < score) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = new Hit(mTypes[d], mIds[d], mPaths == null ? null : mPaths[d], score);
+        }
+        out.addAll(Arrays.asList(top).subList(0, size));
+    }
+
+    private void accumulate(int term, int token, float quality, float[] scores, int[] matched) {
+        for (int i = 0; i < mTermDocs.size(term); i++) {
+            int doc = mTermDocs.get(term, i);
+            if (matched[doc] == token) {
+                matched[doc] = token + 1;
+                scores[doc] += quality;
+            }
+        }
+    }
+
+    private int lowerBound(String token) {
+        int i = Arrays.binarySearch(mTerms, token);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    /**
+     * 用三元组的 Jaccard 相似度找出与 token 最相似的词，按相似度降序写入 terms。
+     */
+    private int findSimilarTerms(String token, int[] terms, float[] similarities) {
+        long[] trigrams = trigrams(token);
+        HashMap<Integer, Integer> shared = new HashMap<>();
+        for (long trigram : trigrams) {
+            int list = Arrays.binarySearch(mTrigrams, trigram);
+            if (list < 0) {
+                continue;
+            }
+            for (int i = 0; i < mTrigramTerms.size(list); i++) {
+                int term = mTrigramTerms.get(list, i);
+                Integer count = shared.get(term);
+                shared.put(term, count == null ? 1 : count + 1);
+            }
+        }
+        int size = 0;
+        for (Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+            int term = entry.getKey();
+            int common = entry.getValue();
+            // 词的三元组个数等于它的长度（两端各补一个空格）。
+            float similarity = (float) common
+                    / (trigrams.length + mTerms[term].length() - common);
+            if (similarity < MIN_SIMILARITY) {
+                continue;
+            }
+            if (size == terms.length && similarity <= similarities[size - 1]) {
+                continue;
+            }
+            int i = size == terms.length ? size - 1 : size++;
+            while (i > 0 && similarities[i - 1] < similarity) {
+                terms[i] = terms[i - 1];
+                similarities[i] = similarities[i - 1];
+                i--;
+            }
+            terms[i] = term;
+            similarities[i] = similarity;
+        }
+        return size;
+    }
+
+    /**
+     * 折叠大小写和变音符号，把字母和数字以外的字符都变成空格。
+     */
+    static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK) {
+                continue;
+            }
+            folded.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ');
+        }
+        return folded.toString();
+    }
+
+    /**
+     * 把文本折叠后切分成不重复的词。
+     */
+    static String[] tokenize(String text) {
+        Set<String> tokens = new HashSet<>();
+        List<String> ordered = new ArrayList<>();
+        for (String token : fold(text).split(" ")) {
+            if (!token.isEmpty() && tokens.add(token)) {
+                ordered.add(token);
+            }
+        }
+        return ordered.toArray(new String[ordered.size()]);
+    }
+
+    private static long[] trigrams(String term) {
+        String padded = " " + term + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16)
+                    | padded.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int n = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (n == 0 || trigrams[n - 1] != trigrams[i]) {
+                trigrams[n++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, n);
+    }
+
+    static final class Builder {
+        private final List<Byte> mTypes = new ArrayList<>();
+        private final List<Long> mIds = new ArrayList<>();
+        private final List<String> mPaths = new ArrayList<>();
+        private final List<Byte> mTokenCounts = new ArrayList<>();
+        private final HashMap<String, Integer> mTermIds = new HashMap<>();
+        private final List<String> mTerms = new ArrayList<>();
+        // (词, 文档) 对，按文档顺序加入。
+        private int[] mPairTerms = new int[1024];
+        private int[] mPairDocs = new int[1024];
+        private int mPairCount;
+        private boolean mHasPaths;
+
+        Builder add(int type, long id, String path, String text) {
+            int doc = mTypes.size();
+            String[] tokens = tokenize(text);
+            mTypes.add((byte) type);
+            mIds.add(id);
+            mPaths.add(path);
+            mTokenCounts.add((byte) Math.min(tokens.length, Byte.MAX_VALUE));
+            mHasPaths |= path != null;
+            for (String token : tokens) {
+                Integer term = mTermIds.get(token);
+                if (term == null) {
+                    term = mTerms.size();
+                    mTermIds.put(token, term);
+                    mTerms.add(token);
+                }
+                if (mPairCount == mPairTerms.length) {
+                    mPairTerms = Arrays.copyOf(mPairTerms, mPairCount * 2);
+                    mPairDocs = Arrays.copyOf(mPairDocs, mPairCount * 2);
+                }
+                mPairTerms[mPairCount] = term;
+                mPairDocs[mPairCount] = doc;
+                mPairCount++;
+            }
+            return this;
+        }
+
+        SearchIndex build() {
+            int docCount = mTypes.size();
+            byte[] types = new byte[docCount];
+            long[] ids = new long[docCount];
+            byte[] tokenCounts = new byte[docCount];
+            for (int i = 0; i < docCount; i++) {
+                types[i] = mTypes.get(i);
+                ids[i] = mIds.get(i);
+                tokenCounts[i] = mTokenCounts.get(i);
+            }
+            String[] paths = mHasPaths ? mPaths.toArray(new String[docCount]) : null;
+
+            // 词表排序后重新编号。
+            int termCount = mTerms.size();
+            String[] terms = mTerms.toArray(new String[termCount]);
+            Arrays.sort(terms);
+            int[] rank = new int[termCount];
+            for (int i = 0; i < termCount; i++) {
+                rank[mTermIds.get(terms[i])] = i;
+            }
+            int[] pairTerms = new int[mPairCount];
+            for (int i = 0; i < mPairCount; i++) {
+                pairTerms[i] = rank[mPairTerms[i]];
+            }
+            PostingLists termDocs = PostingLists.build(termCount, pairTerms, mPairDocs,
+                    mPairCount);
+
+            Set<Long> distinct = new HashSet<>();
+            List<long[]> termTrigrams = new ArrayList<>(termCount);
+            int trigramPairs = 0;
+            for (String term : terms) {
+                long[] trigrams = trigrams(term);
+                termTrigrams.add(trigrams);
+                trigramPairs += trigrams.length;
+                for (long trigram : trigrams) {
+                    distinct.add(trigram);
+                }
+            }
+            long[] sortedTrigrams = new long[distinct.size()];
+            int n = 0;
+            for (long trigram : distinct) {
+                sortedTrigrams[n++] = trigram;
+            }
+            Arrays.sort(sortedTrigrams);
+            int[] lists = new int[trigramPairs];
+            int[] values = new int[trigramPairs];
+            int pairs = 0;
+            for (int term = 0; term < termCount; term++) {
+                for (long trigram : termTrigrams.get(term)) {
+                    lists[pairs] = Arrays.binarySearch(sortedTrigrams, trigram);
+                    values[pairs] = term;
+                    pairs++;
+                }
+            }
+            PostingLists trigramTerms = PostingLists.build(sortedTrigrams.length, lists, values,
+                    pairs);
+            return new SearchIndex(types, ids, paths, tokenCounts, terms, termDocs,
+                    sortedTrigrams, trigramTerms);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+/**
+ * [0, size) 上由种子决定的随机排列，随用随算，不保存排列本身。
+ *
+ * 用一个平衡的 Feistel 网络在 [0, 4^k) 上做置换（4^k 是不小于 size 的最小的 4 的幂），
+ * 结果落在 [0, size) 之外时继续置换（cycle walking），所以结果仍然是 [0, size) 上的排列，
+ * 平均置换不超过 4 次。Feistel 网络可以反向计算，所以也能由下标求出它在排列中的位置。
+ * 按位置 0, 1, 2... 依次播放就是每首歌各播放一次的乱序播放，不需要打乱、复制队列。
+ * 排列整体旋转，使位置 0 是指定的第一首。
+ */
+final class ShuffleOrder {
+    private static final int ROUNDS = 4;
+
+    private final int mSize;
+    // 每一半的位数。
+    private final int mHalfBits;
+    private final int mHalfMask;
+    private final int[] mKeys = new int[ROUNDS];
+    private final long mSeed;
+    private final int mFirst;
+    // 第一首在未旋转的排列中的位置。
+    private final int mOffset;
+
+    ShuffleOrder(int size, long seed, int first) {
+        mSize = size;
+        mSeed = seed;
+        mFirst = first;
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+        mHalfBits = Math.max(1, (bits + 1) / 2);
+        mHalfMask = (1 << mHalfBits) - 1;
+        for (int i = 0; i < ROUNDS; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            mKeys[i] = (int) seed;
+        }
+        mOffset = permutedIndexOf(first);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * 种子和第一首决定整个排列，保存它们就能在重启后恢复同样的播放顺序。
+     */
+    long getSeed() {
+        return mSeed;
+    }
+
+    int getFirst() {
+        return mFirst;
+    }
+
+    /**
+     * 返回排列中第 position 项的下标。
+     */
+    int get(int position) {
+        int x = (int) (((long) position + mOffset) % mSize);
+        do {
+            x = encrypt(x);
+        } while (x >= mSize);
+        return x;
+    }
+
+    /**
+     * 返回下标 index 在排列中的位置，{@link #get} 的逆运算。
+     */
+    int indexOf(int index) {
+        return (int) (((long) permutedIndexOf(index) - mOffset + mSize) % mSize);
+    }
+
+    private int permutedIndexOf(int index) {
+        int x = index;
+        do {
+            x = decrypt(x);
+        } while (x >= mSize);
+        return x;
+    }
+
+    private int encrypt(int x) {
+        int left = x >>> mHalfBits;
+        int right = x & mHalfMask;
+        for (int i = 0; i < ROUNDS; i++) {
+            int next = left ^ round(right, mKeys[i]);
+            left = right;
+            right = next;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    private int decrypt(int x) {
+        int left = x >>> mHalfBits;
+        int right = x & mHalfMask;
+        for (int i = ROUNDS - 1; i >= 0; i--) {
+            int previous = right ^ round(left, mKeys[i]);
+            right = left;
+            left = previous;
+        }
+        return (left << mHalfBits) | right;
+    }
+
+    private int round(int half, int key) {
+        return (int) mix(half ^ ((long) key << 32)) & mHalfMask;
+    }
+
+    // SplitMix64 的混合函数。
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 每行一个字符串的列。可以保存在堆上，也可以直接引用快照文件中映射的 UTF-8 数据，
+ * 后者只在读取时才解码。
+ */
+abstract class StringColumn {
+    abstract int size();
+
+    abstract String get(int i);
+
+    abstract long estimateSizeBytes();
+
+    static StringColumn of(String[] values) {
+        return new HeapColumn(values);
+    }
+
+    /**
+     * 写入格式：int 行数，int[] 起始偏移，int[] 字节长度（-1 表示 null），int 总字节数，UTF-8 数据。
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        int n = size();
+        byte[][] encoded = new byte[n][];
+        int total = 0;
+        for (int i = 0; i < n; i++) {
+            String value = get(i);
+            if (value != null) {
+                encoded[i] = value.getBytes(StandardCharsets.UTF_8);
+                total += encoded[i].length;
+            }
+        }
+        out.writeInt(n);
+        int offset = 0;
+        for (int i = 0; i < n; i++) {
+            out.writeInt(offset);
+            if (encoded[i] != null) {
+                offset += encoded[i].length;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeInt(encoded[i] == null ? -1 : encoded[i].length);
+        }
+        out.writeInt(total);
+        for (int i = 0; i < n; i++) {
+            if (encoded[i] != null) {
+                out.write(encoded[i]);
+            }
+        }
+    }
+
+    /**
+     * 从映射的缓冲区当前位置读取一列，并把位置移动到列末尾。字符串数据不会被复制。
+     */
+    static StringColumn map(ByteBuffer buffer) {
+        int n = buffer.getInt();
+        int[] offsets = new int[n];
+        int[] lengths = new int[n];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + 4 * n);
+        buffer.asIntBuffer().get(lengths);
+        buffer.position(buffer.position() + 4 * n);
+        int total = buffer.getInt();
+        ByteBuffer data = buffer.slice();
+        data.limit(total);
+        buffer.position(buffer.position() + total);
+        return new MappedColumn(offsets, lengths, data);
+    }
+
+    private static final class HeapColumn extends StringColumn {
+        private final String[] mValues;
+
+        HeapColumn(String[] values) {
+            mValues = values;
+        }
+
+        @Override
+        int size() {
+            return mValues.length;
+        }
+
+        @Override
+        String get(int i) {
+            return mValues[i];
+        }
+
+        @Override
+        long estimateSizeBytes() {
+            long size = 16 + 8L * mValues.length;
+            for (String value : mValues) {
+                size += MusicCatalog.sizeOf(value);
+            }
+            return size;
+        }
+    }
+
+    private static final class MappedColumn extends StringColumn {
+        private final int[] mOffsets;
+        private final int[] mLengths;
+        private final ByteBuffer mData;
+
+        MappedColumn(int[] offsets, int[] lengths, ByteBuffer data) {
+            mOffsets = offsets;
+            mLengths = lengths;
+            mData = data;
+        }
+
+        @Override
+        int size() {
+            return mOffsets.length;
+        }
+
+        @Override
+        String get(int i) {
+            int length = mLengths[i];
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            // duplicate() 使并发读取互不影响缓冲区位置。
+            ByteBuffer data = mData.duplicate();
+            data.position(mOffsets[i]);
+            data.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        long estimateSizeBytes() {
+            // 字符串数据在映射文件中，不占用堆。
+            return 32 + 8L * mOffsets.length;
+        }
+    }
+}
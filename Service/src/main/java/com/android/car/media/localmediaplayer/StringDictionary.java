@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 字典编码的字符串表。相同的字符串只保存一份，列中只保存它的 int 编码。
+ */
+final class StringDictionary {
+    static final int NO_CODE = -1;
+
+    private final String[] mValues;
+    private final HashMap<String, Integer> mCodes;
+
+    private StringDictionary(String[] values, HashMap<String, Integer> codes) {
+        mValues = values;
+        mCodes = codes;
+    }
+
+    int size() {
+        return mValues.length;
+    }
+
+    String get(int code) {
+        return code == NO_CODE ? null : mValues[code];
+    }
+
+    int lookup(String value) {
+        if (value == null) {
+            return NO_CODE;
+        }
+        Integer code = mCodes.get(value);
+        return code == null ? NO_CODE : code;
+    }
+
+    long estimateSizeBytes() {
+        // 字符串本身 + 数组引用 + HashMap 的条目。
+        long size = 16 + 8L * mValues.length + 48L * mValues.length;
+        for (String value : mValues) {
+            size += MusicCatalog.sizeOf(value);
+        }
+        return size;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        StringColumn.of(mValues).writeTo(out);
+    }
+
+    /**
+     * 从快照中读取字典。字典很小，所以直接解码到堆上。
+     */
+    static StringDictionary readFrom(ByteBuffer buffer) {
+        StringColumn column = StringColumn.map(buffer);
+        String[] values = new String[column.size()];
+        HashMap<String, Integer> codes = new HashMap<>();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = column.get(i);
+            codes.put(values[i], i);
+        }
+        return new StringDictionary(values, codes);
+    }
+
+    static final class Builder {
+        private final ArrayList<String> mValues = new ArrayList<>();
+        private final HashMap<String, Integer> mCodes = new HashMap<>();
+
+        int encode(String value) {
+            if (value == null) {
+                return NO_CODE;
+            }
+            Integer code = mCodes.get(value);
+            if (code == null) {
+                code = mValues.size();
+                mValues.add(value);
+                mCodes.put(value, code);
+            }
+            return code;
+        }
+
+        StringDictionary build() {
+            return new StringDictionary(mValues.toArray(new String[mValues.size()]), mCodes);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+    @Test
+    public void acquire_returnsNullWhenExhausted() {
+        BufferPool pool = new BufferPool(2, 1024);
+
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals(1024, first.capacity());
+        assertNull(pool.acquire());
+    }
+
+    @Test
+    public void release_reusesClearedBuffer() {
+        BufferPool pool = new BufferPool(1, 1024);
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(new byte[100]);
+
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire();
+
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(1024, reused.remaining());
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.android.car.media.localmediaplayer.MusicCatalog.TrackRow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class CatalogSnapshotTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("catalog", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    static TrackRow track(long id, String title, long artistId, String artist, long albumId,
+            String album, int trackNumber, String path) {
+        TrackRow row = new TrackRow();
+        row.id = id;
+        row.title = title;
+        row.titleKey = title == null ? null : title.toLowerCase();
+        row.artistId = artistId;
+        row.artist = artist;
+        row.artistKey = artist.toLowerCase();
+        row.albumId = albumId;
+        row.album = album;
+        row.albumKey = album.toLowerCase();
+        row.duration = 1000 * (int) id;
+        row.trackNumber = trackNumber;
+        row.path = path;
+        row.dateModified = 100 + id;
+        return row;
+    }
+
+    static MusicCatalog buildCatalog() {
+        return new MusicCatalog.Builder()
+                .addTrack(track(1, "Come Together", 10, "The Beatles", 20, "Abbey Road", 1,
+                        "/sdcard/Music/Beatles/01 Come Together.mp3"))
+                .addTrack(track(2, "Something", 10, "The Beatles", 20, "Abbey Road", 2,
+                        "/sdcard/Music/Beatles/02 Something.mp3"))
+                .addTrack(track(3, "Jóga", 11, "Björk", 21, "Homogenic", 3,
+                        "/sdcard/Music/Björk/Jóga.flac"))
+                .addTrack(track(4, null, 12, "<unknown>", 22, "Music", 0, null))
+                .addTrack(track(MusicCatalog.INTERNAL_FLAG | 5, "Ringtone", 13, "Android", 23,
+                        "Ringtones", 0, "/system/media/audio/ringtones/Ring.ogg"))
+                .addGenre(30, "Rock", new long[] { 1, 2 })
+                .addGenre(31, "Electronic", new long[] { 3 })
+                .build();
+    }
+
+    @Test
+    public void write_read_roundTrip() {
+        MusicCatalog catalog = buildCatalog();
+        CatalogSnapshot.write(mFile, catalog, "version-1", 42);
+
+        CatalogSnapshot snapshot = CatalogSnapshot.read(mFile);
+
+        assertNotNull(snapshot);
+        assertEquals("version-1", snapshot.getMediaStoreVersion());
+        assertEquals(42, snapshot.getGeneration());
+        assertCatalogsEqual(catalog, snapshot.getCatalog());
+    }
+
+    @Test
+    public void read_missingFile() {
+        mFile.delete();
+
+        assertNull(CatalogSnapshot.read(mFile));
+    }
+
+    @Test
+    public void read_rejectsCorruptByte() throws IOException {
+        CatalogSnapshot.write(mFile, buildCatalog(), "version-1", 42);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            long pos = raf.length() / 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x01);
+        }
+
+        assertNull(CatalogSnapshot.read(mFile));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void read_rejectsTruncatedFile() throws IOException {
+        CatalogSnapshot.write(mFile, buildCatalog(), "version-1", 42);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        assertNull(CatalogSnapshot.read(mFile));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void read_rejectsTinyFile() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.write(new byte[] { 1, 2, 3 });
+        }
+
+        assertNull(CatalogSnapshot.read(mFile));
+        assertFalse(mFile.exists());
+    }
+
+    private static void assertCatalogsEqual(MusicCatalog expected, MusicCatalog actual) {
+        assertEquals(expected.getTrackCount(), actual.getTrackCount());
+        for (int row = 0; row < expected.getTrackCount(); row++) {
+            assertEquals(expected.getTrackId(row), actual.getTrackId(row));
+            assertEquals(expected.getTitle(row), actual.getTitle(row));
+            assertEquals(expected.getTitleKey(row), actual.getTitleKey(row));
+            assertEquals(expected.getArtist(row), actual.getArtist(row));
+            assertEquals(expected.getAlbum(row), actual.getAlbum(row));
+            assertEquals(expected.getArtistId(row), actual.getArtistId(row));
+            assertEquals(expected.getAlbumId(row), actual.getAlbumId(row));
+            assertEquals(expected.getDuration(row), actual.getDuration(row));
+            assertEquals(expected.getTrackNumber(row), actual.getTrackNumber(row));
+            assertEquals(expected.getPath(row), actual.getPath(row));
+            assertEquals(row, actual.findTrackById(expected.getTrackId(row)));
+        }
+        assertEquals(expected.getAlbumCount(), actual.getAlbumCount());
+        for (int i = 0; i < expected.getAlbumCount(); i++) {
+            assertEquals(expected.getAlbumTableId(i), actual.getAlbumTableId(i));
+            assertEquals(expected.getAlbumTableName(i), actual.getAlbumTableName(i));
+            assertArrayEquals(expected.getAlbumTracks().toArray(i),
+                    actual.getAlbumTracks().toArray(i));
+        }
+        assertEquals(expected.getArtistCount(), actual.getArtistCount());
+        for (int i = 0; i < expected.getArtistCount(); i++) {
+            assertEquals(expected.getArtistTableId(i), actual.getArtistTableId(i));
+            assertEquals(expected.getArtistTableName(i), actual.getArtistTableName(i));
+            assertArrayEquals(expected.getArtistTracks().toArray(i),
+                    actual.getArtistTracks().toArray(i));
+            assertArrayEquals(expected.getArtistAlbums().toArray(i),
+                    actual.getArtistAlbums().toArray(i));
+        }
+        assertEquals(expected.getGenreCount(), actual.getGenreCount());
+        for (int i = 0; i < expected.getGenreCount(); i++) {
+            assertEquals(expected.getGenreTableId(i), actual.getGenreTableId(i));
+            assertEquals(expected.getGenreTableName(i), actual.getGenreTableName(i));
+            assertArrayEquals(expected.getGenreTracks().toArray(i),
+                    actual.getGenreTracks().toArray(i));
+        }
+        for (boolean internal : new boolean[] { true, false }) {
+            assertEquals(expected.getMaxMediaStoreId(internal),
+                    actual.getMaxMediaStoreId(internal));
+            assertEquals(expected.getMaxDateModified(internal),
+                    actual.getMaxDateModified(internal));
+        }
+    }
+}
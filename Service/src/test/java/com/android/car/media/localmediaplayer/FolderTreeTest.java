@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.android.car.media.localmediaplayer.MusicCatalog.TrackRow;
+
+import org.junit.Test;
+
+public class FolderTreeTest {
+    private static final String MUSIC = "/storage/emulated/0/Music";
+
+    private static TrackRow track(long id, String title, String path) {
+        TrackRow row = new TrackRow();
+        row.id = id;
+        row.title = title;
+        row.titleKey = title;
+        row.artistId = 1;
+        row.artist = "Artist";
+        row.artistKey = "artist";
+        row.albumId = 2;
+        row.album = "Album";
+        row.albumKey = "album";
+        row.path = path;
+        return row;
+    }
+
+    private static MusicCatalog buildCatalog() {
+        return new MusicCatalog.Builder()
+                .addTrack(track(1, "a1", MUSIC + "/A/a1.mp3"))
+                .addTrack(track(2, "a2", MUSIC + "/A/a2.mp3"))
+                .addTrack(track(3, "l1", MUSIC + "/A/Live/l1.mp3"))
+                .addTrack(track(4, "b1", MUSIC + "/B/b1.mp3"))
+                .addTrack(track(5, "m1", MUSIC + "/m1.mp3"))
+                // 没有目录的歌曲不属于任何文件夹。
+                .addTrack(track(6, "n1", null))
+                .addTrack(track(7, "x1", "bare.mp3"))
+                .build();
+    }
+
+    private static long[] ids(MusicCatalog catalog, int[] rows) {
+        long[] ids = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            ids[i] = catalog.getTrackId(rows[i]);
+        }
+        return ids;
+    }
+
+    @Test
+    public void getTop_skipsSingleChildFoldersWithoutTracks() {
+        FolderTree tree = FolderTree.build(buildCatalog());
+
+        assertEquals(MUSIC, tree.getPath(tree.getTop()));
+        assertEquals("Music", tree.getName(tree.getTop()));
+    }
+
+    @Test
+    public void findNode_andGetPath() {
+        FolderTree tree = FolderTree.build(buildCatalog());
+
+        int live = tree.findNode(MUSIC + "/A/Live");
+        assertEquals(MUSIC + "/A/Live", tree.getPath(live));
+        assertEquals(live, tree.findNode(MUSIC + "/A/Live/"));
+        assertEquals(FolderTree.NOT_FOUND, tree.findNode(MUSIC + "/C"));
+        assertEquals(FolderTree.NOT_FOUND, tree.findNode(MUSIC + "/a"));
+        assertEquals(FolderTree.ROOT, tree.findNode("/"));
+        assertEquals("/", tree.getPath(FolderTree.ROOT));
+    }
+
+    @Test
+    public void children_sortedByName() {
+        FolderTree tree = FolderTree.build(buildCatalog());
+
+        int music = tree.findNode(MUSIC);
+        assertEquals(2, tree.getChildCount(music));
+        assertEquals("A", tree.getName(tree.getChild(music, 0)));
+        assertEquals("B", tree.getName(tree.getChild(music, 1)));
+    }
+
+    @Test
+    public void tracks_directAndSubtreeRanges() {
+        MusicCatalog catalog = buildCatalog();
+        FolderTree tree = FolderTree.build(catalog);
+
+        int music = tree.findNode(MUSIC);
+        int a = tree.findNode(MUSIC + "/A");
+        int live = tree.findNode(MUSIC + "/A/Live");
+        int b = tree.findNode(MUSIC + "/B");
+
+        assertArrayEquals(new long[] { 5 }, ids(catalog, tree.getTracks(music)));
+        assertArrayEquals(new long[] { 5, 1, 2, 3, 4 }, ids(catalog, tree.getAllTracks(music)));
+        assertArrayEquals(new long[] { 1, 2 }, ids(catalog, tree.getTracks(a)));
+        assertArrayEquals(new long[] { 1, 2, 3 }, ids(catalog, tree.getAllTracks(a)));
+        assertArrayEquals(new long[] { 3 }, ids(catalog, tree.getAllTracks(live)));
+        assertArrayEquals(new long[] { 4 }, ids(catalog, tree.getAllTracks(b)));
+        assertEquals(3, tree.getAllTrackCount(a));
+    }
+
+    @Test
+    public void tracksWithoutDirectory_leftOutOfTree() {
+        MusicCatalog catalog = buildCatalog();
+        FolderTree tree = FolderTree.build(catalog);
+
+        assertEquals(5, tree.getAllTrackCount(FolderTree.ROOT));
+        assertEquals(0, tree.getTracks(FolderTree.ROOT).length);
+    }
+
+    @Test
+    public void build_onlyTracksWithoutDirectory() {
+        MusicCatalog catalog = new MusicCatalog.Builder()
+                .addTrack(track(1, "n1", null))
+                .addTrack(track(2, "x1", "bare.mp3"))
+                .build();
+        FolderTree tree = FolderTree.build(catalog);
+
+        assertEquals(1, tree.getNodeCount());
+        assertEquals(FolderTree.ROOT, tree.getTop());
+        assertEquals(0, tree.getAllTrackCount(FolderTree.ROOT));
+    }
+
+    @Test
+    public void build_emptyCatalog() {
+        FolderTree tree = FolderTree.build(new MusicCatalog.Builder().build());
+
+        assertEquals(FolderTree.ROOT, tree.getTop());
+        assertEquals(0, tree.getAllTracks(FolderTree.ROOT).length);
+    }
+}
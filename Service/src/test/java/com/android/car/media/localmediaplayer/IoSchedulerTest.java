@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IoSchedulerTest {
+    // 令牌桶的容量。
+    private static final int BURST = 4;
+
+    private final AtomicLong mNow = new AtomicLong(1000);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private IoScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new IoScheduler(mNow::get);
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+    }
+
+    private Runnable blocker(CountDownLatch started, CountDownLatch release) {
+        return () -> {
+            started.countDown();
+            await(release);
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertNotReached(CountDownLatch latch) throws InterruptedException {
+        assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    private static void assertReached(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void throttle_allowsBurstThenWaitsForClock() throws Exception {
+        mScheduler.setPlaybackActive(true);
+        CountDownLatch burst = new CountDownLatch(BURST);
+        CountDownLatch done = new CountDownLatch(BURST + 1);
+        new Thread(() -> {
+            mScheduler.markBackgroundThread();
+            for (int i = 0; i <= BURST; i++) {
+                mScheduler.throttle();
+                burst.countDown();
+                done.countDown();
+            }
+        }).start();
+
+        assertReached(burst);
+        assertNotReached(done);
+        // 每秒 4 个令牌，250 ms 补充一个。
+        mNow.addAndGet(250);
+        assertReached(done);
+    }
+
+    @Test
+    public void throttle_releasedWhenPlaybackStops() throws Exception {
+        mScheduler.setPlaybackActive(true);
+        CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            mScheduler.markBackgroundThread();
+            for (int i = 0; i <= BURST; i++) {
+                mScheduler.throttle();
+            }
+            done.countDown();
+        }).start();
+
+        assertNotReached(done);
+        mScheduler.setPlaybackActive(false);
+        assertReached(done);
+    }
+
+    @Test
+    public void throttle_notLimitedWhenPlaybackInactive() {
+        mScheduler.markBackgroundThread();
+        for (int i = 0; i < 10 * BURST; i++) {
+            mScheduler.throttle();
+        }
+    }
+
+    @Test
+    public void throttle_onlyLimitsBackgroundWork() throws Exception {
+        mScheduler.setPlaybackActive(true);
+        // 没有标记过的线程，例如播放线程，不受限制。
+        for (int i = 0; i < 10 * BURST; i++) {
+            mScheduler.throttle();
+        }
+
+        // 交互任务中调用也不受限制。
+        CountDownLatch interactive = new CountDownLatch(1);
+        mScheduler.execute(IoScheduler.INTERACTIVE, () -> {
+            for (int i = 0; i < 10 * BURST; i++) {
+                mScheduler.throttle();
+            }
+            interactive.countDown();
+        });
+        assertReached(interactive);
+
+        // 后台任务本身消耗一个令牌，之后每次 throttle 再消耗一个。
+        CountDownLatch background = new CountDownLatch(1);
+        mScheduler.execute(IoScheduler.BACKGROUND, () -> {
+            for (int i = 0; i < BURST; i++) {
+                mScheduler.throttle();
+            }
+            background.countDown();
+        });
+        assertNotReached(background);
+        mNow.addAndGet(250);
+        assertReached(background);
+    }
+
+    @Test
+    public void execute_backgroundTasksTakeTokensDuringPlayback() throws Exception {
+        mScheduler.setPlaybackActive(true);
+        CountDownLatch burst = new CountDownLatch(BURST);
+        CountDownLatch all = new CountDownLatch(BURST + 1);
+        for (int i = 0; i <= BURST; i++) {
+            mScheduler.execute(IoScheduler.BACKGROUND, () -> {
+                burst.countDown();
+                all.countDown();
+            });
+        }
+
+        assertReached(burst);
+        assertNotReached(all);
+        mNow.addAndGet(250);
+        assertReached(all);
+    }
+
+    @Test
+    public void execute_interactiveRunsBeforeBackground() throws Exception {
+        // 占满所有工作线程，之后放开一个。
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch releaseOne = new CountDownLatch(1);
+        mScheduler.execute(IoScheduler.INTERACTIVE, blocker(started, releaseOne));
+        mScheduler.execute(IoScheduler.INTERACTIVE, blocker(started, mRelease));
+        mScheduler.execute(IoScheduler.INTERACTIVE, blocker(started, mRelease));
+        assertReached(started);
+
+        List<String> order = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        mScheduler.execute(IoScheduler.BACKGROUND, () -> {
+            synchronized (order) {
+                order.add("background");
+            }
+            done.countDown();
+        });
+        mScheduler.execute(IoScheduler.INTERACTIVE, () -> {
+            synchronized (order) {
+                order.add("interactive");
+            }
+            done.countDown();
+        });
+        releaseOne.countDown();
+
+        assertReached(done);
+        assertEquals(Arrays.asList("interactive", "background"), order);
+    }
+
+    @Test
+    public void execute_runsOneBackgroundTaskAtATime() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            mScheduler.execute(IoScheduler.BACKGROUND, () -> {
+                int n = running.incrementAndGet();
+                maxRunning.accumulateAndGet(n, Math::max);
+                started.countDown();
+                await(mRelease);
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+
+        assertReached(started);
+        assertNotReached(done);
+        assertEquals(1, running.get());
+        mRelease.countDown();
+        assertReached(done);
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void execute_playbackNotBlockedByBusyWorkers() throws Exception {
+        CountDownLatch started = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            mScheduler.execute(IoScheduler.INTERACTIVE, blocker(started, mRelease));
+        }
+        assertReached(started);
+
+        CountDownLatch done = new CountDownLatch(1);
+        mScheduler.execute(IoScheduler.PLAYBACK, done::countDown);
+        assertReached(done);
+    }
+
+    @Test
+    public void promote_queuedBackgroundTaskSkipsThrottle() throws Exception {
+        mScheduler.setPlaybackActive(true);
+        CountDownLatch burst = new CountDownLatch(BURST);
+        for (int i = 0; i < BURST; i++) {
+            mScheduler.execute(IoScheduler.BACKGROUND, burst::countDown);
+        }
+        assertReached(burst);
+
+        CountDownLatch done = new CountDownLatch(1);
+        IoScheduler.Task task = mScheduler.execute(IoScheduler.BACKGROUND, done::countDown);
+        assertNotReached(done);
+        mScheduler.promote(task, IoScheduler.INTERACTIVE);
+        assertReached(done);
+    }
+
+    @Test
+    public void promote_runningTaskNoLongerThrottled() throws Exception {
+        mScheduler.setPlaybackActive(true);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch promoted = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        IoScheduler.Task task = mScheduler.execute(IoScheduler.BACKGROUND, () -> {
+            started.countDown();
+            await(promoted);
+            for (int i = 0; i < 10 * BURST; i++) {
+                mScheduler.throttle();
+            }
+            done.countDown();
+        });
+        assertReached(started);
+
+        mScheduler.promote(task, IoScheduler.INTERACTIVE);
+        promoted.countDown();
+        assertReached(done);
+    }
+}
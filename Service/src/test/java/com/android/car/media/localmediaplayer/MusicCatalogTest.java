@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static com.android.car.media.localmediaplayer.CatalogSnapshotTest.track;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.car.media.localmediaplayer.MusicCatalog.TrackRow;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class MusicCatalogTest {
+    private static long[] genreTrackIds(MusicCatalog catalog, int genre) {
+        int[] rows = catalog.getGenreTracks().toArray(genre);
+        long[] ids = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            ids[i] = catalog.getTrackId(rows[i]);
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void applyChanges_replacesAddsAndRemovesRows() {
+        MusicCatalog catalog = CatalogSnapshotTest.buildCatalog();
+        TrackRow changed = track(2, "Something (Remastered)", 10, "The Beatles", 20,
+                "Abbey Road", 2, "/sdcard/Music/Beatles/02 Something.flac");
+        TrackRow added = track(6, "Alpha", 14, "New Artist", 24, "New Album", 1,
+                "/sdcard/Music/New/Alpha.mp3");
+
+        MusicCatalog updated = catalog.applyChanges(Arrays.asList(changed, added),
+                new HashSet<>(Collections.singleton(3L)), null);
+
+        // 替换一行，增加一行，删除一行。
+        assertEquals(catalog.getTrackCount(), updated.getTrackCount());
+        assertEquals(MusicCatalog.NOT_FOUND, updated.findTrackById(3));
+        int row = updated.findTrackById(2);
+        assertEquals("Something (Remastered)", updated.getTitle(row));
+        assertEquals("/sdcard/Music/Beatles/02 Something.flac", updated.getPath(row));
+        assertEquals("Alpha", updated.getTitle(updated.findTrackById(6)));
+        // 行仍然按 TITLE_KEY 排序。
+        for (int r = 1; r < updated.getTrackCount(); r++) {
+            String previous = updated.getTitleKey(r - 1);
+            String current = updated.getTitleKey(r);
+            if (previous != null && current != null) {
+                assertTrue(previous.compareTo(current) <= 0);
+            }
+        }
+        // 原来的目录不变。
+        assertEquals("Something", catalog.getTitle(catalog.findTrackById(2)));
+        assertEquals("Jóga", catalog.getTitle(catalog.findTrackById(3)));
+    }
+
+    @Test
+    public void applyChanges_updatesAlbumAndArtistTables() {
+        MusicCatalog catalog = CatalogSnapshotTest.buildCatalog();
+
+        // 删除 Homogenic 唯一的歌曲之后，这张专辑和它的艺术家都不再出现。
+        MusicCatalog updated = catalog.applyChanges(Collections.<TrackRow>emptyList(),
+                new HashSet<>(Collections.singleton(3L)), null);
+
+        assertEquals(catalog.getAlbumCount() - 1, updated.getAlbumCount());
+        assertEquals(catalog.getArtistCount() - 1, updated.getArtistCount());
+        for (int album = 0; album < updated.getAlbumCount(); album++) {
+            assertFalse("Homogenic".equals(updated.getAlbumTableName(album)));
+        }
+    }
+
+    @Test
+    public void applyChanges_keepsGenresWhenNotReloaded() {
+        MusicCatalog catalog = CatalogSnapshotTest.buildCatalog();
+        TrackRow changed = track(1, "Come Together (Live)", 10, "The Beatles", 20,
+                "Abbey Road", 1, "/sdcard/Music/Beatles/01 Come Together.mp3");
+
+        MusicCatalog updated = catalog.applyChanges(Collections.singletonList(changed),
+                new HashSet<Long>(), null);
+
+        assertEquals(catalog.getGenreCount(), updated.getGenreCount());
+        for (int genre = 0; genre < catalog.getGenreCount(); genre++) {
+            assertEquals(catalog.getGenreTableId(genre), updated.getGenreTableId(genre));
+            assertArrayEquals(genreTrackIds(catalog, genre), genreTrackIds(updated, genre));
+        }
+    }
+
+    @Test
+    public void applyChanges_replacesGenres() {
+        MusicCatalog catalog = CatalogSnapshotTest.buildCatalog();
+        MusicCatalog.Builder genres = new MusicCatalog.Builder()
+                .addGenre(32, "Pop", new long[] { 2, 3 });
+
+        MusicCatalog updated = catalog.applyChanges(Collections.<TrackRow>emptyList(),
+                new HashSet<Long>(), genres);
+
+        assertEquals(1, updated.getGenreCount());
+        assertEquals(32, updated.getGenreTableId(0));
+        assertArrayEquals(new long[] { 2, 3 }, genreTrackIds(updated, 0));
+    }
+
+    @Test
+    public void applyChanges_advancesWatermarks() {
+        MusicCatalog catalog = CatalogSnapshotTest.buildCatalog();
+        TrackRow added = track(50, "Late", 14, "New Artist", 24, "New Album", 1,
+                "/sdcard/Music/New/Late.mp3");
+        added.dateModified = 9000;
+
+        MusicCatalog updated = catalog.applyChanges(Collections.singletonList(added),
+                new HashSet<>(Collections.singleton(4L)), null);
+
+        assertEquals(50, updated.getMaxMediaStoreId(false));
+        assertEquals(9000, updated.getMaxDateModified(false));
+        // 删除不会降低水位，否则删除的 ID 之后的行会被重新查询。
+        assertEquals(catalog.getMaxMediaStoreId(true), updated.getMaxMediaStoreId(true));
+    }
+}
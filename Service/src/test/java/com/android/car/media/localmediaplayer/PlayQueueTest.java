@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+public class PlayQueueTest {
+    @Test
+    public void indexOf_collidingIds() {
+        // 64 首歌的表有 128 个槽；让大部分 ID 落在同一个槽上，查找必须沿着探测序列走完整个簇。
+        int mask = 127;
+        long[] ids = new long[64];
+        int n = 0;
+        for (long id = 1; n < ids.length; id++) {
+            int slot = PlayQueue.hash(id) & mask;
+            if (slot == 5 || (slot == 6 && n % 4 == 0)) {
+                ids[n++] = id;
+            }
+        }
+        PlayQueue queue = new PlayQueue(ids, null, null);
+
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(i, queue.indexOf(ids[i]));
+        }
+        for (long id = ids[ids.length - 1] + 1; id < ids[ids.length - 1] + 1000; id++) {
+            if ((PlayQueue.hash(id) & mask) == 5) {
+                assertEquals(PlayQueue.NOT_FOUND, queue.indexOf(id));
+            }
+        }
+    }
+
+    @Test
+    public void indexOf_randomIds() {
+        Random random = new Random(1);
+        long[] ids = new long[5000];
+        HashMap<Long, Integer> first = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            // 包括内部存储的 ID、负数和重复的 ID。
+            ids[i] = i % 10 == 9 ? ids[random.nextInt(i)] : random.nextLong();
+            if (i % 3 == 0) {
+                ids[i] |= MusicCatalog.INTERNAL_FLAG;
+            }
+            if (!first.containsKey(ids[i])) {
+                first.put(ids[i], i);
+            }
+        }
+        PlayQueue queue = new PlayQueue(ids, null, null);
+
+        for (long id : ids) {
+            assertEquals((long) first.get(id), queue.indexOf(id));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long id = random.nextLong();
+            if (!first.containsKey(id)) {
+                assertEquals(PlayQueue.NOT_FOUND, queue.indexOf(id));
+            }
+        }
+    }
+
+    @Test
+    public void indexOf_duplicatesReturnFirstOccurrence() {
+        PlayQueue queue = new PlayQueue(new long[] { 7, 3, 7, 3, 9 }, null, null);
+
+        assertEquals(0, queue.indexOf(7));
+        assertEquals(1, queue.indexOf(3));
+        assertEquals(4, queue.indexOf(9));
+    }
+
+    @Test
+    public void emptyQueue() {
+        PlayQueue queue = new PlayQueue(new long[0], null, null);
+
+        assertTrue(queue.isEmpty());
+        assertEquals(PlayQueue.NOT_FOUND, queue.indexOf(0));
+        assertEquals(PlayQueue.NOT_FOUND, queue.indexOf(1));
+    }
+
+    @Test
+    public void pathsAndMediaIds() {
+        String context = MediaId.album(20);
+        PlayQueue queue = new PlayQueue(new long[] { 1, 2 }, context,
+                new String[] { "/sdcard/a.mp3", null });
+
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getTrackId(1));
+        assertEquals("/sdcard/a.mp3", queue.getPath(0));
+        assertNull(queue.getPath(1));
+        assertNull(new PlayQueue(new long[] { 1 }, null, null).getPath(0));
+        assertEquals(context, queue.getContext());
+        assertEquals(MediaId.track(2, context), queue.getMediaId(1));
+    }
+}
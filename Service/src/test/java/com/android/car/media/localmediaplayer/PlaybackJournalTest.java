@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PlaybackJournalTest {
+    private static final PlaybackJournal.PathResolver PATHS = PlayQueue::getPath;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("playback", ".journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private static PlayQueue queue(int size, long firstId, String context) {
+        long[] ids = new long[size];
+        String[] paths = new String[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = firstId + i;
+            paths[i] = "/sdcard/Music/Album " + (i / 12) + "/Track " + i + ".mp3";
+        }
+        return new PlayQueue(ids, context, paths);
+    }
+
+    private PlaybackJournal.State reopen() {
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        PlaybackJournal.State state = journal.read();
+        journal.close();
+        return state;
+    }
+
+    private static void assertQueuesEqual(PlayQueue expected, PlayQueue actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getContext(), actual.getContext());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTrackId(i), actual.getTrackId(i));
+            assertEquals(expected.getPath(i), actual.getPath(i));
+        }
+    }
+
+    @Test
+    public void read_missingFile() {
+        assertNull(reopen());
+    }
+
+    @Test
+    public void read_replaysQueueShuffleAndPosition() {
+        PlayQueue queue = queue(30, 100, MediaId.album(7));
+        ShuffleOrder order = new ShuffleOrder(queue.size(), 1234, 5);
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        assertNull(journal.read());
+        journal.writeQueue(queue);
+        journal.writeShuffle(order);
+        journal.writePosition(5, 61000);
+        journal.close();
+
+        PlaybackJournal.State state = reopen();
+
+        assertNotNull(state);
+        assertQueuesEqual(queue, state.queue);
+        assertTrue(state.shuffling);
+        assertEquals(1234, state.shuffleSeed);
+        assertEquals(5, state.shuffleFirst);
+        assertEquals(5, state.index);
+        assertEquals(61000, state.position);
+    }
+
+    @Test
+    public void read_newQueueResetsShuffleAndPosition() {
+        PlayQueue second = queue(3, 500, null);
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        journal.read();
+        journal.writeQueue(queue(10, 1, null));
+        journal.writeShuffle(new ShuffleOrder(10, 1, 0));
+        journal.writePosition(4, 1000);
+        journal.writeQueue(second);
+        journal.close();
+
+        PlaybackJournal.State state = reopen();
+
+        assertQueuesEqual(second, state.queue);
+        assertFalse(state.shuffling);
+        assertEquals(0, state.index);
+        assertEquals(0, state.position);
+    }
+
+    @Test
+    public void read_positionSubmittedBeforeNewQueueIsWritten() throws Exception {
+        PlayQueue first = queue(10, 1, null);
+        PlayQueue second = queue(3, 500, null);
+        // 写线程解析第一个队列的路径时停住，之后的写入都在它后面排队。
+        CountDownLatch resolving = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PlaybackJournal journal = new PlaybackJournal(mFile, (queue, index) -> {
+            if (queue == first && index == 0) {
+                resolving.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return queue.getPath(index);
+        });
+        journal.read();
+        journal.writeQueue(first);
+        assertTrue(resolving.await(5, TimeUnit.SECONDS));
+        // 第一个位置提交了一次写入；新队列的位置替换了还没有写入的位置，由那次写入取走。
+        journal.writePosition(4, 1000);
+        journal.writeQueue(second);
+        journal.writePosition(1, 2000);
+        release.countDown();
+        journal.close();
+
+        PlaybackJournal.State state = reopen();
+
+        assertQueuesEqual(second, state.queue);
+        assertEquals(1, state.index);
+        assertEquals(2000, state.position);
+    }
+
+    @Test
+    public void read_continuesAfterReopen() {
+        PlayQueue queue = queue(10, 1, null);
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        journal.read();
+        journal.writeQueue(queue);
+        journal.writeShuffle(new ShuffleOrder(10, 9, 2));
+        journal.close();
+
+        journal = new PlaybackJournal(mFile, PATHS);
+        assertNotNull(journal.read());
+        journal.writeShuffle(null);
+        journal.writePosition(3, 2000);
+        journal.close();
+
+        PlaybackJournal.State state = reopen();
+        assertQueuesEqual(queue, state.queue);
+        assertFalse(state.shuffling);
+        assertEquals(3, state.index);
+        assertEquals(2000, state.position);
+    }
+
+    @Test
+    public void read_truncatesTornTail() throws IOException {
+        writeQueueAndPosition();
+        long length = mFile.length();
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            // 一条写到一半的位置记录：长度和类型之后就断电了。
+            raf.seek(length);
+            raf.writeInt(13);
+            raf.writeByte(3);
+            raf.writeShort(0);
+        }
+
+        PlaybackJournal.State state = reopen();
+
+        assertNotNull(state);
+        assertEquals(2, state.index);
+        assertEquals(3000, state.position);
+        assertEquals(length, mFile.length());
+    }
+
+    @Test
+    public void read_dropsRecordWithBadChecksum() throws IOException {
+        PlayQueue queue = writeQueueAndPosition();
+        long length = mFile.length();
+        // 最后一条是位置记录：4 字节长度、13 字节内容和 4 字节 CRC。
+        long recordStart = length - 21;
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(length - 6);
+            int b = raf.read();
+            raf.seek(length - 6);
+            raf.write(b ^ 0x40);
+        }
+
+        PlaybackJournal.State state = reopen();
+
+        assertNotNull(state);
+        assertQueuesEqual(queue, state.queue);
+        assertTrue(state.shuffling);
+        assertEquals(0, state.index);
+        assertEquals(0, state.position);
+        assertEquals(recordStart, mFile.length());
+    }
+
+    @Test
+    public void read_discardsUnknownHeader() throws IOException {
+        writeQueueAndPosition();
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.writeInt(0);
+        }
+
+        assertNull(reopen());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void compact_keepsOnlyLatestQueue() {
+        // 每个队列快照都超过 MIN_COMPACT_BYTES，第三个队列写入时旧的快照被丢掉。
+        PlayQueue last = queue(5000, 20000, MediaId.artist(3));
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        journal.read();
+        journal.writeQueue(queue(5000, 1, null));
+        journal.writeQueue(queue(5000, 10000, null));
+        journal.writeQueue(last);
+        journal.writePosition(4999, 5000);
+        journal.close();
+        long compacted = mFile.length();
+
+        // 只有最后的队列和位置时日志的长度。
+        assertTrue(mFile.delete());
+        journal = new PlaybackJournal(mFile, PATHS);
+        journal.read();
+        journal.writeQueue(last);
+        journal.writePosition(4999, 5000);
+        journal.close();
+
+        assertEquals(mFile.length(), compacted);
+        PlaybackJournal.State state = reopen();
+        assertQueuesEqual(last, state.queue);
+        assertEquals(4999, state.index);
+        assertEquals(5000, state.position);
+    }
+
+    @Test
+    public void compact_boundsPositionUpdates() {
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        journal.read();
+        journal.writeQueue(queue(10, 1, null));
+        for (int i = 0; i < 20000; i++) {
+            journal.writePosition(i % 10, i);
+        }
+        journal.close();
+
+        assertTrue(mFile.length() <= 64 * 1024);
+        PlaybackJournal.State state = reopen();
+        assertEquals(9, state.index);
+        assertEquals(19999, state.position);
+    }
+
+    private PlayQueue writeQueueAndPosition() {
+        PlayQueue queue = queue(20, 1, MediaId.genre(4));
+        PlaybackJournal journal = new PlaybackJournal(mFile, PATHS);
+        journal.read();
+        journal.writeQueue(queue);
+        journal.writeShuffle(new ShuffleOrder(20, 77, 2));
+        journal.writePosition(2, 3000);
+        journal.close();
+        return queue;
+    }
+}
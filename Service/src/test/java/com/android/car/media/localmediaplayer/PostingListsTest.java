@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class PostingListsTest {
+    @Test
+    public void build_groupsValuesByListInInputOrder() {
+        int[] lists = { 2, 0, 2, 1, 0, 2 };
+        int[] values = { 10, 11, 12, 13, 14, 15 };
+        PostingLists postings = PostingLists.build(4, lists, values, lists.length);
+
+        assertEquals(4, postings.listCount());
+        assertArrayEquals(new int[] { 11, 14 }, postings.toArray(0));
+        assertArrayEquals(new int[] { 13 }, postings.toArray(1));
+        assertArrayEquals(new int[] { 10, 12, 15 }, postings.toArray(2));
+        assertEquals(0, postings.size(3));
+        assertEquals(12, postings.get(2, 1));
+    }
+
+    @Test
+    public void build_onlyUsesFirstCountPairs() {
+        // 构建时传入的数组常常比实际的对数大。
+        int[] lists = { 0, 1, 1, 0 };
+        int[] values = { 1, 2, 3, 4 };
+        PostingLists postings = PostingLists.build(2, lists, values, 2);
+
+        assertArrayEquals(new int[] { 1 }, postings.toArray(0));
+        assertArrayEquals(new int[] { 2 }, postings.toArray(1));
+    }
+
+    @Test
+    public void build_withoutPairs() {
+        PostingLists postings = PostingLists.build(3, new int[0], new int[0], 0);
+
+        assertEquals(3, postings.listCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, postings.size(i));
+        }
+    }
+
+    @Test
+    public void writeTo_readFrom_roundTrip() throws IOException {
+        int[] lists = { 1, 1, 0, 3 };
+        int[] values = { 7, 8, 9, Integer.MAX_VALUE };
+        PostingLists postings = PostingLists.build(4, lists, values, lists.length);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        postings.writeTo(new DataOutputStream(bytes));
+        PostingLists read = PostingLists.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(postings.listCount(), read.listCount());
+        for (int i = 0; i < postings.listCount(); i++) {
+            assertArrayEquals(postings.toArray(i), read.toArray(i));
+        }
+    }
+}
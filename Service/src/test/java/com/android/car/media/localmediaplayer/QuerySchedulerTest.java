@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.media.browse.MediaBrowser.MediaItem;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QuerySchedulerTest {
+    private static final long TIMEOUT_S = 5;
+
+    private final QueryScheduler mScheduler = new QueryScheduler();
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    /**
+     * 和框架的 Result 一样，重复 detach 或者重复发送结果时抛出异常。
+     */
+    static final class FakeReply implements QueryScheduler.Reply {
+        final CountDownLatch mSent = new CountDownLatch(1);
+        volatile boolean mDetached;
+        volatile List<MediaItem> mItems;
+
+        @Override
+        public void detach() {
+            if (mDetached) {
+                throw new IllegalStateException("detach() called twice");
+            }
+            mDetached = true;
+        }
+
+        @Override
+        public void sendResult(List<MediaItem> items) {
+            if (mSent.getCount() == 0) {
+                throw new IllegalStateException("sendResult() called twice");
+            }
+            mItems = items;
+            mSent.countDown();
+        }
+
+        List<MediaItem> await() throws InterruptedException {
+            assertTrue("no result", mSent.await(TIMEOUT_S, TimeUnit.SECONDS));
+            return mItems;
+        }
+
+        boolean isSent() {
+            return mSent.getCount() == 0;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mScheduler.shutdown();
+    }
+
+    private QueryScheduler.Query blockingQuery(CountDownLatch started, AtomicInteger runs,
+            List<MediaItem> items) {
+        return () -> {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                mRelease.await(TIMEOUT_S, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return items;
+        };
+    }
+
+    /**
+     * 提交阻塞的查询，直到所有工作线程都被占用（再提交的查询在一段时间内没有开始）。
+     */
+    private void occupyWorkers() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; ; i++) {
+            CountDownLatch started = new CountDownLatch(1);
+            mScheduler.submit("blocker", "blocker" + i, new FakeReply(),
+                    blockingQuery(started, runs, new ArrayList<>()));
+            if (!started.await(200, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void submit_detachesOnceAndSendsResult() throws InterruptedException {
+        List<MediaItem> items = new ArrayList<>();
+        FakeReply reply = new FakeReply();
+
+        mScheduler.submit("client", "node#0-10", reply, () -> items);
+
+        assertSame(items, reply.await());
+        assertTrue(reply.mDetached);
+    }
+
+    @Test
+    public void submitDetached_doesNotDetachAgain() throws InterruptedException {
+        // 和目录还没有加载时一样：请求先 detach，目录加载完成之后才提交。
+        List<MediaItem> items = new ArrayList<>();
+        FakeReply reply = new FakeReply();
+        reply.detach();
+
+        mScheduler.submitDetached("client", "node#0-10", reply, () -> items);
+
+        assertSame(items, reply.await());
+    }
+
+    @Test
+    public void submit_coalescesRequestsForRunningQuery() throws InterruptedException {
+        List<MediaItem> items = new ArrayList<>();
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        FakeReply first = new FakeReply();
+        FakeReply second = new FakeReply();
+
+        mScheduler.submit("center", "album:1#0-10", first, blockingQuery(started, runs, items));
+        assertTrue(started.await(TIMEOUT_S, TimeUnit.SECONDS));
+        // 另一个客户端在查询执行期间请求同一个节点，共享这一次查询。
+        mScheduler.submit("cluster", "album:1#0-10", second, () -> {
+            runs.incrementAndGet();
+            return null;
+        });
+        mRelease.countDown();
+
+        assertSame(items, first.await());
+        assertSame(items, second.await());
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void submit_coalescesPendingRequests() throws InterruptedException {
+        occupyWorkers();
+        List<MediaItem> items = new ArrayList<>();
+        AtomicInteger runs = new AtomicInteger();
+        FakeReply first = new FakeReply();
+        FakeReply second = new FakeReply();
+
+        mScheduler.submit("center", "artist:2#0-10", first, () -> {
+            runs.incrementAndGet();
+            return items;
+        });
+        mScheduler.submit("cluster", "artist:2#0-10", second, () -> {
+            runs.incrementAndGet();
+            return null;
+        });
+        mRelease.countDown();
+
+        assertSame(items, first.await());
+        assertSame(items, second.await());
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void submit_cancelsOldestPendingRequestOfClient() throws InterruptedException {
+        occupyWorkers();
+        List<FakeReply> replies = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            FakeReply reply = new FakeReply();
+            replies.add(reply);
+            mScheduler.submit("center", "node" + i, reply, ArrayList::new);
+        }
+
+        // 第九个请求挤掉了最旧的请求，它立即以 null 完成，不会一直挂起。
+        assertTrue(replies.get(0).isSent());
+        assertNull(replies.get(0).mItems);
+        for (int i = 1; i < replies.size(); i++) {
+            assertFalse(replies.get(i).isSent());
+        }
+        mRelease.countDown();
+        for (int i = 1; i < replies.size(); i++) {
+            assertNotNull(replies.get(i).await());
+        }
+    }
+
+    @Test
+    public void submit_keepsRequestSharedWithAnotherClient() throws InterruptedException {
+        occupyWorkers();
+        FakeReply shared = new FakeReply();
+        FakeReply other = new FakeReply();
+        mScheduler.submit("center", "genre:3#0-10", shared, ArrayList::new);
+        mScheduler.submit("cluster", "genre:3#0-10", other, ArrayList::new);
+        for (int i = 0; i < 8; i++) {
+            mScheduler.submit("center", "node" + i, new FakeReply(), ArrayList::new);
+        }
+
+        // 另一个客户端也在等这个查询，所以它没有被取消。
+        assertFalse(shared.isSent());
+        mRelease.countDown();
+        assertNotNull(shared.await());
+        assertNotNull(other.await());
+    }
+
+    @Test
+    public void submit_failedQuerySendsNull() throws InterruptedException {
+        FakeReply failed = new FakeReply();
+        mScheduler.submit("client", "node", failed, () -> {
+            throw new IllegalStateException("query failed");
+        });
+        assertNull(failed.await());
+
+        // 失败的查询不会留在调度器中，之后同一个 key 可以重新查询。
+        List<MediaItem> items = new ArrayList<>();
+        FakeReply retry = new FakeReply();
+        mScheduler.submit("client", "node", retry, () -> items);
+        assertSame(items, retry.await());
+    }
+
+    @Test
+    public void shutdown_completesPendingAndLaterRequests() throws InterruptedException {
+        occupyWorkers();
+        FakeReply pending = new FakeReply();
+        mScheduler.submit("client", "node", pending, ArrayList::new);
+
+        mScheduler.shutdown();
+
+        assertTrue(pending.isSent());
+        assertNull(pending.mItems);
+        FakeReply late = new FakeReply();
+        mScheduler.submit("client", "other", late, ArrayList::new);
+        assertTrue(late.isSent());
+        assertNull(late.mItems);
+    }
+}
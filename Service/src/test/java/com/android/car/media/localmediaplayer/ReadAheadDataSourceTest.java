@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ReadAheadDataSourceTest {
+    private static final int CHUNK = ReadAheadDataSource.CHUNK_BYTES;
+
+    private File mFile;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws IOException {
+        // 40 块多一点，超过环的大小，最后一块不完整。
+        mData = new byte[40 * CHUNK + 12345];
+        new Random(7).nextBytes(mData);
+        mFile = File.createTempFile("readahead", ".mp3");
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(mData);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * 从 dump 的输出中取出统计值，例如缓冲区池的 inUse。
+     */
+    static long stat(String name) {
+        StringWriter out = new StringWriter();
+        ReadAheadDataSource.dump(new PrintWriter(out));
+        Matcher matcher = Pattern.compile("\\b" + name + "=(\\d+)")
+                .matcher(out.toString());
+        assertTrue(name, matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * 关闭之后，正在读取的块由读取线程归还，所以等它们都归还。
+     */
+    static void assertBuffersReturned() throws InterruptedException {
+        for (int i = 0; i < 500 && stat("inUse") != 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, stat("inUse"));
+    }
+
+    private void assertReads(ReadAheadDataSource source, long position, int size)
+            throws IOException {
+        byte[] buffer = new byte[size + 2];
+        int n = source.readAt(position, buffer, 1, size);
+        int expected = (int) Math.min(size, mData.length - position);
+        assertEquals(expected, n);
+        assertArrayEquals(Arrays.copyOfRange(mData, (int) position, (int) position + n),
+                Arrays.copyOfRange(buffer, 1, 1 + n));
+    }
+
+    @Test
+    public void readAt_sequential() throws Exception {
+        try (ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath())) {
+            assertEquals(mData.length, source.getSize());
+            // 解码器的读取大小和块的大小不对齐。
+            for (long position = 0; position < mData.length; position += 7777) {
+                assertReads(source, position, 7777);
+            }
+        }
+        assertBuffersReturned();
+    }
+
+    @Test
+    public void readAt_spansChunks() throws Exception {
+        try (ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath())) {
+            assertReads(source, CHUNK - 100, 3 * CHUNK);
+            assertReads(source, 0, mData.length);
+        }
+        assertBuffersReturned();
+    }
+
+    @Test
+    public void readAt_randomSeeks() throws Exception {
+        Random random = new Random(3);
+        try (ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath())) {
+            for (int i = 0; i < 200; i++) {
+                assertReads(source, random.nextInt(mData.length), 1 + random.nextInt(CHUNK));
+            }
+        }
+        assertBuffersReturned();
+    }
+
+    @Test
+    public void readAt_seekLoadsMissedChunkIntoRing() throws Exception {
+        try (ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath())) {
+            long missLoads = stat("missLoads");
+            long directReads = stat("directReads");
+
+            // 跳转到环中没有的块：整块读进环中，而不是直接读取之后再由读取线程读一遍。
+            assertReads(source, 30L * CHUNK + 1000, 4096);
+            assertEquals(missLoads + 1, stat("missLoads"));
+            assertReads(source, 30L * CHUNK + 5096, 4096);
+            assertEquals(missLoads + 1, stat("missLoads"));
+            assertEquals(directReads, stat("directReads"));
+        }
+        assertBuffersReturned();
+    }
+
+    @Test
+    public void readAt_endOfFile() throws Exception {
+        try (ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath())) {
+            assertReads(source, mData.length - 10, 100);
+            assertEquals(-1, source.readAt(mData.length, new byte[10], 0, 10));
+            assertEquals(-1, source.readAt(mData.length + CHUNK, new byte[10], 0, 10));
+        }
+    }
+
+    @Test
+    public void prefetchHead_thenRead() throws Exception {
+        try (ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath())) {
+            source.prefetchHead(ReadAheadDataSource.HEAD_PREFETCH_BYTES);
+            for (long position = 0; position < 20 * CHUNK; position += 4096) {
+                assertReads(source, position, 4096);
+            }
+        }
+        assertBuffersReturned();
+    }
+
+    @Test
+    public void close_failsLaterReads() throws Exception {
+        ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath());
+        assertReads(source, 0, 100);
+        source.close();
+        source.close();
+
+        try {
+            source.readAt(0, new byte[100], 0, 100);
+            fail("read after close");
+        } catch (IOException expected) {
+        }
+        assertBuffersReturned();
+    }
+
+    @Test
+    public void close_whileReadingAhead() throws Exception {
+        // 读取线程还在预读时关闭，它读完的块也要归还到缓冲区池。
+        for (int i = 0; i < 20; i++) {
+            ReadAheadDataSource source = new ReadAheadDataSource(mFile.getPath());
+            source.prefetchHead(ReadAheadDataSource.HEAD_PREFETCH_BYTES);
+            source.close();
+        }
+        assertBuffersReturned();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SearchIndexTest {
+    private static SearchIndex buildIndex() {
+        return new SearchIndex.Builder()
+                .add(SearchIndex.TYPE_TRACK, 1, null, "Come Together")
+                .add(SearchIndex.TYPE_TRACK, 2, null, "Love")
+                .add(SearchIndex.TYPE_TRACK, 3, null, "Lovely Day")
+                .add(SearchIndex.TYPE_TRACK, 4, null, "Queen")
+                .add(SearchIndex.TYPE_ARTIST, 10, null, "The Beatles")
+                .add(SearchIndex.TYPE_ARTIST, 11, null, "Beyoncé")
+                .add(SearchIndex.TYPE_ARTIST, 12, null, "Metallica")
+                .add(SearchIndex.TYPE_ARTIST, 13, null, "Queen")
+                .add(SearchIndex.TYPE_ALBUM, 20, null, "Abbey Road")
+                .add(SearchIndex.TYPE_FOLDER, 0, "/sdcard/Music/Road Trip", "Road Trip")
+                .build();
+    }
+
+    private static List<SearchIndex.Hit> search(SearchIndex index, String query) {
+        List<SearchIndex.Hit> hits = new ArrayList<>();
+        index.search(SearchIndex.tokenize(query), null, 10, hits);
+        return hits;
+    }
+
+    @Test
+    public void fold_caseAndDiacritics() {
+        assertEquals("beyonce", SearchIndex.fold("Beyoncé"));
+        assertEquals("ac dc", SearchIndex.fold("AC/DC"));
+        assertEquals("", SearchIndex.fold(null));
+    }
+
+    @Test
+    public void tokenize_dropsDuplicatesAndPunctuation() {
+        assertArrayEquals(new String[] { "the", "beatles" },
+                SearchIndex.tokenize("The  the, Beatles!"));
+        assertEquals(0, SearchIndex.tokenize(" - ").length);
+    }
+
+    @Test
+    public void search_prefix() {
+        List<SearchIndex.Hit> hits = search(buildIndex(), "beat");
+
+        assertEquals(1, hits.size());
+        assertEquals(SearchIndex.TYPE_ARTIST, hits.get(0).type);
+        assertEquals(10, hits.get(0).id);
+    }
+
+    @Test
+    public void search_foldsQuery() {
+        List<SearchIndex.Hit> hits = search(buildIndex(), "BEYONCE");
+
+        assertEquals(1, hits.size());
+        assertEquals(11, hits.get(0).id);
+    }
+
+    @Test
+    public void search_requiresEveryToken() {
+        SearchIndex index = buildIndex();
+
+        assertEquals(1, search(index, "come tog").size());
+        assertEquals(0, search(index, "come road").size());
+    }
+
+    @Test
+    public void search_exactBeforePrefix() {
+        List<SearchIndex.Hit> hits = search(buildIndex(), "love");
+
+        assertEquals(2, hits.size());
+        assertEquals(2, hits.get(0).id);
+        assertEquals(3, hits.get(1).id);
+        assertTrue(hits.get(0).score > hits.get(1).score);
+    }
+
+    @Test
+    public void search_artistBeforeTrack() {
+        List<SearchIndex.Hit> hits = search(buildIndex(), "queen");
+
+        assertEquals(2, hits.size());
+        assertEquals(SearchIndex.TYPE_ARTIST, hits.get(0).type);
+        assertEquals(SearchIndex.TYPE_TRACK, hits.get(1).type);
+    }
+
+    @Test
+    public void search_fuzzyToleratesTypo() {
+        List<SearchIndex.Hit> hits = search(buildIndex(), "metalica");
+
+        assertEquals(1, hits.size());
+        assertEquals(12, hits.get(0).id);
+        // 模糊匹配的得分低于同一个文档的完全匹配。
+        assertTrue(hits.get(0).score < search(buildIndex(), "metallica").get(0).score);
+    }
+
+    @Test
+    public void search_noFuzzyForShortTokens() {
+        // "lov" 是前缀，"lvo" 太短，不做模糊匹配。
+        assertEquals(2, search(buildIndex(), "lov").size());
+        assertEquals(0, search(buildIndex(), "lvo").size());
+    }
+
+    @Test
+    public void search_folderHitKeepsPath() {
+        List<SearchIndex.Hit> hits = search(buildIndex(), "trip");
+
+        assertEquals(1, hits.size());
+        assertEquals(SearchIndex.TYPE_FOLDER, hits.get(0).type);
+        assertEquals("/sdcard/Music/Road Trip", hits.get(0).path);
+    }
+
+    @Test
+    public void search_excludedTracksAndLimit() {
+        SearchIndex index = buildIndex();
+        List<SearchIndex.Hit> hits = new ArrayList<>();
+        index.search(SearchIndex.tokenize("love"), Collections.singleton(2L), 10, hits);
+
+        assertEquals(1, hits.size());
+        assertEquals(3, hits.get(0).id);
+
+        hits.clear();
+        index.search(SearchIndex.tokenize("road"), null, 1, hits);
+        assertEquals(1, hits.size());
+        assertEquals(SearchIndex.TYPE_ALBUM, hits.get(0).type);
+    }
+
+    @Test
+    public void search_emptyIndex() {
+        assertEquals(0, search(SearchIndex.EMPTY, "love").size());
+    }
+}
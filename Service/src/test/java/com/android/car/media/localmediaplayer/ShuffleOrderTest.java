@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ShuffleOrderTest {
+    private static final int[] SIZES = { 1, 2, 3, 4, 5, 7, 16, 17, 100, 1000, 4097 };
+    private static final long[] SEEDS = { 0, 1, -1, 0x123456789ABCDEFL };
+
+    @Test
+    public void get_isPermutation() {
+        for (int size : SIZES) {
+            for (long seed : SEEDS) {
+                ShuffleOrder order = new ShuffleOrder(size, seed, size / 2);
+                boolean[] seen = new boolean[size];
+                for (int position = 0; position < size; position++) {
+                    int index = order.get(position);
+                    assertTrue("size " + size, index >= 0 && index < size);
+                    assertFalse("size " + size + " repeats " + index, seen[index]);
+                    seen[index] = true;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void indexOf_invertsGet() {
+        for (int size : SIZES) {
+            for (long seed : SEEDS) {
+                ShuffleOrder order = new ShuffleOrder(size, seed, 0);
+                for (int position = 0; position < size; position++) {
+                    assertEquals(position, order.indexOf(order.get(position)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void get_startsWithFirst() {
+        for (int size : SIZES) {
+            for (int first = 0; first < size; first += Math.max(1, size / 7)) {
+                ShuffleOrder order = new ShuffleOrder(size, 42, first);
+                assertEquals(first, order.get(0));
+                assertEquals(0, order.indexOf(first));
+                assertEquals(first, order.getFirst());
+            }
+        }
+    }
+
+    @Test
+    public void sameSeed_sameOrder() {
+        ShuffleOrder order = new ShuffleOrder(1000, 7, 3);
+        // 日志中只保存种子和第一首，恢复时必须得到同样的顺序。
+        ShuffleOrder restored = new ShuffleOrder(order.size(), order.getSeed(),
+                order.getFirst());
+
+        assertArrayEquals(positions(order), positions(restored));
+    }
+
+    @Test
+    public void differentSeed_differentOrder() {
+        int[] a = positions(new ShuffleOrder(1000, 7, 0));
+        int[] b = positions(new ShuffleOrder(1000, 8, 0));
+        int[] identity = new int[1000];
+        for (int i = 0; i < identity.length; i++) {
+            identity[i] = i;
+        }
+
+        assertFalse(Arrays.equals(a, b));
+        assertFalse(Arrays.equals(a, identity));
+    }
+
+    private static int[] positions(ShuffleOrder order) {
+        int[] positions = new int[order.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = order.get(i);
+        }
+        return positions;
+    }
+}
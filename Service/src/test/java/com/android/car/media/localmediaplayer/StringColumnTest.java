@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2016, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.media.localmediaplayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class StringColumnTest {
+    private static final String[] VALUES = {
+            "Abbey Road", null, "", "Björk", "周杰伦", "🎵 emoji", "Abbey Road"
+    };
+
+    @Test
+    public void of_keepsValues() {
+        StringColumn column = StringColumn.of(VALUES);
+
+        assertEquals(VALUES.length, column.size());
+        for (int i = 0; i < VALUES.length; i++) {
+            assertEquals(VALUES[i], column.get(i));
+        }
+    }
+
+    @Test
+    public void map_decodesWrittenColumn() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        StringColumn.of(VALUES).writeTo(out);
+        out.writeInt(0x12345678);
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        StringColumn mapped = StringColumn.map(buffer);
+
+        assertEquals(VALUES.length, mapped.size());
+        for (int i = 0; i < VALUES.length; i++) {
+            assertEquals(VALUES[i], mapped.get(i));
+        }
+        assertNull(mapped.get(1));
+        // 映射之后缓冲区位于列末尾，后面的数据可以继续读取。
+        assertEquals(0x12345678, buffer.getInt());
+    }
+
+    @Test
+    public void map_rewritesIdentically() throws IOException {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        StringColumn.of(VALUES).writeTo(new DataOutputStream(first));
+        StringColumn mapped = StringColumn.map(ByteBuffer.wrap(first.toByteArray()));
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        mapped.writeTo(new DataOutputStream(second));
+
+        assertEquals(first.size(), second.size());
+        assertEquals(ByteBuffer.wrap(first.toByteArray()), ByteBuffer.wrap(second.toByteArray()));
+    }
+
+    @Test
+    public void map_emptyColumn() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringColumn.of(new String[0]).writeTo(new DataOutputStream(bytes));
+
+        assertEquals(0, StringColumn.map(ByteBuffer.wrap(bytes.toByteArray())).size());
+    }
+}